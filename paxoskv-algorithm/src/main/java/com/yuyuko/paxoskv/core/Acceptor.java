@@ -20,6 +20,13 @@ public class Acceptor extends Base {
 
     private byte[] acceptValue;
 
+    /**
+     * 持有master租约的节点，0表示没有master
+     */
+    private long masterNodeId;
+
+    private long masterLeaseElapsed;
+
     public Acceptor(PaxosInstance instance, Config config, PaxosLog paxosLog) {
         super(instance, config);
         this.paxosLog = paxosLog;
@@ -64,9 +71,12 @@ public class Acceptor extends Base {
 
         BallotNumber ballotNumber = new BallotNumber(paxosMessage.getProposalId(),
                 paxosMessage.getNodeId());
-        // 在大于当前promise值的情况下，可以接受，并且返回之前的值
-        // 论文中是等于
-        if (ballotNumber.compareTo(promise) >= 0) {
+        // master租约内拒绝其他节点的prepare，master可以一直跳过prepare
+        if (masterNodeId != 0 && masterNodeId != paxosMessage.getNodeId()) {
+            log.debug("[Prepare Reject By Master Lease]: message nodeId[{}], masterNodeId[{}]",
+                    paxosMessage.getNodeId(), masterNodeId);
+            replyMsgBuilder.rejectByPromiseId(promise.getProposalId());
+        } else if (ballotNumber.compareTo(promise) >= 0) {
             log.debug("[Prepare Promise]: promiseId[{}],promiseNodeId[{}],preAccepted[{}]," +
                             "preAcceptedNodeId[{}]", ballotNumber.getProposalId(),
                     ballotNumber.getNodeId(),
@@ -80,6 +90,7 @@ public class Acceptor extends Base {
             }
             // 保存这一次prepare的信息
             promise = ballotNumber;
+            renewMasterLease(paxosMessage.getNodeId());
 
             //持久化prepare信息
             persist();
@@ -123,6 +134,7 @@ public class Acceptor extends Base {
             promise = ballotNumber;
             accepted = ballotNumber;
             acceptValue = paxosMessage.getValue();
+            renewMasterLease(paxosMessage.getNodeId());
             persist();
         } else {
             log.debug("[Accept Reject]: message proposalId[{}],nodeId[{}]. promiseId[{}]," +
@@ -136,6 +148,46 @@ public class Acceptor extends Base {
         sendMessage(replyMsgBuilder);
     }
 
+    public void tick() {
+        if (masterNodeId == 0)
+            return;
+        if (++masterLeaseElapsed >= config.getMasterLeaseTimeout()) {
+            log.debug("[Master Lease Expired] masterNodeId[{}]", masterNodeId);
+            masterNodeId = 0;
+        }
+    }
+
+    /**
+     * @return 距离master租约过期的tick数，没有master时为Long.MAX_VALUE
+     */
+    long ticksToNextTimeout() {
+        if (masterNodeId == 0)
+            return Long.MAX_VALUE;
+        return Math.max(1, config.getMasterLeaseTimeout() - masterLeaseElapsed);
+    }
+
+    /**
+     * 跳过ticks个不会触发超时的tick，ticks必须小于ticksToNextTimeout
+     */
+    void skipTicks(long ticks) {
+        if (masterNodeId != 0)
+            masterLeaseElapsed += ticks;
+    }
+
+    /**
+     * prepare或accept通过时，发起的节点获得（或续期）master租约
+     */
+    private void renewMasterLease(long nodeId) {
+        if (config.getMasterLeaseTimeout() <= 0)
+            return;
+        masterNodeId = nodeId;
+        masterLeaseElapsed = 0;
+    }
+
+    public long getMasterNodeId() {
+        return masterNodeId;
+    }
+
     private void persist() {
         ChosenValue chosenValue = new ChosenValue(instanceId, promise.getProposalId(),
                 promise.getNodeId(), accepted.getProposalId(), accepted.getNodeId(), acceptValue);
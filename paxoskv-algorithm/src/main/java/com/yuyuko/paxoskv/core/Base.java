@@ -29,10 +29,11 @@ public abstract class Base {
     }
 
     public void sendMessage(PaxosMessage.Builder builder) {
-        messages.add(builder.build());
+        messages.add(builder.groupId(config.getGroupId()).build());
     }
 
     public void broadcastMessage(PaxosMessage.Builder builder) {
+        builder.groupId(config.getGroupId());
         config.getNodeInfoList().forEach(nodeInfo -> {
             PaxosMessage message = builder.toNodeId(nodeInfo.getNodeId()).build();
             messages.add(message);
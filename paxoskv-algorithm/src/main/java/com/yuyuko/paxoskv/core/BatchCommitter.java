@@ -0,0 +1,142 @@
+package com.yuyuko.paxoskv.core;
+
+import com.yuyuko.paxoskv.core.node.Config;
+import com.yuyuko.paxoskv.core.utils.Tuple;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 将并发的多个提议打包成一个值，只用一个paxos实例提交
+ * 第一个加入批次的提议安排一个延迟提交，直到超过等待时间或者批次大小超过上限，
+ * 然后通过Committer异步提交，并把结果返回给批次中的每一个提议
+ */
+public class BatchCommitter {
+    /**
+     * 所有BatchCommitter共用，到时提交攒好的批次
+     */
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "BatchCommitterTimer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final Committer committer;
+
+    private final long maxDelayNanos;
+
+    private final int maxBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 正在攒批的批次，没有时为null
+     */
+    private Batch current;
+
+    public BatchCommitter(Committer committer, Config config) {
+        this.committer = committer;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(config.getBatchProposeMaxDelayMicros());
+        this.maxBytes = config.getBatchProposeMaxBytes();
+    }
+
+    private static class Batch {
+        private final List<byte[]> values = new ArrayList<>();
+
+        private int bytes;
+
+        private final AtomicBoolean committed = new AtomicBoolean();
+
+        private final CompletableFuture<Tuple<Long, CommitContext.CommitResult>> result =
+                new CompletableFuture<>();
+
+        void add(byte[] value) {
+            values.add(value);
+            bytes += value.length;
+        }
+
+        /**
+         * 攒满和到时都会调用，只提交一次
+         */
+        void commit(Committer committer) {
+            if (!committed.compareAndSet(false, true))
+                return;
+            try {
+                committer.proposeAsync(BatchValue.encode(values)).whenComplete((tuple, ex) -> {
+                    if (ex != null)
+                        result.completeExceptionally(ex);
+                    else
+                        result.complete(tuple);
+                });
+            } catch (RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        }
+    }
+
+    /**
+     * 提议一个值，阻塞直到所在的批次提交完成
+     *
+     * @return instanceId,commitResult
+     */
+    public Tuple<Long, CommitContext.CommitResult> propose(byte[] value) {
+        try {
+            return proposeAsync(value).get();
+        } catch (InterruptedException e) {
+            throw new PaxosException(e);
+        } catch (ExecutionException e) {
+            throw new PaxosException("batch commit failed", e.getCause());
+        }
+    }
+
+    /**
+     * 异步提议一个值，所在的批次提交完成时完成
+     *
+     * @return instanceId,commitResult
+     */
+    public CompletableFuture<Tuple<Long, CommitContext.CommitResult>> proposeAsync(byte[] value) {
+        Batch batch;
+        boolean isLeader;
+        boolean isFull;
+        lock.lock();
+        try {
+            isLeader = current == null;
+            if (isLeader)
+                current = new Batch();
+            batch = current;
+            batch.add(value);
+            isFull = batch.bytes >= maxBytes;
+            if (isFull)
+                current = null;
+        } finally {
+            lock.unlock();
+        }
+        if (isFull)
+            batch.commit(committer);
+        else if (isLeader)
+            timer.schedule(() -> {
+                closeBatch(batch);
+                batch.commit(committer);
+            }, maxDelayNanos, TimeUnit.NANOSECONDS);
+        // 每个提议拿到自己的future，取消或者完成不会影响同一批次的其他提议
+        return batch.result.copy();
+    }
+
+    private void closeBatch(Batch batch) {
+        lock.lock();
+        try {
+            if (current == batch)
+                current = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.yuyuko.paxoskv.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量提议时多个值打包成一个paxos实例的值的格式
+ * [count][len1][value1][len2][value2]...
+ */
+public class BatchValue {
+    private BatchValue() {
+    }
+
+    public static byte[] encode(List<byte[]> values) {
+        int size = 4;
+        for (byte[] value : values)
+            size += 4 + value.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(values.size());
+        for (byte[] value : values) {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+        return buffer.array();
+    }
+
+    public static List<byte[]> decode(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int count = buffer.getInt();
+        List<byte[]> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] value = new byte[buffer.getInt()];
+            buffer.get(value);
+            values.add(value);
+        }
+        return values;
+    }
+}
@@ -4,6 +4,7 @@ import com.yuyuko.paxoskv.core.PaxosException;
 import com.yuyuko.paxoskv.core.utils.Tuple;
 
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -21,13 +22,22 @@ public class CommitContext {
 
     private final Condition end = lock.newCondition();
 
+    /**
+     * 由事件循环在setResult时完成，结果与getResult相同
+     */
+    private volatile CompletableFuture<Tuple<Long, CommitResult>> future;
+
     public CommitContext() {
         newCommit(null);
     }
 
     public enum CommitResult {
         OK,
-        Conflict;
+        Conflict,
+        /**
+         * 转发给master的提议超时没有被学习到，值可能被选中也可能没有
+         */
+        Timeout;
     }
 
     public void newCommit(byte[] value) {
@@ -36,6 +46,7 @@ public class CommitContext {
         result = null;
         isCommitEnd = false;
         this.value = value;
+        future = new CompletableFuture<>();
         lock.unlock();
     }
 
@@ -55,6 +66,18 @@ public class CommitContext {
             end.signal();
             lock.unlock();
         }
+        // 在锁外完成，回调不会阻塞等待结果的线程
+        future.complete(resultTuple());
+    }
+
+    private Tuple<Long, CommitResult> resultTuple() {
+        if (result == CommitResult.OK)
+            return new Tuple<>(instanceId, CommitResult.OK);
+        return new Tuple<>(0L, result);
+    }
+
+    public CompletableFuture<Tuple<Long, CommitResult>> getFuture() {
+        return future;
     }
 
     public Tuple<Long, CommitResult> getResult() {
@@ -63,9 +86,7 @@ public class CommitContext {
             while (!isCommitEnd) {
                 end.await();
             }
-            if (result == CommitResult.OK)
-                return new Tuple<>(instanceId, CommitResult.OK);
-            return new Tuple<>(0L, result);
+            return resultTuple();
         } catch (InterruptedException e) {
             throw new PaxosException(e);
         } finally {
@@ -82,5 +103,17 @@ public class CommitContext {
         this.instanceId = instanceId;
         lock.unlock();
     }
+
+    public boolean isCommitEnd() {
+        return isCommitEnd;
+    }
+
+    public long getInstanceId() {
+        return instanceId;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
 }
 
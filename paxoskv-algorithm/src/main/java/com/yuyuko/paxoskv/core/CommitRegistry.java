@@ -0,0 +1,152 @@
+package com.yuyuko.paxoskv.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.LongFunction;
+
+/**
+ * 等待结果的提议，本地发起的按instanceId登记，转发给master的按值登记，
+ * 学习到实例之后各自独立完成，可以同时有任意多个
+ * 只在事件循环中访问
+ */
+class CommitRegistry {
+    /**
+     * 本地发起投票的提议，instanceId -> 提议
+     */
+    private final NavigableMap<Long, CommitContext> localCommits = new TreeMap<>();
+
+    /**
+     * 转发给master的提议，不知道会被选在哪个实例，学习到相同的值时完成，
+     * 值相同的提议按转发顺序完成
+     */
+    private final Map<ByteBuffer, Deque<CommitContext>> forwardedCommits = new HashMap<>();
+
+    /**
+     * 转发的提议按转发顺序排列，超时时间相同，所以截止时间也是递增的
+     */
+    private final Deque<ForwardedDeadline> forwardedDeadlines = new ArrayDeque<>();
+
+    private long ticks;
+
+    private static class ForwardedDeadline {
+        private final CommitContext commitContext;
+
+        private final long deadline;
+
+        ForwardedDeadline(CommitContext commitContext, long deadline) {
+            this.commitContext = commitContext;
+            this.deadline = deadline;
+        }
+    }
+
+    void register(long instanceId, CommitContext commitContext) {
+        commitContext.startCommit(instanceId);
+        localCommits.put(instanceId, commitContext);
+    }
+
+    /**
+     * 放弃还没有结果的本地提议，之后可以在新的实例重新登记
+     */
+    void unregister(CommitContext commitContext) {
+        localCommits.remove(commitContext.getInstanceId(), commitContext);
+    }
+
+    void registerForwarded(CommitContext commitContext, long timeout) {
+        forwardedCommits.computeIfAbsent(ByteBuffer.wrap(commitContext.getValue()),
+                k -> new ArrayDeque<>()).addLast(commitContext);
+        forwardedDeadlines.addLast(new ForwardedDeadline(commitContext, ticks + timeout));
+    }
+
+    /**
+     * 学习到了[fromInstanceId,toInstanceId)中的实例，完成这些实例上登记的提议
+     *
+     * @param chosenValue instanceId -> 被选中的值，找不到时为null
+     */
+    void learned(long fromInstanceId, long toInstanceId, LongFunction<byte[]> chosenValue) {
+        Iterator<Map.Entry<Long, CommitContext>> iterator =
+                localCommits.headMap(toInstanceId).entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, CommitContext> entry = iterator.next();
+            entry.getValue().setResult(CommitContext.CommitResult.OK, entry.getKey(),
+                    chosenValue.apply(entry.getKey()));
+            iterator.remove();
+        }
+        if (forwardedCommits.isEmpty())
+            return;
+        for (long instanceId = fromInstanceId; instanceId < toInstanceId; instanceId++) {
+            byte[] value = chosenValue.apply(instanceId);
+            if (value == null)
+                continue;
+            ByteBuffer key = ByteBuffer.wrap(value);
+            Deque<CommitContext> sameValue = forwardedCommits.get(key);
+            if (sameValue == null)
+                continue;
+            CommitContext forwarded = sameValue.pollFirst();
+            if (sameValue.isEmpty())
+                forwardedCommits.remove(key);
+            forwarded.startCommit(instanceId);
+            forwarded.setResult(CommitContext.CommitResult.OK, instanceId, value);
+        }
+    }
+
+    /**
+     * 以result结束所有本地提议，比如实例被快照覆盖时结果未知
+     */
+    void abortLocal(CommitContext.CommitResult result) {
+        localCommits.forEach((instanceId, commitContext) ->
+                commitContext.setResult(result, instanceId, null));
+        localCommits.clear();
+    }
+
+    void tick() {
+        ticks++;
+        while (!forwardedDeadlines.isEmpty()) {
+            ForwardedDeadline first = forwardedDeadlines.peekFirst();
+            CommitContext forwarded = first.commitContext;
+            if (!forwarded.isCommitEnd() && first.deadline > ticks)
+                break;
+            forwardedDeadlines.pollFirst();
+            if (forwarded.isCommitEnd())
+                continue;
+            ByteBuffer key = ByteBuffer.wrap(forwarded.getValue());
+            Deque<CommitContext> sameValue = forwardedCommits.get(key);
+            sameValue.remove(forwarded);
+            if (sameValue.isEmpty())
+                forwardedCommits.remove(key);
+            forwarded.setResult(CommitContext.CommitResult.Timeout, forwarded.getInstanceId(),
+                    null);
+        }
+    }
+
+    /**
+     * @return 距离最早的转发提议超时的tick数，没有时为Long.MAX_VALUE
+     */
+    long ticksToNextTimeout() {
+        for (ForwardedDeadline forwarded : forwardedDeadlines)
+            if (!forwarded.commitContext.isCommitEnd())
+                return Math.max(1, forwarded.deadline - ticks);
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * 跳过ticks个不会触发超时的tick，ticks必须小于ticksToNextTimeout，
+     * 已经结束的转发留到下一次tick时清理
+     */
+    void skipTicks(long ticks) {
+        this.ticks += ticks;
+    }
+
+    int localSize() {
+        return localCommits.size();
+    }
+
+    int forwardedSize() {
+        return forwardedCommits.values().stream().mapToInt(Deque::size).sum();
+    }
+}
@@ -1,18 +1,27 @@
 package com.yuyuko.paxoskv.core;
 
 import com.yuyuko.paxoskv.core.utils.Tuple;
-import com.yuyuko.selector.Channel;
 
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 import java.util.function.Consumer;
 
 public class Committer {
-    private final CommitContext commitContext;
+    /**
+     * 同一时刻只有一个本地提议在进行，后面的同步提议阻塞，异步提议排队
+     */
+    private final Semaphore proposing = new Semaphore(1);
 
-    private volatile Consumer<byte[]> proposeCallback;
+    private volatile Consumer<CommitContext> proposeCallback;
 
-    public Committer(CommitContext commitContext) {
-        this.commitContext = commitContext;
-    }
+    /**
+     * 异步提议在有提议进行时排队，不阻塞提议线程，有提议完成时再提交
+     */
+    private final Queue<Runnable> waitingAsync = new ConcurrentLinkedQueue<>();
+
+    private static final int RETRY_COUNT = 3;
 
     /**
      * 提议一个值
@@ -20,7 +29,7 @@ public class Committer {
      * @return instanceId,commitResult
      */
     public Tuple<Long, CommitContext.CommitResult> propose(byte[] value) {
-        int retryCount = 3;
+        int retryCount = RETRY_COUNT;
         Tuple<Long, CommitContext.CommitResult> tuple = null;
         while (retryCount-- != 0) {
             tuple = proposeNotRetry(value);
@@ -31,14 +40,71 @@ public class Committer {
         return tuple;
     }
 
-    private synchronized Tuple<Long, CommitContext.CommitResult> proposeNotRetry(byte[] value) {
+    private Tuple<Long, CommitContext.CommitResult> proposeNotRetry(byte[] value) {
+        proposing.acquireUninterruptibly();
+        try {
+            CommitContext commitContext = new CommitContext();
+            commitContext.newCommit(value);
+            //通知有提交了
+            proposeCallback.accept(commitContext);
+            return commitContext.getResult();
+        } finally {
+            //同步提议完成之后也要轮到等待中的异步提议
+            proposing.release();
+            drainWaitingAsync();
+        }
+    }
+
+    /**
+     * 异步提议一个值，结果由事件循环完成，回调中不能阻塞
+     *
+     * @return instanceId,commitResult
+     */
+    public CompletableFuture<Tuple<Long, CommitContext.CommitResult>> proposeAsync(byte[] value) {
+        CompletableFuture<Tuple<Long, CommitContext.CommitResult>> result =
+                new CompletableFuture<>();
+        proposeAsync(value, RETRY_COUNT, result);
+        return result;
+    }
+
+    private void proposeAsync(byte[] value, int retryCount,
+                              CompletableFuture<Tuple<Long, CommitContext.CommitResult>> result) {
+        waitingAsync.offer(() -> submitAsync(value, retryCount, result));
+        drainWaitingAsync();
+    }
+
+    private void submitAsync(byte[] value, int retryCount,
+                             CompletableFuture<Tuple<Long, CommitContext.CommitResult>> result) {
+        CommitContext commitContext = new CommitContext();
         commitContext.newCommit(value);
-        //通知有提交了
-        proposeCallback.accept(value);
-        return commitContext.getResult();
+        commitContext.getFuture().whenComplete((tuple, ex) -> {
+            proposing.release();
+            drainWaitingAsync();
+            if (ex != null)
+                result.completeExceptionally(ex);
+            else if (tuple.getSecond() == CommitContext.CommitResult.Conflict && retryCount > 1)
+                proposeAsync(value, retryCount - 1, result);
+            else
+                result.complete(tuple);
+        });
+        proposeCallback.accept(commitContext);
+    }
+
+    /**
+     * 每次放入等待的提议和每次提议完成之后都会调用，不会有提议一直等待
+     */
+    private void drainWaitingAsync() {
+        while (!waitingAsync.isEmpty() && proposing.tryAcquire()) {
+            Runnable submit = waitingAsync.poll();
+            if (submit == null) {
+                proposing.release();
+                continue;
+            }
+            submit.run();
+        }
     }
 
-    public void setProposeCallback(Consumer<byte[]>proposeCallback){
+    public void setProposeCallback(Consumer<CommitContext> proposeCallback) {
         this.proposeCallback = proposeCallback;
     }
 }
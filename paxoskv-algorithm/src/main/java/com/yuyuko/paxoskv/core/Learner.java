@@ -89,6 +89,20 @@ public class Learner extends Base {
         }
     }
 
+    /**
+     * @return 距离下一次askForLearn的tick数
+     */
+    long ticksToNextTimeout() {
+        return Math.max(1, askForLearnTimeout - askForLearnElapsed);
+    }
+
+    /**
+     * 跳过ticks个不会触发超时的tick，ticks必须小于ticksToNextTimeout
+     */
+    void skipTicks(long ticks) {
+        askForLearnElapsed += ticks;
+    }
+
     private void resetAskForLearn() {
         askForLearnElapsed = 0;
         askForLearnTimeout =
@@ -114,10 +128,24 @@ public class Learner extends Base {
         PaxosMessage.Builder builder = PaxosMessage.builder()
                 .instanceId(instanceId)
                 .nodeId(config.getNodeId())
+                .minChosenInstanceId(paxosLog.minChosenInstanceId())
                 .type(PaxosMessage.PaxosMessageType.AskForLearn);
         broadcastMessage(builder);
     }
 
+    /**
+     * 学完一块之后向同一个节点拉取下一块，同时只有一块在途
+     */
+    private void askForLearn(long toNodeId, long fromInstanceId) {
+        PaxosMessage.Builder builder = PaxosMessage.builder()
+                .instanceId(fromInstanceId)
+                .nodeId(config.getNodeId())
+                .toNodeId(toNodeId)
+                .minChosenInstanceId(paxosLog.minChosenInstanceId())
+                .type(PaxosMessage.PaxosMessageType.AskForLearn);
+        sendMessage(builder);
+    }
+
 
     public void onAskForLearn(PaxosMessage m) {
         if (m.getNodeId() == config.getNodeId())
@@ -127,9 +155,22 @@ public class Learner extends Base {
         if (m.getInstanceId() >= instanceId) {
             return;
         }
+        // 需要的值已经被快照压缩，让对方通过快照追赶
+        if (m.getInstanceId() < paxosLog.minChosenInstanceId()) {
+            log.info("[Offer Snapshot] toNodeId {}, from instanceId {}, minChosenInstanceId {}",
+                    m.getNodeId(), m.getInstanceId(), paxosLog.minChosenInstanceId());
+            sendMessage(PaxosMessage.builder()
+                    .type(PaxosMessage.PaxosMessageType.SnapshotOffer)
+                    .instanceId(m.getInstanceId())
+                    .toNodeId(m.getNodeId())
+                    .nodeId(config.getNodeId())
+                    .minChosenInstanceId(paxosLog.minChosenInstanceId()));
+            return;
+        }
         List<ChosenValue> learnValues;
         try {
-            learnValues = paxosLog.listAcceptedValuesFrom(m.getInstanceId());
+            learnValues = paxosLog.listAcceptedValuesFrom(m.getInstanceId(),
+                    config.getLearnChunkMaxBytes());
         } catch (DataNotFoundException ex) {
             log.debug("[Ask For Learn Data Not Found] from instanceId {}", m.getInstanceId());
             return;
@@ -147,6 +188,8 @@ public class Learner extends Base {
                 .instanceId(learnInstanceId)
                 .toNodeId(toNodeId)
                 .nodeId(config.getNodeId())
+                .nowInstanceId(instanceId)
+                .minChosenInstanceId(paxosLog.minChosenInstanceId())
                 .learnedValues(chosenValues);
         sendMessage(builder);
     }
@@ -165,12 +208,17 @@ public class Learner extends Base {
         if (Utils.isEmpty(m.getLearnedValues()))
             return instanceId;
 
+        setSeenHighestInstanceId(m.getNowInstanceId(), m.getNodeId());
+
         ChosenValue maxLearnValue = paxosLog.maybeAppend(m.getLearnedValues(), instanceId);
 
         if (maxLearnValue.getInstanceId() >= instanceId) {
             log.info("[Learn Success], learn from node[{}], learn from instanceId[{}] to " +
                     "instanceId[{}]", m.getNodeId(), instanceId, maxLearnValue.getInstanceId());
             learnValue(maxLearnValue.getAcceptedValue());
+            // 对方还有更多的值，立刻拉取下一块，不用等askForLearn超时
+            if (maxLearnValue.getInstanceId() + 1 < m.getNowInstanceId())
+                askForLearn(m.getNodeId(), maxLearnValue.getInstanceId() + 1);
         } else {
             log.debug("[Learn Ignore], ignore learnValues from node[{}]", m.getNodeId());
         }
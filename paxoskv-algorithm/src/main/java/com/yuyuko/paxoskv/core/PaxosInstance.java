@@ -1,12 +1,17 @@
 package com.yuyuko.paxoskv.core;
 
 import com.yuyuko.paxoskv.core.node.Config;
+import com.yuyuko.paxoskv.core.storage.DataNotFoundException;
 import com.yuyuko.paxoskv.core.storage.PaxosLog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class PaxosInstance {
     private static final Logger log = LoggerFactory.getLogger(PaxosInstance.class);
@@ -21,7 +26,56 @@ public class PaxosInstance {
 
     private final Committer committer;
 
-    private final CommitContext commitContext;
+    private final BatchCommitter batchCommitter;
+
+    /**
+     * 正在投票的本地提议，没有时为null
+     */
+    private CommitContext commitContext;
+
+    /**
+     * 等待投票的提议，包括等待学习到最新实例的本地提议和其他节点转发过来的提议
+     */
+    private final Deque<CommitContext> pendingCommits = new ArrayDeque<>();
+
+    /**
+     * 其他节点转发过来的提议，不会再次转发
+     */
+    private final Set<CommitContext> remoteCommits = new HashSet<>();
+
+    /**
+     * 已经发起投票或者转发给master、等待学习结果的提议
+     */
+    private final CommitRegistry commitRegistry = new CommitRegistry();
+
+    /**
+     * 等待确认的读，当前一轮结束后一起发起下一轮
+     */
+    private final List<ReadIndexContext> pendingReads = new ArrayList<>();
+
+    /**
+     * 正在向多数派确认的一轮读，没有时为null
+     */
+    private ReadIndexRound readRound;
+
+    private long nextReadId;
+
+    private static class ReadIndexRound {
+        private final long readId;
+
+        private final List<ReadIndexContext> reads;
+
+        private final Set<Long> repliedNodeIds = new HashSet<>();
+
+        private long readIndex = -1;
+
+        private long elapsed;
+
+        ReadIndexRound(long readId, List<ReadIndexContext> reads) {
+            this.readId = readId;
+            this.reads = reads;
+        }
+    }
 
     private final PaxosLog paxosLog;
 
@@ -32,25 +86,179 @@ public class PaxosInstance {
         this.acceptor = new Acceptor(this, config, paxosLog);
         this.learner = new Learner(this, config, acceptor, paxosLog);
         this.proposer = new Proposer(this, config, learner);
-        this.commitContext = new CommitContext();
-        this.committer = new Committer(commitContext);
+        this.committer = new Committer();
+        this.batchCommitter = new BatchCommitter(committer, config);
 
         init();
     }
 
 
-    public void propose(byte[] value) {
+    public void propose(CommitContext commitContext) {
         if (!commitContext.isNewCommit())
             return;
+        pendingCommits.addLast(commitContext);
+        proposeNext();
+    }
+
+    /**
+     * 当前没有正在投票的提议时，取出下一个等待的提议发起投票
+     */
+    private void proposeNext() {
+        if (hasOtherMaster()) {
+            forwardPendingCommits();
+            return;
+        }
+        if (commitContext != null || pendingCommits.isEmpty())
+            return;
         if (!learner.hasLatestInstanceId())
             return;
-        commitContext.startCommit(proposer.getInstanceId());
-        proposer.propose(value);
+        commitContext = pendingCommits.pollFirst();
+        remoteCommits.remove(commitContext);
+        commitRegistry.register(proposer.getInstanceId(), commitContext);
+        proposer.propose(commitContext.getValue());
+    }
+
+    /**
+     * 有其他节点持有master租约时，本地的提议转发给master，由master跳过prepare直接accept
+     */
+    private void forwardPendingCommits() {
+        long masterNodeId = acceptor.getMasterNodeId();
+        while (!pendingCommits.isEmpty()) {
+            CommitContext pending = pendingCommits.pollFirst();
+            if (remoteCommits.remove(pending)) {
+                log.debug("[Drop Forwarded Propose] not master, masterNodeId {}", masterNodeId);
+                continue;
+            }
+            commitRegistry.registerForwarded(pending, config.getForwardProposeTimeout());
+            proposer.sendMessage(PaxosMessage.builder()
+                    .type(PaxosMessage.PaxosMessageType.ForwardPropose)
+                    .nodeId(config.getNodeId())
+                    .toNodeId(masterNodeId)
+                    .value(pending.getValue()));
+        }
+    }
+
+    private void onForwardPropose(PaxosMessage m) {
+        if (hasOtherMaster()) {
+            log.debug("[Ignore Forward Propose] from node {}, masterNodeId {}", m.getNodeId(),
+                    acceptor.getMasterNodeId());
+            return;
+        }
+        CommitContext remoteCommit = new CommitContext();
+        remoteCommit.newCommit(m.getValue());
+        remoteCommits.add(remoteCommit);
+        pendingCommits.addLast(remoteCommit);
+        proposeNext();
     }
 
     public void tick() {
+        acceptor.tick();
         proposer.tick();
         learner.tick();
+        commitRegistry.tick();
+        tickReadRound();
+        proposeNext();
+    }
+
+    /**
+     * 一次推进多个tick，node内部的计时器按实际经过的时间调用
+     * 最近的超时之前的tick不会触发任何事件，只推进计数，只有会超时的tick逐个执行
+     */
+    public void tick(long ticks) {
+        while (ticks > 0) {
+            long quiet = Math.min(ticks, ticksToNextTimeout()) - 1;
+            if (quiet > 0) {
+                acceptor.skipTicks(quiet);
+                proposer.skipTicks(quiet);
+                learner.skipTicks(quiet);
+                commitRegistry.skipTicks(quiet);
+                if (readRound != null)
+                    readRound.elapsed += quiet;
+                ticks -= quiet;
+            }
+            tick();
+            ticks--;
+        }
+    }
+
+    /**
+     * 在这之前不会有超时发生，node内部的计时器睡到这个时候再tick
+     *
+     * @return 距离最近一次超时的tick数，没有超时时为Long.MAX_VALUE
+     */
+    public long ticksToNextTimeout() {
+        long ticks = Math.min(acceptor.ticksToNextTimeout(),
+                Math.min(proposer.ticksToNextTimeout(), learner.ticksToNextTimeout()));
+        ticks = Math.min(ticks, commitRegistry.ticksToNextTimeout());
+        if (readRound != null)
+            ticks = Math.min(ticks, Math.max(1, config.getReadIndexTimeout() - readRound.elapsed));
+        return ticks;
+    }
+
+    /**
+     * 持有多数派授予的master租约时只有本节点能让值被选中，直接使用本地的instanceId；
+     * 否则向多数派确认可能已经被选中的最大实例，多个读共用一轮
+     */
+    public void readIndex(ReadIndexContext readIndexContext) {
+        if (isMaster()) {
+            readIndexContext.setResult(acceptor.getInstanceId() - 1);
+            return;
+        }
+        pendingReads.add(readIndexContext);
+        startReadRound();
+    }
+
+    private void startReadRound() {
+        if (readRound != null || pendingReads.isEmpty())
+            return;
+        readRound = new ReadIndexRound(++nextReadId, new ArrayList<>(pendingReads));
+        pendingReads.clear();
+        proposer.broadcastMessage(PaxosMessage.builder()
+                .type(PaxosMessage.PaxosMessageType.ReadIndex)
+                .nodeId(config.getNodeId())
+                .readId(readRound.readId));
+    }
+
+    /**
+     * 被选中的值一定被多数派accept过，所以当前实例accept过值时它就可能已经被选中
+     */
+    private void onReadIndex(PaxosMessage m) {
+        long readIndex = acceptor.getAccepted().isEmpty() ? acceptor.getInstanceId() - 1 :
+                acceptor.getInstanceId();
+        acceptor.sendMessage(PaxosMessage.builder()
+                .type(PaxosMessage.PaxosMessageType.ReadIndexReply)
+                .nodeId(config.getNodeId())
+                .toNodeId(m.getNodeId())
+                .readId(m.getReadId())
+                .nowInstanceId(readIndex));
+    }
+
+    private void onReadIndexReply(PaxosMessage m) {
+        if (readRound == null || m.getReadId() != readRound.readId)
+            return;
+        readRound.repliedNodeIds.add(m.getNodeId());
+        readRound.readIndex = Math.max(readRound.readIndex, m.getNowInstanceId());
+        if (readRound.repliedNodeIds.size() < config.quorum())
+            return;
+        for (ReadIndexContext read : readRound.reads)
+            read.setResult(readRound.readIndex);
+        readRound = null;
+        startReadRound();
+    }
+
+    private void tickReadRound() {
+        if (readRound == null || ++readRound.elapsed < config.getReadIndexTimeout())
+            return;
+        log.info("[ReadIndex Timeout] readId {}, replied {}", readRound.readId,
+                readRound.repliedNodeIds);
+        readRound.reads.forEach(ReadIndexContext::setTimeout);
+        readRound = null;
+        startReadRound();
+    }
+
+    private boolean hasOtherMaster() {
+        long masterNodeId = acceptor.getMasterNodeId();
+        return masterNodeId != 0 && masterNodeId != config.getNodeId();
     }
 
     public void step(PaxosMessage m) {
@@ -72,6 +280,15 @@ public class PaxosInstance {
             case ProposerSendSuccess:
                 stepLearner(m);
                 break;
+            case ForwardPropose:
+                onForwardPropose(m);
+                break;
+            case ReadIndex:
+                onReadIndex(m);
+                break;
+            case ReadIndexReply:
+                onReadIndexReply(m);
+                break;
         }
     }
 
@@ -105,9 +322,26 @@ public class PaxosInstance {
                     acceptor.onAccept(m);
                     break;
             }
+            yieldToMaster();
         }
     }
 
+    /**
+     * acceptor授予了其他节点master租约，放弃本地的prepare，连同等待的提议一起转发给master
+     * master只在收到prepare或accept时出现，在这里检查，不需要每个tick轮询
+     */
+    private void yieldToMaster() {
+        if (!hasOtherMaster())
+            return;
+        if (commitContext != null && proposer.isPreparing()) {
+            proposer.cancelPrepare();
+            commitRegistry.unregister(commitContext);
+            pendingCommits.addFirst(commitContext);
+            commitContext = null;
+        }
+        proposeNext();
+    }
+
     void newInstance() {
         acceptor.newInstance();
         learner.newInstance();
@@ -128,8 +362,10 @@ public class PaxosInstance {
                 break;
         }
         if (learner.isLearned()) {
-            commitContext.setResult(CommitContext.CommitResult.OK, learner.getInstanceId(),
-                    learner.getLearnedValue());
+            long learnFromInstanceId = learner.getInstanceId();
+            // 逐个学习时直接使用学习到的值，一次学习多个时从log中读取
+            byte[] learnedValue = m.getType() == PaxosMessage.PaxosMessageType.SendLearnValue ?
+                    null : learner.getLearnedValue();
             if (m.getType() == PaxosMessage.PaxosMessageType.SendLearnValue) {
                 //如果获得了学习了多个值
                 if (learner.getInstanceId() <= maxInstanceId) {
@@ -152,7 +388,43 @@ public class PaxosInstance {
                         acceptor.getInstanceId(),
                         learner.getInstanceId());
             }
+            commitRegistry.learned(learnFromInstanceId, learner.getInstanceId(),
+                    instanceId -> instanceId == learnFromInstanceId && learnedValue != null ?
+                            learnedValue : readChosenValue(instanceId));
+            if (commitContext != null && commitContext.isCommitEnd())
+                commitContext = null;
+            proposeNext();
+        }
+    }
+
+    private byte[] readChosenValue(long instanceId) {
+        try {
+            return paxosLog.readChosenValue(instanceId).getAcceptedValue();
+        } catch (DataNotFoundException ex) {
+            log.debug("[Chosen Value Not Found] instanceId {}", instanceId);
+            return null;
+        }
+    }
+
+    /**
+     * 应用层安装快照之后调用，chosenValue是快照的最后一个实例，已经通过Storage.reset写入，
+     * 从快照的下一个实例继续
+     */
+    public void installSnapshot(ChosenValue chosenValue) {
+        if (chosenValue.getInstanceId() < acceptor.getInstanceId()) {
+            log.info("[Ignore Snapshot] snapshot instanceId {}, now instanceId {}",
+                    chosenValue.getInstanceId(), acceptor.getInstanceId());
+            return;
         }
+        paxosLog.reset();
+        init();
+        newInstance();
+        // 正在投票的提议所在的实例已经被快照覆盖，值可能已经被chosen，结果未知，不能重试
+        commitRegistry.abortLocal(CommitContext.CommitResult.Timeout);
+        commitContext = null;
+        log.info("[Install Snapshot] Node Id {}, new instanceId {}", config.getNodeId(),
+                acceptor.getInstanceId());
+        proposeNext();
     }
 
     public void init() {
@@ -168,6 +440,10 @@ public class PaxosInstance {
         return committer;
     }
 
+    public BatchCommitter getBatchCommitter() {
+        return batchCommitter;
+    }
+
     public Acceptor getAcceptor() {
         return acceptor;
     }
@@ -184,6 +460,19 @@ public class PaxosInstance {
         return config;
     }
 
+    /**
+     * @return 没有master或者本节点还没有得到多数派的租约时为0
+     */
+    public long getMasterNodeId() {
+        if (isMaster())
+            return config.getNodeId();
+        return hasOtherMaster() ? acceptor.getMasterNodeId() : 0;
+    }
+
+    public boolean isMaster() {
+        return proposer.hasLease();
+    }
+
     public long nowInstanceId() {
         return acceptor.getInstanceId();
     }
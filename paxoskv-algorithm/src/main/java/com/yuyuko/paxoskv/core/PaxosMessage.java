@@ -18,6 +18,9 @@ public class PaxosMessage {
 
     private long proposalNodeId;
 
+    /**
+     * 值交给paxos之后不再修改，广播的消息、unstable和发送时共享同一个数组，不做拷贝
+     */
     private byte[] value;
 
     private long preAcceptId;
@@ -30,6 +33,26 @@ public class PaxosMessage {
 
     private long minChosenInstanceId;
 
+    /**
+     * SnapshotChunk在快照中的偏移量
+     */
+    private long snapshotOffset;
+
+    /**
+     * 快照编码后的总长度
+     */
+    private long snapshotSize;
+
+    /**
+     * ReadIndex和ReadIndexReply所属的一轮确认
+     */
+    private long readId;
+
+    /**
+     * 消息所属的paxos group
+     */
+    private int groupId;
+
     private List<ChosenValue> learnedValues;
 
     public enum PaxosMessageType {
@@ -40,6 +63,18 @@ public class PaxosMessage {
         AskForLearn,
         SendLearnValue,
         ProposerSendSuccess,
+        ForwardPropose,
+        /**
+         * 请求的实例已经被compact，提示对方通过快照追赶
+         */
+        SnapshotOffer,
+        AskForSnapshot,
+        SnapshotChunk,
+        ReadIndex,
+        /**
+         * nowInstanceId是应答方可能已经被选中的最大实例
+         */
+        ReadIndexReply,
     }
 
     public static Builder builder() {
@@ -81,6 +116,11 @@ public class PaxosMessage {
             return this;
         }
 
+        public Builder proposalNodeId(long proposalNodeId) {
+            message.proposalNodeId = proposalNodeId;
+            return this;
+        }
+
         public Builder value(byte[] value) {
             message.value = value;
             return this;
@@ -106,6 +146,36 @@ public class PaxosMessage {
             return this;
         }
 
+        public Builder nowInstanceId(long nowInstanceId) {
+            message.nowInstanceId = nowInstanceId;
+            return this;
+        }
+
+        public Builder minChosenInstanceId(long minChosenInstanceId) {
+            message.minChosenInstanceId = minChosenInstanceId;
+            return this;
+        }
+
+        public Builder snapshotOffset(long snapshotOffset) {
+            message.snapshotOffset = snapshotOffset;
+            return this;
+        }
+
+        public Builder snapshotSize(long snapshotSize) {
+            message.snapshotSize = snapshotSize;
+            return this;
+        }
+
+        public Builder readId(long readId) {
+            message.readId = readId;
+            return this;
+        }
+
+        public Builder groupId(int groupId) {
+            message.groupId = groupId;
+            return this;
+        }
+
 
 
         public PaxosMessage build() {
@@ -137,6 +207,10 @@ public class PaxosMessage {
         return preAcceptId;
     }
 
+    public long getProposalNodeId() {
+        return proposalNodeId;
+    }
+
     public long getPreAcceptNodeId() {
         return preAcceptNodeId;
     }
@@ -153,6 +227,30 @@ public class PaxosMessage {
         return toNodeId;
     }
 
+    public long getNowInstanceId() {
+        return nowInstanceId;
+    }
+
+    public long getMinChosenInstanceId() {
+        return minChosenInstanceId;
+    }
+
+    public long getSnapshotOffset() {
+        return snapshotOffset;
+    }
+
+    public long getSnapshotSize() {
+        return snapshotSize;
+    }
+
+    public long getReadId() {
+        return readId;
+    }
+
+    public int getGroupId() {
+        return groupId;
+    }
+
     public PaxosMessage copy() {
         PaxosMessage message = new PaxosMessage();
         message.type = type;
@@ -163,12 +261,16 @@ public class PaxosMessage {
         message.proposalNodeId = proposalNodeId;
         //防止内存泄漏
         message.learnedValues = learnedValues == null ? null : new ArrayList<>(learnedValues);
-        message.value = value == null ? null : value.clone();
+        message.value = value;
         message.preAcceptId = preAcceptId;
         message.preAcceptNodeId = preAcceptNodeId;
         message.rejectByPromiseId = rejectByPromiseId;
         message.nowInstanceId = nowInstanceId;
         message.minChosenInstanceId = minChosenInstanceId;
+        message.snapshotOffset = snapshotOffset;
+        message.snapshotSize = snapshotSize;
+        message.readId = readId;
+        message.groupId = groupId;
         return message;
     }
 
@@ -187,6 +289,10 @@ public class PaxosMessage {
                 rejectByPromiseId == that.rejectByPromiseId &&
                 nowInstanceId == that.nowInstanceId &&
                 minChosenInstanceId == that.minChosenInstanceId &&
+                snapshotOffset == that.snapshotOffset &&
+                snapshotSize == that.snapshotSize &&
+                readId == that.readId &&
+                groupId == that.groupId &&
                 type == that.type &&
                 Arrays.equals(value, that.value) &&
                 Objects.equals(learnedValues, that.learnedValues);
@@ -207,6 +313,10 @@ public class PaxosMessage {
                 ", rejectByPromiseId=" + rejectByPromiseId +
                 ", nowInstanceId=" + nowInstanceId +
                 ", minChosenInstanceId=" + minChosenInstanceId +
+                ", snapshotOffset=" + snapshotOffset +
+                ", snapshotSize=" + snapshotSize +
+                ", readId=" + readId +
+                ", groupId=" + groupId +
                 '}';
     }
 }
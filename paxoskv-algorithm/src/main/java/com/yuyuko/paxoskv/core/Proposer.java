@@ -39,6 +39,21 @@ public class Proposer extends Base {
 
     private boolean wasRejectedBySomeone;
 
+    /**
+     * proposer自己的时钟，每个tick加1
+     */
+    private long now;
+
+    /**
+     * 当前一轮prepare或accept发出的时间，acceptor在这之后才会授予租约
+     */
+    private long roundStart;
+
+    /**
+     * 多数派授予的master租约到期的时间，没有租约时为-1
+     */
+    private long leaseExpire = -1;
+
     private final Learner learner;
 
     public Proposer(PaxosInstance instance, Config config, Learner learner) {
@@ -114,6 +129,17 @@ public class Proposer extends Base {
         prepareElapsed = 0;
     }
 
+    /**
+     * 放弃正在进行的prepare，此时还没有发出accept，不会产生被选中的值
+     */
+    void cancelPrepare() {
+        if (!isPreparing)
+            return;
+        log.debug("[Cancel Prepare] instanceId[{}],proposalId[{}]", instanceId, proposalId);
+        exitPrepare();
+        value = null;
+    }
+
     /**
      * 提议一个值
      *
@@ -145,6 +171,7 @@ public class Proposer extends Base {
                 .proposalId(proposalId)
                 .value(value);
         messageCounter.startNewRound();
+        roundStart = now;
 
         addAcceptTimer(0);
 
@@ -188,9 +215,11 @@ public class Proposer extends Base {
             messageCounter.addReject(paxosMessage.getNodeId());
             wasRejectedBySomeone = true;
             setHighestOtherProposalId(paxosMessage.getRejectByPromiseId());
+            loseLease();
         }
         if (messageCounter.passThisRound()) {
             exitAccept();
+            renewLease();
             // 通过learn学习新提交成功的值
             learner.proposeSuccess(instanceId, proposalId);
         } else if (messageCounter.rejectThisRound() || messageCounter.receiveAllThisRound()) {
@@ -227,6 +256,7 @@ public class Proposer extends Base {
                 .proposalId(proposalId);
 
         messageCounter.startNewRound();
+        roundStart = now;
 
         addPrepareTimer(0);
 
@@ -262,9 +292,11 @@ public class Proposer extends Base {
             messageCounter.addReject(paxosMessage.getNodeId());
             wasRejectedBySomeone = true;
             setHighestOtherProposalId(paxosMessage.getRejectByPromiseId());
+            loseLease();
         }
         if (messageCounter.passThisRound()) {
             canSkipPrepare = true;
+            renewLease();
             log.debug("[Prepare Pass] instanceId[{}],proposalId[{}]. start accept", instanceId,
                     proposalId);
             accept();
@@ -295,7 +327,35 @@ public class Proposer extends Base {
         proposalId = Math.max(proposalId, highestOtherProposalId) + 1;
     }
 
+    /**
+     * 多数派通过了这一轮prepare或accept，它们在roundStart之后授予了租约，
+     * 租约内不会再通过其他节点的prepare，只有本节点能让值被选中
+     */
+    private void renewLease() {
+        if (config.getMasterLeaseTimeout() <= 0)
+            return;
+        leaseExpire = roundStart + config.getMasterLeaseTimeout()
+                - config.getMasterLeaseClockDrift();
+    }
+
+    /**
+     * 被拒绝说明有acceptor没有把租约给本节点，不再确定租约
+     */
+    private void loseLease() {
+        leaseExpire = -1;
+    }
+
+    /**
+     * 本地acceptor在本节点自己的prepare通过时也会记录本节点为master，不能作为依据
+     *
+     * @return 是否持有多数派授予的master租约
+     */
+    boolean hasLease() {
+        return now < leaseExpire;
+    }
+
     public void tick() {
+        ++now;
         if (isPreparing) {
             ++prepareElapsed;
             if (instanceId != timeoutInstanceId) {
@@ -325,6 +385,32 @@ public class Proposer extends Base {
         }
     }
 
+    /**
+     * @return 距离prepare或accept超时的tick数，没有进行中的提议时为Long.MAX_VALUE
+     */
+    long ticksToNextTimeout() {
+        if (!isPreparing && !isAccepting)
+            return Long.MAX_VALUE;
+        if (instanceId != timeoutInstanceId)
+            return 1;
+        if (isPreparing)
+            return Math.max(1, prepareTimeout - prepareElapsed);
+        return Math.max(1, acceptTimeout - acceptElapsed);
+    }
+
+    /**
+     * 跳过ticks个不会触发超时的tick，ticks必须小于ticksToNextTimeout
+     */
+    void skipTicks(long ticks) {
+        now += ticks;
+        if (instanceId != timeoutInstanceId)
+            return;
+        if (isPreparing)
+            prepareElapsed += ticks;
+        else if (isAccepting)
+            acceptElapsed += ticks;
+    }
+
     public void setProposalId(long proposalId) {
         this.proposalId = proposalId;
     }
@@ -0,0 +1,66 @@
+package com.yuyuko.paxoskv.core;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 一次线性一致读，等待事件循环确认最新的实例
+ */
+public class ReadIndexContext {
+    private long readIndex;
+
+    private boolean isEnd;
+
+    private boolean isTimeout;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition end = lock.newCondition();
+
+    /**
+     * @param readIndex 读之前需要apply到的instanceId
+     */
+    public void setResult(long readIndex) {
+        lock.lock();
+        try {
+            if (isEnd)
+                return;
+            this.readIndex = readIndex;
+            isEnd = true;
+            end.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setTimeout() {
+        lock.lock();
+        try {
+            if (isEnd)
+                return;
+            isTimeout = true;
+            isEnd = true;
+            end.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 需要apply到的instanceId，超时时为null
+     */
+    public Long getResult() {
+        lock.lock();
+        try {
+            while (!isEnd)
+                end.awaitUninterruptibly();
+            return isTimeout ? null : readIndex;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEnd() {
+        return isEnd;
+    }
+}
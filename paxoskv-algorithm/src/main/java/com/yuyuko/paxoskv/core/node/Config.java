@@ -7,6 +7,11 @@ import java.util.List;
 public class Config {
     private long nodeId;
 
+    /**
+     * 所属的paxos group，同一个进程中的多个group相互独立，各自有一个事件循环
+     */
+    private int groupId;
+
     private int nodeCount;
 
     private List<NodeInfo> nodeInfoList;
@@ -23,6 +28,48 @@ public class Config {
 
     private long restartAcceptTimeout = 30;
 
+    /**
+     * 为true时node按最近的超时时间自己驱动tick，1个tick为1ms，应用层不需要再调用tick
+     */
+    private boolean internalTick;
+
+    /**
+     * 是否将并发的提议打包成一个值提交，打开后学习到的值都是BatchValue格式
+     * 同一时刻只有一个实例在投票，并发的提议打包到一个实例中提高吞吐
+     */
+    private boolean batchPropose;
+
+    private long batchProposeMaxDelayMicros = 500;
+
+    private int batchProposeMaxBytes = 256 * 1024;
+
+    /**
+     * master租约时长，租约内acceptor拒绝其他节点的prepare，其他节点的提议转发给master
+     * 为0时不选举master
+     */
+    private long masterLeaseTimeout = 5000;
+
+    /**
+     * 节点之间计时的最大偏差，proposer从发出prepare或accept开始计时，
+     * 认为自己持有的租约比acceptor授予的短这么多tick，为了租约内直接读本地数据
+     */
+    private long masterLeaseClockDrift = 500;
+
+    /**
+     * 转发给master的提议等待被学习的超时时间
+     */
+    private long forwardProposeTimeout = 3000;
+
+    /**
+     * 一个SendLearnValue中value的总长度上限，落后的节点学完一块再拉取下一块
+     */
+    private int learnChunkMaxBytes = 1024 * 1024;
+
+    /**
+     * 一轮ReadIndex等待多数派应答的超时时间
+     */
+    private long readIndexTimeout = 1000;
+
     public int quorum() {
         return nodeCount / 2 + 1;
     }
@@ -32,6 +79,10 @@ public class Config {
         return nodeId;
     }
 
+    public int getGroupId() {
+        return groupId;
+    }
+
     public int getNodeCount() {
         return nodeCount;
     }
@@ -64,10 +115,50 @@ public class Config {
         return restartAcceptTimeout;
     }
 
+    public boolean isInternalTick() {
+        return internalTick;
+    }
+
+    public boolean isBatchPropose() {
+        return batchPropose;
+    }
+
+    public long getBatchProposeMaxDelayMicros() {
+        return batchProposeMaxDelayMicros;
+    }
+
+    public int getBatchProposeMaxBytes() {
+        return batchProposeMaxBytes;
+    }
+
+    public long getMasterLeaseTimeout() {
+        return masterLeaseTimeout;
+    }
+
+    public long getMasterLeaseClockDrift() {
+        return masterLeaseClockDrift;
+    }
+
+    public long getForwardProposeTimeout() {
+        return forwardProposeTimeout;
+    }
+
+    public int getLearnChunkMaxBytes() {
+        return learnChunkMaxBytes;
+    }
+
+    public long getReadIndexTimeout() {
+        return readIndexTimeout;
+    }
+
     public void setNodeId(long nodeId) {
         this.nodeId = nodeId;
     }
 
+    public void setGroupId(int groupId) {
+        this.groupId = groupId;
+    }
+
     public void setNodeCount(int nodeCount) {
         this.nodeCount = nodeCount;
     }
@@ -99,4 +190,40 @@ public class Config {
     public void setRestartAcceptTimeout(long restartAcceptTimeout) {
         this.restartAcceptTimeout = restartAcceptTimeout;
     }
+
+    public void setInternalTick(boolean internalTick) {
+        this.internalTick = internalTick;
+    }
+
+    public void setBatchPropose(boolean batchPropose) {
+        this.batchPropose = batchPropose;
+    }
+
+    public void setBatchProposeMaxDelayMicros(long batchProposeMaxDelayMicros) {
+        this.batchProposeMaxDelayMicros = batchProposeMaxDelayMicros;
+    }
+
+    public void setBatchProposeMaxBytes(int batchProposeMaxBytes) {
+        this.batchProposeMaxBytes = batchProposeMaxBytes;
+    }
+
+    public void setMasterLeaseTimeout(long masterLeaseTimeout) {
+        this.masterLeaseTimeout = masterLeaseTimeout;
+    }
+
+    public void setMasterLeaseClockDrift(long masterLeaseClockDrift) {
+        this.masterLeaseClockDrift = masterLeaseClockDrift;
+    }
+
+    public void setForwardProposeTimeout(long forwardProposeTimeout) {
+        this.forwardProposeTimeout = forwardProposeTimeout;
+    }
+
+    public void setLearnChunkMaxBytes(int learnChunkMaxBytes) {
+        this.learnChunkMaxBytes = learnChunkMaxBytes;
+    }
+
+    public void setReadIndexTimeout(long readIndexTimeout) {
+        this.readIndexTimeout = readIndexTimeout;
+    }
 }
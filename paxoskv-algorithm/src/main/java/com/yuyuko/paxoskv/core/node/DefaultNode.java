@@ -1,38 +1,78 @@
 package com.yuyuko.paxoskv.core.node;
 
+import com.yuyuko.paxoskv.core.ChosenValue;
 import com.yuyuko.paxoskv.core.CommitContext;
 import com.yuyuko.paxoskv.core.PaxosException;
 import com.yuyuko.paxoskv.core.PaxosInstance;
 import com.yuyuko.paxoskv.core.PaxosMessage;
+import com.yuyuko.paxoskv.core.ReadIndexContext;
 import com.yuyuko.paxoskv.core.utils.Tuple;
 import com.yuyuko.paxoskv.core.utils.Utils;
 import com.yuyuko.selector.Channel;
-import com.yuyuko.selector.SelectionKey;
-import com.yuyuko.selector.Selector;
 
-import static com.yuyuko.selector.SelectionKey.read;
-import static com.yuyuko.selector.SelectionKey.write;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class DefaultNode implements Node {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 一次最多从inbox取出的事件数，剩下的下一轮再处理，让ready有机会发出去
+     */
+    private static final int MAX_DRAIN = 1024;
+
+    private static final Object TICK = new Object();
+
+    private static final Object TIMEOUT = new Object();
+
+    private static final Object ADVANCE = new Object();
+
+    /**
+     * 所有node共用，每个node最多只有一个待触发的唤醒
+     */
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "PaxosNodeTimer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * 消息、提议、读、tick、advance等输入都放进同一个队列，
+     * 事件循环没有事件时阻塞在这里，被唤醒后一次取出一批处理
+     */
+    private final Inbox inbox = new Inbox();
+
+    /**
+     * 容量为1，上一个ready被advance之前不会产生新的ready，写入不会阻塞
+     */
+    private final Channel<Ready> readyChan;
 
-    private final Channel<PaxosMessage> recvChan;
+    private final PaxosInstance paxosInstance;
 
-    private final Channel<Object> tickChan;
+    /**
+     * 已经发出ready，还在等应用调用advance通知处理完毕
+     */
+    private boolean awaitingAdvance;
 
-    private final Channel<byte[]> propChan;
+    /**
+     * 已经发出的ready中最后一个需要持久化的值，advance之后stable
+     */
+    private ChosenValue prevPersisted;
 
-    private final Channel<Ready> readyChan;
+    private long prevInstanceId = -1;
 
-    private final Channel<Object> advanceChan;
+    private ScheduledFuture<?> wakeup;
 
-    private final PaxosInstance paxosInstance;
+    private long wakeupDeadline = Long.MAX_VALUE;
+
+    private long lastTickNanos;
 
     private DefaultNode(PaxosInstance paxosInstance) {
-        recvChan = new Channel<>();
-        tickChan = new Channel<>(128);
-        propChan = new Channel<>();
-        readyChan = new Channel<>();
-        advanceChan = new Channel<>();
+        readyChan = new Channel<>(1);
         this.paxosInstance = paxosInstance;
     }
 
@@ -42,75 +82,127 @@ public class DefaultNode implements Node {
         paxosInstance.getCommitter().setProposeCallback(node::committerProposeCallback);
 
         Thread thread = new Thread(node::run);
-        thread.setName("PaxosNodeEventLoop");
+        thread.setName("PaxosNodeEventLoop-" + config.getGroupId());
         thread.start();
         return node;
     }
 
-    private void committerProposeCallback(byte[] data) {
-        propChan.write(data);
+    private void committerProposeCallback(CommitContext commitContext) {
+        enqueue(commitContext);
     }
 
+    private void enqueue(Object event) {
+        inbox.offer(event);
+    }
 
+    /**
+     * 每处理完一批事件检查一次ready，一批最多MAX_DRAIN个事件，让ready有机会发出去
+     */
     private void run() {
-        Channel<Ready> readyChan;
-        Channel<Object> advanceChan = null;
-        Long prevUnstableMinInstanceId = null;
-        long prevInstanceId = -1;
-        Ready rd = null;
+        boolean internalTick = paxosInstance.getConfig().isInternalTick();
+        lastTickNanos = System.nanoTime();
         while (true) {
-            if (advanceChan != null)
-                // advance channel不为空，说明还在等应用调用Advance接口通知已经处理完毕了本次的ready数据
-                readyChan = null;
-            else {
-                rd = new Ready(paxosInstance, prevInstanceId);
-                if (rd.containsUpdate())
-                    readyChan = this.readyChan;
-                else
-                    readyChan = null;
-            }
-            SelectionKey<?> key =
-                    Selector.open()
-                            .register(tickChan, read())
-                            .register(propChan, read())
-                            .register(recvChan, read())
-                            .register(readyChan, write(rd))
-                            .register(advanceChan, read())
-                            .select();
-            if (key.channel() == propChan) {
-                paxosInstance.propose(((byte[]) key.data()));
-            } else if (key.channel() == recvChan) {
-                paxosInstance.step(((PaxosMessage) key.data()));
-            } else if (key.channel() == tickChan) {
-                paxosInstance.tick();
-            } else if (key.channel() == readyChan) {
-                if (Utils.notEmpty(rd.getChosenValues())) {
-                    prevUnstableMinInstanceId =
-                            rd.getChosenValues().get(rd.getChosenValues().size() - 1).getInstanceId();
-                }
-                prevInstanceId = paxosInstance.nowInstanceId();
-                paxosInstance.clearMessages();
-                advanceChan = this.advanceChan;
-            } else if (key.channel() == advanceChan) {
-                if (prevUnstableMinInstanceId != null) {
-                    paxosInstance.getPaxosLog().stableTo(prevUnstableMinInstanceId);
-                    prevUnstableMinInstanceId = null;
-                }
-                advanceChan = null;
-            }
+            if (internalTick)
+                tickByClock();
+            if (!awaitingAdvance)
+                publishReady();
+            inbox.await();
+            inbox.drain(MAX_DRAIN, this::handle);
         }
     }
 
+    /**
+     * ready复制了要发送的消息和要持久化的值，发出之后就可以清除消息
+     */
+    private void publishReady() {
+        Ready rd = new Ready(paxosInstance, prevInstanceId);
+        if (!rd.containsUpdate())
+            return;
+        readyChan.write(rd);
+        if (Utils.notEmpty(rd.getChosenValues()))
+            prevPersisted = rd.getChosenValues().get(rd.getChosenValues().size() - 1);
+        prevInstanceId = paxosInstance.nowInstanceId();
+        paxosInstance.clearMessages();
+        awaitingAdvance = true;
+    }
+
+    private void advanced() {
+        if (prevPersisted != null) {
+            paxosInstance.getPaxosLog().stableTo(prevPersisted);
+            prevPersisted = null;
+        }
+        awaitingAdvance = false;
+    }
+
+    private void handle(Object event) {
+        if (event instanceof PaxosMessage)
+            paxosInstance.step((PaxosMessage) event);
+        else if (event instanceof CommitContext)
+            paxosInstance.propose((CommitContext) event);
+        else if (event instanceof ReadIndexContext)
+            paxosInstance.readIndex((ReadIndexContext) event);
+        else if (event instanceof ChosenValue)
+            paxosInstance.installSnapshot((ChosenValue) event);
+        else if (event == TICK)
+            paxosInstance.tick();
+        else if (event == TIMEOUT)
+            wakeupDeadline = Long.MAX_VALUE;
+        else if (event == ADVANCE)
+            advanced();
+        else
+            throw new PaxosException("unknown event " + event);
+    }
+
+    /**
+     * 按实际经过的时间推进tick，GC停顿之后也能一次补上，再按最近的超时时间安排下一次唤醒
+     * 空闲时只有askForLearn和master租约的超时，不会每个tick都唤醒
+     */
+    private void tickByClock() {
+        long elapsedTicks = (System.nanoTime() - lastTickNanos) / TICK_NANOS;
+        if (elapsedTicks > 0) {
+            paxosInstance.tick(elapsedTicks);
+            lastTickNanos += elapsedTicks * TICK_NANOS;
+        }
+        long ticks = paxosInstance.ticksToNextTimeout();
+        if (ticks == Long.MAX_VALUE)
+            return;
+        long deadline = lastTickNanos + ticks * TICK_NANOS;
+        // 已经安排的唤醒更早，到时再重新计算
+        if (deadline >= wakeupDeadline)
+            return;
+        if (wakeup != null)
+            wakeup.cancel(false);
+        wakeupDeadline = deadline;
+        wakeup = timer.schedule(() -> enqueue(TIMEOUT), deadline - System.nanoTime(),
+                TimeUnit.NANOSECONDS);
+    }
+
     @Override
     public void tick() {
-        tickChan.write(null);
+        enqueue(TICK);
     }
 
     @Override
     public Tuple<Long, CommitContext.CommitResult> propose(byte[] value) {
+        if (paxosInstance.getConfig().isBatchPropose())
+            return paxosInstance.getBatchCommitter().propose(value);
         return paxosInstance.getCommitter().propose(value);
     }
 
+    @Override
+    public CompletableFuture<Tuple<Long, CommitContext.CommitResult>> proposeAsync(byte[] value) {
+        if (paxosInstance.getConfig().isBatchPropose())
+            return paxosInstance.getBatchCommitter().proposeAsync(value);
+        return paxosInstance.getCommitter().proposeAsync(value);
+    }
+
+    @Override
+    public Long readIndex() {
+        ReadIndexContext readIndexContext = new ReadIndexContext();
+        enqueue(readIndexContext);
+        return readIndexContext.getResult();
+    }
+
     @Override
     public Channel<Ready> ready() {
         return readyChan;
@@ -118,7 +210,7 @@ public class DefaultNode implements Node {
 
     @Override
     public void step(PaxosMessage m) {
-        recvChan.write(m);
+        enqueue(m);
     }
 
     public PaxosInstance getPaxosInstance() {
@@ -127,6 +219,11 @@ public class DefaultNode implements Node {
 
     @Override
     public void advance() {
-        advanceChan.write(null);
+        enqueue(ADVANCE);
+    }
+
+    @Override
+    public void installSnapshot(ChosenValue chosenValue) {
+        enqueue(chosenValue);
     }
 }
@@ -0,0 +1,57 @@
+package com.yuyuko.paxoskv.core.node;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * 事件循环的输入队列，多个生产者（netty的io线程等）无锁放入，不会阻塞，
+ * 唯一的消费者没有事件时park，队列从空变为非空时由生产者unpark
+ */
+class Inbox {
+    private final Queue<Object> events = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 消费者park之前清除，生产者放入事件后只有第一个把它置为true的负责unpark
+     */
+    private final AtomicBoolean signalled = new AtomicBoolean();
+
+    private volatile Thread consumer;
+
+    void offer(Object event) {
+        events.offer(event);
+        if (signalled.compareAndSet(false, true)) {
+            Thread thread = consumer;
+            if (thread != null)
+                LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * 按放入的顺序最多取出max个事件交给handler
+     *
+     * @return 是否还有剩余的事件
+     */
+    boolean drain(int max, Consumer<Object> handler) {
+        Object event;
+        for (int i = 0; i < max && (event = events.poll()) != null; i++)
+            handler.accept(event);
+        return !events.isEmpty();
+    }
+
+    /**
+     * 阻塞到有事件为止，只能由消费者调用
+     * 先清除信号再检查队列，之后放入的事件会重新unpark，不会丢失唤醒
+     */
+    void await() {
+        consumer = Thread.currentThread();
+        while (events.isEmpty()) {
+            signalled.set(false);
+            if (!events.isEmpty())
+                return;
+            LockSupport.park(this);
+        }
+    }
+}
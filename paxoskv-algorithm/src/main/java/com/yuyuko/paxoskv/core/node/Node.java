@@ -1,24 +1,46 @@
 package com.yuyuko.paxoskv.core.node;
 
+import com.yuyuko.paxoskv.core.ChosenValue;
 import com.yuyuko.paxoskv.core.CommitContext;
 import com.yuyuko.paxoskv.core.PaxosMessage;
 import com.yuyuko.paxoskv.core.utils.Tuple;
 import com.yuyuko.selector.Channel;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface Node {
     /**
      * 应用层每次tick时需要调用该函数，将会由这里驱动paxos的一些操作比如learn等。
      * 至于tick的单位是多少由应用层自己决定，只要保证是恒定时间都会来调用一次就好了
+     * Config.internalTick打开时node按超时时间自己驱动tick，不需要调用
      */
     void tick();
 
     /**
      * 提议，阻塞的
+     * 打开批量提议时，多个并发的提议会被打包成一个BatchValue提交，返回相同的instanceId
      * @param value 提议的值
      * @return 提议成功时的instanceId与提议结果
      */
     Tuple<Long, CommitContext.CommitResult> propose(byte[] value);
 
+    /**
+     * 异步提议，不阻塞调用线程
+     * future由事件循环完成，回调中不能有阻塞的操作
+     *
+     * @param value 提议的值
+     * @return 提议成功时的instanceId与提议结果
+     */
+    CompletableFuture<Tuple<Long, CommitContext.CommitResult>> proposeAsync(byte[] value);
+
+    /**
+     * 线性一致读，阻塞的
+     * 并发的读共用一轮多数派确认，master在租约内直接使用本地的instanceId
+     *
+     * @return 读之前状态机需要apply到的instanceId，超时时为null
+     */
+    Long readIndex();
+
     /**
      * 这里是核心函数，将返回Ready的queue，应用层需要关注这个queue，当发生变更时将其中的数据进行操作
      *
@@ -37,4 +59,11 @@ public interface Node {
      * Advance函数是当使用者已经将上一次Ready数据处理之后，调用该函数告诉paxos可以进行下一步的操作
      */
     void advance();
+
+    /**
+     * 应用层安装了快照并通过Storage.reset写入快照的最后一个实例之后调用，paxos从下一个实例继续
+     *
+     * @param chosenValue 快照的最后一个实例
+     */
+    void installSnapshot(ChosenValue chosenValue);
 }
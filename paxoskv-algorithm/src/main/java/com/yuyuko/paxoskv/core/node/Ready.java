@@ -13,7 +13,7 @@ import java.util.List;
 public class Ready {
     private long instanceId = -1;
     /**
-     * 需要持久化的value
+     * 需要持久化的value，只有promise的记录也要在发送PrepareReply之前持久化
      */
     private final List<ChosenValue> chosenValues;
 
@@ -24,7 +24,7 @@ public class Ready {
 
     public Ready(PaxosInstance paxosInstance, long prevInstanceId) {
         chosenValues =
-                List.copyOf(paxosInstance.getPaxosLog().getUnstable().acceptedValues());
+                List.copyOf(paxosInstance.getPaxosLog().getUnstable().unstableValues());
         messages = List.copyOf(paxosInstance.getMessages());
 
         if (paxosInstance.nowInstanceId() != prevInstanceId)
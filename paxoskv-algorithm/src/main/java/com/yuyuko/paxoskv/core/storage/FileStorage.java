@@ -0,0 +1,589 @@
+package com.yuyuko.paxoskv.core.storage;
+
+import com.yuyuko.paxoskv.core.ChosenValue;
+import com.yuyuko.paxoskv.core.PaxosException;
+import com.yuyuko.paxoskv.core.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * 基于文件的Storage，chosenValue按顺序追加写入分段的日志文件
+ * 每条记录的格式为 [length][crc][instanceId][promiseId][promiseNodeId][acceptedId]
+ * [acceptedNodeId][valueLength][value]，crc覆盖length之后的内容
+ * 同一个instanceId可能写入多条记录，以最后一条为准
+ * 读取时通过mmap顺序扫描段文件，每个段只为部分instanceId保存偏移量(稀疏索引)
+ * 写入时文件预先扩展到段大小，只需要映射一次，滚动和关闭时截断到实际写入的长度
+ */
+public class FileStorage implements Storage {
+    private static final Logger log = LoggerFactory.getLogger(FileStorage.class);
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int HEADER_LENGTH = 8;
+
+    private static final int FIXED_PAYLOAD_LENGTH = 8 * 5 + 4;
+
+    /**
+     * 每隔多少个instanceId记录一次偏移量
+     */
+    static final int INDEX_INTERVAL = 64;
+
+    private final File dir;
+
+    private final long segmentBytes;
+
+    /**
+     * firstInstanceId -> Segment，后面的段中的记录覆盖前面的段
+     */
+    private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+
+    private long minInstanceId = -1;
+
+    private long maxInstanceId = -1;
+
+    /**
+     * 是否有append之后还没有sync的数据
+     */
+    private boolean dirty;
+
+    /**
+     * sync时持有，force不占用storage的锁，get、list不用等待fsync
+     * 同时只有一个sync，后来的sync返回时前一个force已经完成
+     */
+    private final Object syncLock = new Object();
+
+    public FileStorage(String dir) {
+        this(dir, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public FileStorage(String dir, long segmentBytes) {
+        this.dir = new File(dir);
+        this.segmentBytes = segmentBytes;
+        recover();
+    }
+
+    static class Segment {
+        private final File file;
+
+        private final FileChannel channel;
+
+        private final long firstInstanceId;
+
+        /**
+         * instanceId -> 该instanceId第一次出现时的偏移量
+         */
+        private final NavigableMap<Long, Long> sparseIndex = new TreeMap<>();
+
+        private long size;
+
+        /**
+         * 文件的长度，预分配之后大于size，之后的部分都是0
+         */
+        private long length;
+
+        /**
+         * 覆盖[0, length)的只读映射，只有写入超过预分配的长度时才重新映射
+         */
+        private MappedByteBuffer mapped;
+
+        private int mapCount;
+
+        Segment(File file, long firstInstanceId) throws IOException {
+            this.file = file;
+            this.firstInstanceId = firstInstanceId;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+            this.length = size;
+        }
+
+        /**
+         * 截断预分配的部分，之后这个段的文件长度就是记录的长度
+         */
+        void trim() throws IOException {
+            if (length == size)
+                return;
+            channel.truncate(size);
+            length = size;
+        }
+
+        void index(long instanceId, long offset) {
+            if (sparseIndex.isEmpty() || instanceId >= sparseIndex.lastKey() + INDEX_INTERVAL)
+                sparseIndex.put(instanceId, offset);
+        }
+
+        /**
+         * @return 从instanceId所在记录之前开始扫描的偏移量
+         */
+        long scanOffset(long instanceId) {
+            Map.Entry<Long, Long> entry = sparseIndex.floorEntry(instanceId);
+            return entry == null ? 0 : entry.getValue();
+        }
+
+        /**
+         * @return 覆盖[0, size)的只读视图
+         */
+        ByteBuffer view() throws IOException {
+            //截断之后映射可能比文件长，但只会访问[0, size)
+            if (mapped == null || mapped.capacity() < size) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                mapCount++;
+            }
+            ByteBuffer view = mapped.duplicate();
+            view.limit((int) size);
+            return view;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        long getFirstInstanceId() {
+            return firstInstanceId;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        NavigableMap<Long, Long> getSparseIndex() {
+            return sparseIndex;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        int getMapCount() {
+            return mapCount;
+        }
+    }
+
+    /**
+     * 启动时扫描所有的段文件重建索引，最后一个段末尾不完整的记录会被截断
+     */
+    private void recover() {
+        if (!dir.exists() && !dir.mkdirs())
+            throw new PaxosException("can not create storage dir " + dir);
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null)
+            throw new PaxosException("can not list storage dir " + dir);
+        Arrays.sort(files);
+        try {
+            for (int i = 0; i < files.length; i++) {
+                String name = files[i].getName();
+                Segment segment = new Segment(files[i],
+                        Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                segments.put(segment.firstInstanceId, segment);
+                long validSize = recoverSegment(segment);
+                if (validSize == segment.size)
+                    continue;
+                if (i != files.length - 1)
+                    throw new PaxosException("corrupted segment " + files[i]);
+                //没有正常关闭时末尾是预分配的0，否则是写了一半的记录
+                if (preallocatedTail(segment, validSize))
+                    log.info("[Trim Segment] {} from {} to {}", files[i], segment.size, validSize);
+                else
+                    log.warn("[Truncate Segment] {} from {} to {}", files[i], segment.size,
+                            validSize);
+                segment.channel.truncate(validSize);
+                segment.size = validSize;
+                segment.length = validSize;
+            }
+        } catch (IOException ex) {
+            throw new PaxosException(ex);
+        }
+        log.info("[FileStorage Recovered] dir {}, segments {}, instanceId [{}, {}]", dir,
+                segments.size(), minInstanceId, maxInstanceId);
+    }
+
+    /**
+     * 记录的长度不会是0，validSize处的长度为0说明之后没有开始写入的记录
+     */
+    private static boolean preallocatedTail(Segment segment, long validSize) throws IOException {
+        if (validSize + 4 > segment.size)
+            return false;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(segment.channel, length, validSize);
+        return length.getInt(0) == 0;
+    }
+
+    /**
+     * @return 段中完整有效的记录的长度
+     */
+    private long recoverSegment(Segment segment) throws IOException {
+        long pos = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (pos + HEADER_LENGTH <= segment.size) {
+            header.clear();
+            readFully(segment.channel, header, pos);
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (length < FIXED_PAYLOAD_LENGTH || pos + HEADER_LENGTH + length > segment.size)
+                return pos;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(segment.channel, payload, pos + HEADER_LENGTH);
+            if (crc(payload.array()) != crc)
+                return pos;
+            payload.flip();
+            long instanceId = payload.getLong();
+            index(segment, instanceId, pos);
+            pos += HEADER_LENGTH + length;
+        }
+        return pos;
+    }
+
+    /**
+     * 记录只会覆盖最后一个instanceId或者追加下一个instanceId
+     */
+    private void index(Segment segment, long instanceId, long offset) {
+        if (isEmpty()) {
+            minInstanceId = instanceId;
+        } else if (instanceId != maxInstanceId && instanceId != maxInstanceId + 1) {
+            log.error("[FileStorage Index Error] instanceId[{}], maxInstanceId[{}]", instanceId,
+                    maxInstanceId);
+            throw new PaxosException();
+        }
+        maxInstanceId = instanceId;
+        segment.index(instanceId, offset);
+    }
+
+    private boolean isEmpty() {
+        return maxInstanceId == -1;
+    }
+
+    @Override
+    public synchronized void append(List<ChosenValue> chosenValues) {
+        if (Utils.isEmpty(chosenValues))
+            return;
+        try {
+            for (ChosenValue chosenValue : chosenValues) {
+                long instanceId = chosenValue.getInstanceId();
+                //已经写入的实例只有最后一个还可能被修改
+                if (!isEmpty() && instanceId < maxInstanceId)
+                    continue;
+                if (!isEmpty() && instanceId > maxInstanceId + 1) {
+                    log.error("[FileStorage Append Error] maxInstanceId[{}], and appendValues " +
+                            "firstInstanceId[{}]", maxInstanceId, instanceId);
+                    throw new PaxosException();
+                }
+                write(chosenValue);
+            }
+        } catch (IOException ex) {
+            throw new PaxosException(ex);
+        }
+    }
+
+    private void write(ChosenValue chosenValue) throws IOException {
+        Segment segment = currentSegment(chosenValue.getInstanceId());
+        ByteBuffer record = encode(chosenValue);
+        preallocate(segment, segment.size + record.remaining());
+        long offset = segment.size;
+        while (record.hasRemaining())
+            segment.size += segment.channel.write(record, segment.size);
+        index(segment, chosenValue.getInstanceId(), offset);
+        dirty = true;
+    }
+
+    private Segment currentSegment(long instanceId) throws IOException {
+        Segment last = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        //覆盖段中第一个instanceId时不能滚动，否则新段和它同名
+        if (last != null && (last.size < segmentBytes || last.firstInstanceId == instanceId))
+            return last;
+        //先截断再新建，宕机后只有最后一个段的末尾可能是预分配的0
+        if (last != null) {
+            last.trim();
+            last.channel.force(true);
+        }
+        Segment segment = new Segment(new File(dir, segmentName(instanceId)), instanceId);
+        segments.put(instanceId, segment);
+        //新建的文件要sync所在的目录，否则宕机后目录项可能丢失，文件中sync过的数据也就丢了
+        syncDir();
+        log.info("[New Segment] {}", segment.file);
+        return segment;
+    }
+
+    /**
+     * 写入会超过文件长度时把文件扩展到段大小，一般是稀疏文件，不实际写入0
+     */
+    private void preallocate(Segment segment, long end) throws IOException {
+        if (end <= segment.length)
+            return;
+        long length = Math.max(end, segmentBytes);
+        segment.channel.write(ByteBuffer.allocate(1), length - 1);
+        segment.length = length;
+    }
+
+    private void syncDir() throws IOException {
+        try (FileChannel dirChannel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            dirChannel.force(true);
+        }
+    }
+
+    static String segmentName(long firstInstanceId) {
+        return String.format("%020d%s", firstInstanceId, SEGMENT_SUFFIX);
+    }
+
+    /**
+     * 将append的数据刷到磁盘，一批Ready只需要调用一次
+     */
+    @Override
+    public void sync() {
+        synchronized (syncLock) {
+            FileChannel channel;
+            synchronized (this) {
+                if (!dirty)
+                    return;
+                channel = segments.lastEntry().getValue().channel;
+                dirty = false;
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedByInterruptException ex) {
+                throw new PaxosException(ex);
+            } catch (ClosedChannelException ex) {
+                //段在force期间被reset删除，或者滚动时已经force过之后被compact删除
+                log.info("[Sync Closed Segment] {}", ex.toString());
+            } catch (IOException ex) {
+                synchronized (this) {
+                    dirty = true;
+                }
+                throw new PaxosException(ex);
+            }
+        }
+    }
+
+    /**
+     * 已经持有storage的锁时使用，不能再获取syncLock
+     */
+    private void forceLocked() throws IOException {
+        if (!dirty)
+            return;
+        segments.lastEntry().getValue().channel.force(false);
+        dirty = false;
+    }
+
+    @Override
+    public synchronized ChosenValue get(long instanceId) {
+        if (isEmpty() || instanceId < minInstanceId || instanceId > maxInstanceId)
+            throw new DataNotFoundException();
+        return scan(instanceId, instanceId + 1).get(0);
+    }
+
+    @Override
+    public synchronized List<ChosenValue> list(long fromInstanceId) {
+        if (illegalBound(fromInstanceId, maxInstanceId + 1))
+            throw new DataNotFoundException();
+        return scan(fromInstanceId, maxInstanceId + 1);
+    }
+
+    @Override
+    public synchronized List<ChosenValue> list(long fromInstanceId, long toInstanceId) {
+        if (illegalBound(fromInstanceId, toInstanceId)) {
+            log.error("fromInstanceId {}, minInstanceId {},toInstanceId {}, maxInstanceId {}",
+                    fromInstanceId, minInstanceId, toInstanceId, maxInstanceId);
+            throw new DataNotFoundException();
+        }
+        return scan(fromInstanceId, toInstanceId);
+    }
+
+    private boolean illegalBound(long lo, long hi) {
+        if (isEmpty()) return true;
+        return lo < minInstanceId || lo > maxInstanceId
+                || hi > maxInstanceId + 1 || lo > hi;
+    }
+
+    /**
+     * 从稀疏索引定位到起始位置，然后在映射的段上顺序扫描[from, to)
+     */
+    private List<ChosenValue> scan(long fromInstanceId, long toInstanceId) {
+        List<ChosenValue> chosenValues = new ArrayList<>();
+        if (fromInstanceId >= toInstanceId)
+            return chosenValues;
+        Long firstSegment = segments.floorKey(fromInstanceId);
+        try {
+            for (Segment segment : segments.tailMap(firstSegment, true).values()) {
+                ByteBuffer view = segment.view();
+                if (segment.firstInstanceId == firstSegment)
+                    view.position((int) segment.scanOffset(fromInstanceId));
+                while (view.hasRemaining()) {
+                    int recordEnd = view.position() + HEADER_LENGTH + view.getInt(view.position());
+                    long instanceId = view.getLong(view.position() + HEADER_LENGTH);
+                    if (instanceId >= toInstanceId)
+                        return chosenValues;
+                    if (instanceId >= fromInstanceId) {
+                        view.position(view.position() + HEADER_LENGTH);
+                        ChosenValue chosenValue = decode(view);
+                        //同一个instanceId的记录是连续的，后面的覆盖前面的
+                        int last = chosenValues.size() - 1;
+                        if (last >= 0 && chosenValues.get(last).getInstanceId() == instanceId)
+                            chosenValues.set(last, chosenValue);
+                        else
+                            chosenValues.add(chosenValue);
+                    }
+                    view.position(recordEnd);
+                }
+            }
+        } catch (IOException ex) {
+            throw new PaxosException(ex);
+        }
+        return chosenValues;
+    }
+
+    @Override
+    public synchronized long maxInstanceId() {
+        if (isEmpty())
+            throw new DataNotFoundException();
+        return maxInstanceId;
+    }
+
+    @Override
+    public synchronized long minInstanceId() {
+        if (isEmpty())
+            throw new DataNotFoundException();
+        return minInstanceId;
+    }
+
+    /**
+     * 只删除整个段，下一个段的第一个instanceId不大于keepFrom时，这个段中的记录都已经不需要了
+     */
+    @Override
+    public synchronized void compact(long instanceId) {
+        if (isEmpty())
+            return;
+        long keepFrom = Math.min(instanceId, maxInstanceId);
+        if (keepFrom <= minInstanceId)
+            return;
+        minInstanceId = keepFrom;
+        Long next;
+        while ((next = segments.higherKey(segments.firstKey())) != null && next <= keepFrom) {
+            Segment segment = segments.pollFirstEntry().getValue();
+            try {
+                segment.channel.close();
+            } catch (IOException ex) {
+                throw new PaxosException(ex);
+            }
+            if (!segment.file.delete())
+                log.warn("[Delete Segment Failed] {}", segment.file);
+            else
+                log.info("[Delete Segment] {}", segment.file);
+        }
+    }
+
+    /**
+     * 先删除所有的段再写入新的记录，中途宕机时storage为空，重启后会重新拉取快照
+     */
+    @Override
+    public synchronized void reset(ChosenValue chosenValue) {
+        try {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+                if (!segment.file.delete())
+                    throw new PaxosException("can not delete segment " + segment.file);
+            }
+            segments.clear();
+            minInstanceId = -1;
+            maxInstanceId = -1;
+            dirty = false;
+            write(chosenValue);
+            forceLocked();
+        } catch (IOException ex) {
+            throw new PaxosException(ex);
+        }
+        log.info("[Reset FileStorage] instanceId {}", chosenValue.getInstanceId());
+    }
+
+    public synchronized void close() {
+        try {
+            forceLocked();
+            for (Segment segment : segments.values()) {
+                segment.trim();
+                segment.channel.close();
+            }
+        } catch (IOException ex) {
+            throw new PaxosException(ex);
+        }
+    }
+
+    synchronized Segment lastSegment() {
+        return segments.isEmpty() ? null : segments.lastEntry().getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new IOException("unexpected end of segment");
+            position += n;
+        }
+    }
+
+    static ByteBuffer encode(ChosenValue chosenValue) {
+        byte[] value = chosenValue.getAcceptedValue();
+        int payloadLength = FIXED_PAYLOAD_LENGTH + (value == null ? 0 : value.length);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + payloadLength);
+        record.putInt(payloadLength);
+        record.putInt(0);
+        record.putLong(chosenValue.getInstanceId());
+        record.putLong(chosenValue.getPromiseId());
+        record.putLong(chosenValue.getPromiseNodeId());
+        record.putLong(chosenValue.getAcceptedId());
+        record.putLong(chosenValue.getAcceptedNodeId());
+        if (value == null) {
+            record.putInt(-1);
+        } else {
+            record.putInt(value.length);
+            record.put(value);
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(record.array(), HEADER_LENGTH, payloadLength);
+        record.putInt(4, (int) crc32.getValue());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * @param payload position在instanceId处
+     */
+    static ChosenValue decode(ByteBuffer payload) {
+        long instanceId = payload.getLong();
+        long promiseId = payload.getLong();
+        long promiseNodeId = payload.getLong();
+        long acceptedId = payload.getLong();
+        long acceptedNodeId = payload.getLong();
+        int valueLength = payload.getInt();
+        byte[] value = null;
+        if (valueLength >= 0) {
+            value = new byte[valueLength];
+            payload.get(value);
+        }
+        return new ChosenValue(instanceId, promiseId, promiseNodeId, acceptedId,
+                acceptedNodeId, value);
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+}
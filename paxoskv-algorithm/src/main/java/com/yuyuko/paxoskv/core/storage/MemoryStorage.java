@@ -19,80 +19,51 @@ public class MemoryStorage implements Storage {
      */
     private long minInstanceId;
 
-    /**
-     * instanceId是否发生了变化
-     */
-    private boolean newInstance;
-
-    /**
-     * 当前paxosInstance的instanceId
-     */
-    private long instanceId;
-
     private boolean isEmpty() {
         return chosenValues.isEmpty();
     }
 
-    public void saveInstanceId(long instanceId) {
-        if (instanceId > this.instanceId) {
-            this.instanceId = instanceId;
-            newInstance = true;
-        }
-    }
-
-    public boolean isNewInstance() {
-        try {
-            return newInstance;
-        } finally {
-            newInstance = false;
-        }
-    }
-
-    public void append(List<ChosenValue> appendValues) {
+    @Override
+    public synchronized void append(List<ChosenValue> appendValues) {
         if (Utils.isEmpty(appendValues))
             return;
-        long firstInstanceId = appendValues.get(0).getInstanceId();
-        long lastInstanceId = appendValues.get(appendValues.size() - 1).getInstanceId();
-        if (isEmpty()) {
-            minInstanceId = firstInstanceId;
-            chosenValues.addAll(appendValues);
-            return;
-        }
-        if (lastInstanceId <= maxInstanceId())//最后一个数据比最大的还小，不需要
-            return;
-        //传入数据的第一个比minInstanceId还小，截断到minInstanceId
-        if (firstInstanceId < minInstanceId) {
-            int overlap = ((int) (minInstanceId - firstInstanceId));
-            if (overlap < appendValues.size())
-                appendValues = appendValues.subList(overlap, appendValues.size());
-            else//截断到空了，返回
-                return;
-            firstInstanceId = minInstanceId;
-        }
-        if (firstInstanceId == maxInstanceId() + 1) {
-            // 如果正好是紧接着当前数据的，就直接append
-            chosenValues.addAll(appendValues);
-        } else if (firstInstanceId < maxInstanceId() + 1) {//小于，需要截断
-            appendValues = appendValues.subList(((int) (maxInstanceId() + 1 - firstInstanceId)),
-                    ((int) (lastInstanceId + 1 - firstInstanceId)));
-            chosenValues.addAll(appendValues);
-        } else {//大于，不太可能
-            log.error("[Storage Append Error] maxInstanceId[{}], and appendValues " +
-                            "firstInstanceId[{}]",
-                    maxInstanceId(), firstInstanceId);
-            throw new PaxosException();
+        for (ChosenValue chosenValue : appendValues) {
+            long instanceId = chosenValue.getInstanceId();
+            if (isEmpty()) {
+                minInstanceId = instanceId;
+                chosenValues.add(chosenValue);
+                continue;
+            }
+            long maxInstanceId = maxInstanceId();
+            //已经写入的实例只有最后一个还可能被修改，比如只有promise的记录之后accept了值
+            if (instanceId < maxInstanceId)
+                continue;
+            if (instanceId == maxInstanceId)
+                chosenValues.set(chosenValues.size() - 1, chosenValue);
+            else if (instanceId == maxInstanceId + 1)
+                chosenValues.add(chosenValue);
+            else {//大于，不太可能
+                log.error("[Storage Append Error] maxInstanceId[{}], and appendValues " +
+                                "firstInstanceId[{}]",
+                        maxInstanceId, instanceId);
+                throw new PaxosException();
+            }
         }
     }
 
     @Override
-    public ChosenValue get(long instanceId) {
+    public synchronized void sync() {
+    }
+
+    @Override
+    public synchronized ChosenValue get(long instanceId) {
         if (isEmpty() || instanceId < minInstanceId || instanceId > maxInstanceId())
             throw new DataNotFoundException();
         return chosenValues.get(((int) (instanceId - minInstanceId)));
     }
 
     @Override
-    public List<ChosenValue> list(long fromInstanceId) {
+    public synchronized List<ChosenValue> list(long fromInstanceId) {
         if (illegalBound(fromInstanceId, maxInstanceId() + 1))
             throw new DataNotFoundException();
         return slice(fromInstanceId, maxInstanceId() + 1);
@@ -109,7 +80,7 @@ public class MemoryStorage implements Storage {
     }
 
     @Override
-    public List<ChosenValue> list(long fromInstanceId, long toInstanceId) {
+    public synchronized List<ChosenValue> list(long fromInstanceId, long toInstanceId) {
         if (illegalBound(fromInstanceId, toInstanceId)) {
             log.error("fromInstanceId {}, minInstanceId {},toInstanceId {}, maxInstanceId {}",
                     fromInstanceId, minInstanceId, toInstanceId, maxInstanceId());
@@ -125,9 +96,35 @@ public class MemoryStorage implements Storage {
     }
 
     @Override
-    public long maxInstanceId() {
+    public synchronized long maxInstanceId() {
         if (isEmpty())
             throw new DataNotFoundException();
         return minInstanceId + chosenValues.size() - 1;
     }
+
+    @Override
+    public synchronized long minInstanceId() {
+        if (isEmpty())
+            throw new DataNotFoundException();
+        return minInstanceId;
+    }
+
+    @Override
+    public synchronized void compact(long instanceId) {
+        if (isEmpty())
+            return;
+        long keepFrom = Math.min(instanceId, maxInstanceId());
+        if (keepFrom <= minInstanceId)
+            return;
+        chosenValues = new ArrayList<>(chosenValues.subList(((int) (keepFrom - minInstanceId)),
+                chosenValues.size()));
+        minInstanceId = keepFrom;
+    }
+
+    @Override
+    public synchronized void reset(ChosenValue chosenValue) {
+        chosenValues = new ArrayList<>();
+        chosenValues.add(chosenValue);
+        minInstanceId = chosenValue.getInstanceId();
+    }
 }
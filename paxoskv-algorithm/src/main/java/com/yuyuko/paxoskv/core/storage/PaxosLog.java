@@ -4,6 +4,7 @@ import com.yuyuko.paxoskv.core.ChosenValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class PaxosLog {
@@ -13,6 +14,11 @@ public class PaxosLog {
 
     private Unstable unstable;
 
+    /**
+     * 分块读取时每次从storage读取的实例数
+     */
+    private static final int LIST_WINDOW = 64;
+
     public PaxosLog(Storage storage) {
         this.storage = storage;
         unstable = new Unstable(storage);
@@ -47,6 +53,40 @@ public class PaxosLog {
         }
     }
 
+    /**
+     * 从instanceId开始读取已经accept的值，value的总长度超过maxBytes时截断，至少返回一个
+     *
+     * @throws DataNotFoundException instanceId找不到时
+     */
+    public List<ChosenValue> listAcceptedValuesFrom(long instanceId, long maxBytes) {
+        long toInstanceId = unstable.isEmpty() ? storage.maxInstanceId() + 1 :
+                unstable.maxInstanceId() + 1;
+        List<ChosenValue> chosenValues = new ArrayList<>();
+        long bytes = 0;
+        for (long from = instanceId; from < toInstanceId; from += LIST_WINDOW) {
+            for (ChosenValue chosenValue : list(from, Math.min(from + LIST_WINDOW, toInstanceId))) {
+                byte[] value = chosenValue.getAcceptedValue();
+                if (value == null)
+                    return chosenValues;
+                if (!chosenValues.isEmpty() && bytes + value.length > maxBytes)
+                    return chosenValues;
+                chosenValues.add(chosenValue);
+                bytes += value.length;
+            }
+        }
+        return chosenValues;
+    }
+
+    private List<ChosenValue> list(long fromInstanceId, long toInstanceId) {
+        if (unstable.isEmpty() || toInstanceId <= unstable.minInstanceId())
+            return storage.list(fromInstanceId, toInstanceId);
+        if (fromInstanceId >= unstable.minInstanceId())
+            return unstable.slice(fromInstanceId, toInstanceId);
+        List<ChosenValue> chosenValues = storage.list(fromInstanceId, unstable.minInstanceId());
+        chosenValues.addAll(unstable.slice(unstable.minInstanceId(), toInstanceId));
+        return chosenValues;
+    }
+
     /**
      * @param learnedValues append的值
      * @return 最新的ChosenValue
@@ -74,11 +114,29 @@ public class PaxosLog {
         }
     }
 
+    /**
+     * @return 还保留的最小的instanceId，之前的已经被快照压缩，无数据时为0
+     */
+    public long minChosenInstanceId() {
+        try {
+            return storage.minInstanceId();
+        } catch (DataNotFoundException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * storage被快照重置之后，丢弃unstable中的数据
+     */
+    public void reset() {
+        unstable = new Unstable(storage);
+    }
+
     public Unstable getUnstable() {
         return unstable;
     }
 
-    public void stableTo(long instanceId) {
-        unstable.stableTo(instanceId);
+    public void stableTo(ChosenValue persisted) {
+        unstable.stableTo(persisted);
     }
 }
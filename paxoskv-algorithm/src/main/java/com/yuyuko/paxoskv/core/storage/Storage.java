@@ -32,4 +32,35 @@ public interface Storage {
      */
     long maxInstanceId();
 
+    /**
+     * @return 最小的instanceId，之前的已经被快照压缩
+     * @throws DataNotFoundException 无数据时
+     */
+    long minInstanceId();
+
+    /**
+     * 丢弃instanceId之前的chosenValue，在状态机快照之后调用，最大的instanceId总是保留
+     *
+     * @param instanceId 保留的第一个instanceId
+     */
+    void compact(long instanceId);
+
+    /**
+     * 安装快照时调用，丢弃所有数据，只保留快照的最后一个实例
+     *
+     * @param chosenValue 快照的最后一个实例
+     */
+    void reset(ChosenValue chosenValue);
+
+    /**
+     * 追加chosenValue，已经存在的instanceId只有最后一个可以被覆盖
+     *
+     * @param chosenValues 按instanceId递增的chosenValue
+     */
+    void append(List<ChosenValue> chosenValues);
+
+    /**
+     * 将之前append的数据持久化，每批Ready在发送消息之前调用一次
+     */
+    void sync();
 }
\ No newline at end of file
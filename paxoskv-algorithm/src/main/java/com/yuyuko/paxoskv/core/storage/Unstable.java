@@ -57,30 +57,24 @@ public class Unstable {
             chosenValues.addAll(values);
             return;
         }
-        if (lastInstanceId <= maxInstanceId())//最后一个数据比最大的还小，不需要
+        long maxInstanceId = maxInstanceId();
+        if (lastInstanceId < maxInstanceId)//最后一个数据比最大的还小，不需要
             return;
-        //传入数据的第一个比minInstanceId还小，截断到minInstanceId
-        if (firstInstanceId < minInstanceId) {
-            int overlap = ((int) (minInstanceId - firstInstanceId));
-            if (overlap < values.size())
-                values = values.subList(overlap, values.size());
-            else//截断到空了，返回
-                return;
-            firstInstanceId = minInstanceId;
-        }
-        if (firstInstanceId == maxInstanceId() + 1) {
-            // 如果正好是紧接着当前数据的，就直接append
-            chosenValues.addAll(values);
-        } else if (firstInstanceId < maxInstanceId() + 1) {//小于，需要截断
-            values = values.subList(((int) (maxInstanceId() + 1 - firstInstanceId)),
-                    ((int) (lastInstanceId + 1 - firstInstanceId)));
-            chosenValues.addAll(values);
-        } else {//大于，不太可能
+        if (firstInstanceId > maxInstanceId + 1) {//大于，不太可能
             log.error("[Unstable Append Error] maxInstanceId[{}], and appendValues " +
                             "minInstanceId[{}]",
-                    maxInstanceId(), minInstanceId);
+                    maxInstanceId, firstInstanceId);
             throw new PaxosException();
         }
+        //之前的实例都已经chosen，截断到maxInstanceId
+        if (firstInstanceId < maxInstanceId)
+            values = values.subList(((int) (maxInstanceId - firstInstanceId)), values.size());
+        //最后一条可能只有promise，或者accept的值没有被chosen，用学习到的值覆盖
+        if (values.get(0).getInstanceId() == maxInstanceId) {
+            chosenValues.set(chosenValues.size() - 1, values.get(0));
+            values = values.subList(1, values.size());
+        }
+        chosenValues.addAll(values);
     }
 
     public ChosenValue getChosenValue(long instanceId) {
@@ -133,12 +127,31 @@ public class Unstable {
         log.debug("[Unstable Stable To] stableTo {}", instanceId);
     }
 
+    /**
+     * 持久化期间最后一条可能又被acceptor或learner覆盖，这时保留它，等下一批Ready持久化
+     *
+     * @param persisted 已经持久化的最后一条
+     */
+    public void stableTo(ChosenValue persisted) {
+        long instanceId = persisted.getInstanceId();
+        if (isEmpty() || instanceId < minInstanceId)
+            return;
+        if (instanceId > maxInstanceId())
+            instanceId = maxInstanceId();
+        if (getChosenValue(instanceId) != persisted)
+            instanceId--;
+        stableTo(instanceId);
+    }
+
     public ChosenValue lastChosenValue() {
         return isEmpty() ? null : chosenValues.get(chosenValues.size() - 1);
     }
 
-    public List<ChosenValue> acceptedValues() {
-        return findAcceptedValues(chosenValues);
+    /**
+     * @return 所有还没有持久化的数据，包括只有promise的记录
+     */
+    public List<ChosenValue> unstableValues() {
+        return chosenValues;
     }
 
     private List<ChosenValue> findAcceptedValues(List<ChosenValue> chosenValues) {
@@ -2,6 +2,7 @@ package com.yuyuko.paxoskv.core;
 
 import com.yuyuko.paxoskv.core.node.Config;
 import com.yuyuko.paxoskv.core.node.NodeInfo;
+import com.yuyuko.paxoskv.core.node.Ready;
 import com.yuyuko.paxoskv.core.storage.MemoryStorage;
 import com.yuyuko.paxoskv.core.storage.PaxosLog;
 import org.junit.jupiter.api.Test;
@@ -56,6 +57,22 @@ class AcceptorTest {
         assertEquals(0, acceptor.getPaxosLog().getUnstable().maxInstanceId());
     }
 
+    @Test
+    void promiseOnlyRecordInReady() {
+        Config config = NodeTest.newTestConfig(1, List.of(new NodeInfo(1L)), new MemoryStorage());
+        PaxosInstance paxosInstance = new PaxosInstance(config);
+        paxosInstance.getAcceptor().onPrepare(
+                PaxosMessage.builder().type(Prepare)
+                        .proposalId(1).instanceId(0).nodeId(2).build()
+        );
+        // 只有promise的记录也要和PrepareReply在同一批Ready中，先落盘再回复
+        List<ChosenValue> chosenValues = new Ready(paxosInstance, 0).getChosenValues();
+        assertEquals(1, chosenValues.size());
+        assertEquals(1, chosenValues.get(0).getPromiseId());
+        assertEquals(2, chosenValues.get(0).getPromiseNodeId());
+        assertNull(chosenValues.get(0).getAcceptedValue());
+    }
+
     @Test
     void onPrepareReject() {
         Acceptor acceptor = newAcceptor(1, List.of(1L));
@@ -72,6 +89,35 @@ class AcceptorTest {
         assertThrows(Throwable.class, () -> acceptor.getPaxosLog().getUnstable().maxInstanceId());
     }
 
+    @Test
+    void onPrepareRejectByMasterLease() {
+        Acceptor acceptor = newAcceptor(1, List.of(1L, 2L, 3L));
+        acceptor.onPrepare(
+                PaxosMessage.builder().type(Prepare)
+                        .proposalId(1).instanceId(0).nodeId(2).build()
+        );
+        acceptor.readMessages();
+        assertEquals(2, acceptor.getMasterNodeId());
+
+        acceptor.onPrepare(
+                PaxosMessage.builder().type(Prepare)
+                        .proposalId(5).instanceId(0).nodeId(3).build()
+        );
+        List<PaxosMessage> messages = acceptor.readMessages();
+        assertEquals(new BallotNumber(1, 2), acceptor.getPromise());
+        assertEquals(1, messages.get(0).getRejectByPromiseId());
+
+        for (long i = 0; i < acceptor.config.getMasterLeaseTimeout(); i++)
+            acceptor.tick();
+        assertEquals(0, acceptor.getMasterNodeId());
+        acceptor.onPrepare(
+                PaxosMessage.builder().type(Prepare)
+                        .proposalId(5).instanceId(0).nodeId(3).build()
+        );
+        assertEquals(new BallotNumber(5, 3), acceptor.getPromise());
+        assertEquals(3, acceptor.getMasterNodeId());
+    }
+
     @Test
     void onAccept() {
         Acceptor acceptor = newAcceptor(1, List.of(1L));
@@ -0,0 +1,137 @@
+package com.yuyuko.paxoskv.core;
+
+import com.yuyuko.paxoskv.core.node.Config;
+import com.yuyuko.paxoskv.core.utils.Tuple;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchCommitterTest {
+    @Test
+    void encodeDecode() {
+        List<byte[]> values = List.of("1".getBytes(), "".getBytes(), "456".getBytes());
+        List<byte[]> decoded = BatchValue.decode(BatchValue.encode(values));
+        assertEquals(3, decoded.size());
+        for (int i = 0; i < values.size(); i++)
+            assertArrayEquals(values.get(i), decoded.get(i));
+    }
+
+    @Test
+    void propose() throws Exception {
+        Config config = new Config();
+        config.setBatchProposeMaxDelayMicros(50_000);
+        Committer committer = new Committer();
+        AtomicLong instanceId = new AtomicLong();
+        List<byte[]> committed = new ArrayList<>();
+        committer.setProposeCallback(commitContext -> {
+            long id = instanceId.getAndIncrement();
+            synchronized (committed) {
+                committed.add(commitContext.getValue());
+            }
+            commitContext.startCommit(id);
+            commitContext.setResult(CommitContext.CommitResult.OK, id, commitContext.getValue());
+        });
+        BatchCommitter batchCommitter = new BatchCommitter(committer, config);
+
+        int proposeCnt = 16;
+        ExecutorService executors = Executors.newFixedThreadPool(proposeCnt);
+        List<Future<Tuple<Long, CommitContext.CommitResult>>> futures = new ArrayList<>();
+        for (int i = 0; i < proposeCnt; i++) {
+            byte[] value = String.valueOf(i).getBytes();
+            futures.add(executors.submit(() -> batchCommitter.propose(value)));
+        }
+        for (Future<Tuple<Long, CommitContext.CommitResult>> future : futures)
+            assertEquals(CommitContext.CommitResult.OK, future.get().getSecond());
+        executors.shutdown();
+
+        assertTrue(committed.size() < proposeCnt);
+        assertEquals(proposeCnt,
+                committed.stream().mapToInt(value -> BatchValue.decode(value).size()).sum());
+    }
+
+    @Test
+    void proposeAsync() throws Exception {
+        Committer committer = new Committer();
+        List<CommitContext> submitted = new ArrayList<>();
+        committer.setProposeCallback(commitContext -> {
+            commitContext.startCommit(submitted.size());
+            submitted.add(commitContext);
+        });
+        CompletableFuture<Tuple<Long, CommitContext.CommitResult>> first =
+                committer.proposeAsync("1".getBytes());
+        CompletableFuture<Tuple<Long, CommitContext.CommitResult>> second =
+                committer.proposeAsync("2".getBytes());
+        //窗口满时排队，不阻塞
+        assertEquals(1, submitted.size());
+        assertFalse(second.isDone());
+
+        //冲突时重试
+        submitted.get(0).setResult(CommitContext.CommitResult.OK, 0, "other".getBytes());
+        assertFalse(first.isDone());
+        assertEquals(2, submitted.size());
+        assertArrayEquals("2".getBytes(), submitted.get(1).getValue());
+
+        submitted.get(1).setResult(CommitContext.CommitResult.OK, 1, "2".getBytes());
+        assertEquals(3, submitted.size());
+        assertArrayEquals("1".getBytes(), submitted.get(2).getValue());
+        submitted.get(2).setResult(CommitContext.CommitResult.OK, 2, "1".getBytes());
+        assertEquals(2L, first.get().getFirst());
+        assertEquals(1L, second.get().getFirst());
+    }
+
+    @Test
+    void syncProposeReleaseDrainsAsync() throws Exception {
+        Committer committer = new Committer();
+        List<CommitContext> submitted = new ArrayList<>();
+        committer.setProposeCallback(commitContext -> {
+            synchronized (submitted) {
+                commitContext.startCommit(submitted.size());
+                submitted.add(commitContext);
+                submitted.notifyAll();
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Tuple<Long, CommitContext.CommitResult>> sync =
+                executor.submit(() -> committer.propose("1".getBytes()));
+        synchronized (submitted) {
+            while (submitted.isEmpty())
+                submitted.wait();
+        }
+        //同步提议占着许可，异步提议排队
+        CompletableFuture<Tuple<Long, CommitContext.CommitResult>> async =
+                committer.proposeAsync("2".getBytes());
+        assertEquals(1, submitted.size());
+
+        submitted.get(0).setResult(CommitContext.CommitResult.OK, 0, "1".getBytes());
+        assertEquals(0L, sync.get().getFirst());
+        executor.shutdown();
+        //同步提议释放许可之后，排队的异步提议马上提交，不用等下一次提议
+        assertEquals(2, submitted.size());
+        submitted.get(1).setResult(CommitContext.CommitResult.OK, 1, "2".getBytes());
+        assertEquals(1L, async.get().getFirst());
+    }
+
+    @Test
+    void proposeFull() {
+        Config config = new Config();
+        config.setBatchProposeMaxDelayMicros(60_000_000);
+        config.setBatchProposeMaxBytes(1);
+        Committer committer = new Committer();
+        committer.setProposeCallback(commitContext -> {
+            commitContext.startCommit(0);
+            commitContext.setResult(CommitContext.CommitResult.OK, 0, commitContext.getValue());
+        });
+        BatchCommitter batchCommitter = new BatchCommitter(committer, config);
+        assertTimeoutPreemptively(Duration.ofSeconds(5),
+                () -> batchCommitter.propose("123".getBytes()));
+    }
+}
@@ -0,0 +1,66 @@
+package com.yuyuko.paxoskv.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CommitRegistryTest {
+    private static CommitContext newCommit(String value) {
+        CommitContext commitContext = new CommitContext();
+        commitContext.newCommit(value.getBytes());
+        return commitContext;
+    }
+
+    @Test
+    void learnedCompletesEachWaiter() {
+        CommitRegistry registry = new CommitRegistry();
+        CommitContext first = newCommit("1");
+        CommitContext second = newCommit("2");
+        CommitContext third = newCommit("3");
+        registry.register(0, first);
+        registry.register(1, second);
+        registry.register(2, third);
+        assertEquals(3, registry.localSize());
+
+        Map<Long, byte[]> chosen = Map.of(0L, "1".getBytes(), 1L, "other".getBytes());
+        registry.learned(0, 2, chosen::get);
+        assertEquals(0L, first.getFuture().join().getFirst());
+        assertEquals(CommitContext.CommitResult.OK, first.getFuture().join().getSecond());
+        assertEquals(CommitContext.CommitResult.Conflict, second.getFuture().join().getSecond());
+        assertFalse(third.isCommitEnd());
+        assertEquals(1, registry.localSize());
+
+        registry.abortLocal(CommitContext.CommitResult.Conflict);
+        assertEquals(CommitContext.CommitResult.Conflict, third.getFuture().join().getSecond());
+        assertEquals(0, registry.localSize());
+    }
+
+    @Test
+    void forwardedMatchedByValue() {
+        CommitRegistry registry = new CommitRegistry();
+        CommitContext first = newCommit("a");
+        CommitContext second = newCommit("a");
+        CommitContext other = newCommit("b");
+        registry.registerForwarded(first, 10);
+        registry.registerForwarded(second, 10);
+        registry.registerForwarded(other, 10);
+        assertEquals(10, registry.ticksToNextTimeout());
+
+        Map<Long, byte[]> chosen = Map.of(5L, "a".getBytes(), 6L, "c".getBytes());
+        registry.learned(5, 7, chosen::get);
+        assertEquals(5L, first.getFuture().join().getFirst());
+        assertFalse(second.isCommitEnd());
+        assertEquals(2, registry.forwardedSize());
+
+        registry.tick();
+        assertEquals(9, registry.ticksToNextTimeout());
+        for (int i = 0; i < 9; i++)
+            registry.tick();
+        assertEquals(CommitContext.CommitResult.Timeout, second.getFuture().join().getSecond());
+        assertEquals(CommitContext.CommitResult.Timeout, other.getFuture().join().getSecond());
+        assertEquals(0, registry.forwardedSize());
+        assertEquals(Long.MAX_VALUE, registry.ticksToNextTimeout());
+    }
+}
@@ -95,6 +95,33 @@ class LearnerTest {
         assertEquals(0, messages.get(0).getLearnedValues().get(0).getInstanceId());
     }
 
+    @Test
+    void onAskForLearnCompacted() {
+        MemoryStorage storage = new MemoryStorage();
+        storage.append(List.of(new ChosenValue(0), new ChosenValue(1), new ChosenValue(2)));
+        storage.compact(2);
+        Config config = NodeTest.newTestConfig(1, List.of(new NodeInfo(1), new NodeInfo(2)),
+                storage);
+        Learner learner = new PaxosInstance(config).getLearner();
+        learner.setInstanceId(3);
+        learner.onAskForLearn(
+                PaxosMessage.builder()
+                        .instanceId(0).nodeId(2).build()
+        );
+        List<PaxosMessage> messages = learner.readMessages();
+        assertEquals(1, messages.size());
+        assertEquals(PaxosMessage.PaxosMessageType.SnapshotOffer, messages.get(0).getType());
+        assertEquals(2, messages.get(0).getToNodeId());
+        assertEquals(2, messages.get(0).getMinChosenInstanceId());
+
+        learner.onAskForLearn(
+                PaxosMessage.builder()
+                        .instanceId(2).nodeId(2).build()
+        );
+        messages = learner.readMessages();
+        assertEquals(1, messages.get(0).getLearnedValues().size());
+    }
+
     @Test
     void onSendLearnValue() {
         PaxosMessage m = PaxosMessage.builder()
@@ -111,4 +138,29 @@ class LearnerTest {
         assertEquals(3, learner.onSendLearnValue(m));
         assertTrue(learner.isLearned());
     }
+
+    @Test
+    void learnInChunks() {
+        Config config = NodeTest.newTestConfig(1, List.of(new NodeInfo(1), new NodeInfo(2)),
+                new MemoryStorage());
+        config.setLearnChunkMaxBytes(3);
+        Learner learner = new PaxosInstance(config).getLearner();
+        for (int i = 0; i < 6; i++)
+            config.getStorage().append(List.of(new ChosenValue(i, 1, 1, 1, 1, "v".getBytes())));
+        learner.setInstanceId(6);
+        learner.onAskForLearn(PaxosMessage.builder().instanceId(0).nodeId(2).build());
+        List<PaxosMessage> messages = learner.readMessages();
+        assertEquals(3, messages.get(0).getLearnedValues().size());
+        assertEquals(6, messages.get(0).getNowInstanceId());
+
+        Learner behind = newLearner(2, List.of(1L, 2L));
+        assertEquals(2, behind.onSendLearnValue(messages.get(0)));
+        assertFalse(behind.hasLatestInstanceId());
+        //学完一块之后向同一个节点拉取下一块
+        List<PaxosMessage> asks = behind.readMessages();
+        assertEquals(1, asks.size());
+        assertEquals(AskForLearn, asks.get(0).getType());
+        assertEquals(1, asks.get(0).getToNodeId());
+        assertEquals(3, asks.get(0).getInstanceId());
+    }
 }
\ No newline at end of file
@@ -41,6 +41,9 @@ public class NodeTest {
         config.setPrepareTimeout(6);
         config.setRestartPrepareTimeout(3);
         config.setRestartAcceptTimeout(3);
+        config.setMasterLeaseTimeout(20);
+        config.setMasterLeaseClockDrift(2);
+        config.setForwardProposeTimeout(20);
         return config;
     }
 
@@ -174,9 +177,15 @@ public class NodeTest {
             node.tick();
         }
         sleep(100);
-        Ready rd = node.ready().read();
-        List<PaxosMessage> messages = rd.getMessages();
-        assertTrue(messages.stream().anyMatch(m -> m.getType() == PaxosMessage.PaxosMessageType.AskForLearn));
+        // 启动时已经发出了一个只有instanceId的ready，advance之后才会发出tick产生的消息
+        boolean askForLearn = false;
+        for (int i = 0; i < 2 && !askForLearn; i++) {
+            Ready rd = node.ready().read();
+            List<PaxosMessage> messages = rd.getMessages();
+            askForLearn = messages.stream().anyMatch(m -> m.getType() == PaxosMessage.PaxosMessageType.AskForLearn);
+            node.advance();
+        }
+        assertTrue(askForLearn);
     }
 
     @Test
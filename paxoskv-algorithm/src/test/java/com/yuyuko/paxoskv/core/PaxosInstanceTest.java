@@ -8,7 +8,10 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
@@ -27,6 +30,35 @@ class PaxosInstanceTest {
         return new PaxosInstance(config);
     }
 
+    @Test
+    void installSnapshot() {
+        MemoryStorage storage = new MemoryStorage();
+        Config config = NodeTest.newTestConfig(1, List.of(new NodeInfo(1), new NodeInfo(2),
+                new NodeInfo(3)), storage);
+        PaxosInstance paxosInstance = new PaxosInstance(config);
+        CommitContext commitContext = new CommitContext();
+        commitContext.newCommit("123".getBytes());
+        paxosInstance.propose(commitContext);
+        paxosInstance.readMessages();
+
+        ChosenValue chosenValue = new ChosenValue(10, 3, 2, 3, 2, "snapshot".getBytes());
+        storage.reset(chosenValue);
+        paxosInstance.installSnapshot(chosenValue);
+        //结果未知，不能按冲突重试
+        assertEquals(CommitContext.CommitResult.Timeout, commitContext.getResult().getSecond());
+        assertEquals(11, paxosInstance.nowInstanceId());
+        assertEquals(11, paxosInstance.getLearner().getInstanceId());
+        assertEquals(11, paxosInstance.getProposer().getInstanceId());
+        assertFalse(paxosInstance.getProposer().isPreparing());
+        assertEquals(4, paxosInstance.getProposer().getProposalId());
+        assertArrayEquals("snapshot".getBytes(),
+                paxosInstance.getPaxosLog().readChosenValue(10).getAcceptedValue());
+
+        //比当前实例旧的快照被忽略
+        paxosInstance.installSnapshot(new ChosenValue(5));
+        assertEquals(11, paxosInstance.nowInstanceId());
+    }
+
     @Test
     void tick() {
         PaxosInstance paxosInstance = newPaxosInstanceSingleNode();
@@ -107,6 +139,287 @@ class PaxosInstanceTest {
         );
     }
 
+    @Test
+    void queuedProposalsRunBackToBack() {
+        PaxosInstance paxosInstance = newPaxosInstanceSingleNode();
+        CommitContext first = new CommitContext();
+        first.newCommit("123".getBytes());
+        CommitContext second = new CommitContext();
+        second.newCommit("456".getBytes());
+        paxosInstance.propose(first);
+        paxosInstance.propose(second);
+        assertEquals(0, first.getInstanceId());
+        assertTrue(second.isNewCommit());
+
+        List<PaxosMessage> messages = paxosInstance.readMessages();
+        while (!messages.isEmpty()) {
+            messages.forEach(paxosInstance::step);
+            messages = paxosInstance.readMessages();
+        }
+        assertEquals(2, paxosInstance.nowInstanceId());
+        assertEquals(0L, first.getResult().getFirst());
+        assertEquals(CommitContext.CommitResult.OK, first.getResult().getSecond());
+        assertEquals(1L, second.getResult().getFirst());
+        assertEquals(CommitContext.CommitResult.OK, second.getResult().getSecond());
+    }
+
+    @Test
+    void forwardToMaster() {
+        List<NodeInfo> nodeInfos = List.of(new NodeInfo(1), new NodeInfo(2));
+        Map<Long, PaxosInstance> instances = new HashMap<>();
+        for (long id = 1; id <= 2; id++)
+            instances.put(id, new PaxosInstance(NodeTest.newTestConfig(id, nodeInfos,
+                    new MemoryStorage())));
+
+        CommitContext first = new CommitContext();
+        first.newCommit("123".getBytes());
+        instances.get(1L).propose(first);
+        deliver(instances);
+        assertTrue(instances.get(1L).isMaster());
+        assertEquals(1, instances.get(2L).getMasterNodeId());
+
+        CommitContext second = new CommitContext();
+        second.newCommit("456".getBytes());
+        instances.get(2L).propose(second);
+        List<PaxosMessage> messages = instances.get(2L).getMessages();
+        assertEquals(1, messages.size());
+        assertEquals(ForwardPropose, messages.get(0).getType());
+        deliver(instances);
+
+        assertEquals(CommitContext.CommitResult.OK, first.getResult().getSecond());
+        assertEquals(CommitContext.CommitResult.OK, second.getResult().getSecond());
+        assertEquals(1L, second.getResult().getFirst());
+        assertEquals(2, instances.get(2L).nowInstanceId());
+    }
+
+    @Test
+    void ticksToNextTimeout() {
+        Config config = NodeTest.newTestConfig(1, List.of(new NodeInfo(1), new NodeInfo(2),
+                new NodeInfo(3)), new MemoryStorage());
+        config.setAskForLearnTimeout(100000);
+        PaxosInstance paxosInstance = new PaxosInstance(config);
+        long askForLearnTimeout = paxosInstance.getLearner().getAskForLearnTimeout();
+        assertEquals(askForLearnTimeout, paxosInstance.ticksToNextTimeout());
+        paxosInstance.tick(10);
+        assertEquals(askForLearnTimeout - 10, paxosInstance.ticksToNextTimeout());
+
+        //accept超时
+        paxosInstance.getProposer().setCanSkipPrepare(true);
+        paxosInstance.getProposer().propose("123".getBytes());
+        assertEquals(config.getAcceptTimeout(), paxosInstance.ticksToNextTimeout());
+        paxosInstance.tick(config.getAcceptTimeout() - 1);
+        assertEquals(1, paxosInstance.ticksToNextTimeout());
+        paxosInstance.readMessages();
+        paxosInstance.tick(1);
+        assertTrue(paxosInstance.getProposer().isPreparing());
+    }
+
+    /**
+     * prepare期间不需要每个tick驱动，tick(n)跳过不会超时的tick，只执行会超时的tick
+     */
+    @Test
+    void tickSkipsToTimeout() {
+        Config config = NodeTest.newTestConfig(1, List.of(new NodeInfo(1), new NodeInfo(2),
+                new NodeInfo(3)), new MemoryStorage());
+        config.setAskForLearnTimeout(100000);
+        PaxosInstance paxosInstance = new PaxosInstance(config);
+        CommitContext commit = new CommitContext();
+        commit.newCommit("123".getBytes());
+        paxosInstance.propose(commit);
+        assertTrue(paxosInstance.getProposer().isPreparing());
+        paxosInstance.readMessages();
+        assertEquals(config.getPrepareTimeout(), paxosInstance.ticksToNextTimeout());
+
+        paxosInstance.tick(config.getPrepareTimeout() * 3 - 1);
+        assertEquals(2, paxosInstance.readMessages().stream()
+                .filter(m -> m.getType() == Prepare && m.getToNodeId() == 1).count());
+        assertEquals(1, paxosInstance.ticksToNextTimeout());
+        paxosInstance.tick(1);
+        assertEquals(1, paxosInstance.readMessages().stream()
+                .filter(m -> m.getType() == Prepare && m.getToNodeId() == 1).count());
+        assertEquals(config.getPrepareTimeout(), paxosInstance.ticksToNextTimeout());
+    }
+
+    /**
+     * 收到其他节点的prepare，授予master租约之后立刻放弃本地的prepare，把提议转发给master，
+     * 不等下一个tick
+     */
+    @Test
+    void yieldToMasterOnPrepare() {
+        List<NodeInfo> nodeInfos = List.of(new NodeInfo(1), new NodeInfo(2), new NodeInfo(3));
+        Map<Long, PaxosInstance> instances = new HashMap<>();
+        for (long id = 1; id <= 3; id++)
+            instances.put(id, new PaxosInstance(NodeTest.newTestConfig(id, nodeInfos,
+                    new MemoryStorage())));
+        PaxosInstance follower = instances.get(2L);
+        CommitContext local = new CommitContext();
+        local.newCommit("456".getBytes());
+        follower.propose(local);
+        follower.readMessages();
+        assertTrue(follower.getProposer().isPreparing());
+
+        CommitContext commit = new CommitContext();
+        commit.newCommit("123".getBytes());
+        instances.get(1L).propose(commit);
+        for (PaxosMessage m : instances.get(1L).readMessages()) {
+            if (m.getToNodeId() == 2)
+                follower.step(m);
+        }
+        assertEquals(1, follower.getMasterNodeId());
+        assertFalse(follower.getProposer().isPreparing());
+        assertTrue(follower.getMessages().stream().anyMatch(m ->
+                m.getType() == ForwardPropose && m.getToNodeId() == 1));
+
+        instances.get(1L).tick(instances.get(1L).getConfig().getPrepareTimeout());
+        deliver(instances);
+        assertEquals(CommitContext.CommitResult.OK, commit.getResult().getSecond());
+        assertEquals(CommitContext.CommitResult.OK, local.getResult().getSecond());
+    }
+
+    @Test
+    void messagesCarryGroupId() {
+        Config config = NodeTest.newTestConfig(1, List.of(new NodeInfo(1), new NodeInfo(2),
+                new NodeInfo(3)), new MemoryStorage());
+        config.setGroupId(3);
+        PaxosInstance paxosInstance = new PaxosInstance(config);
+        paxosInstance.getProposer().propose("123".getBytes());
+        List<PaxosMessage> messages = paxosInstance.readMessages();
+        assertEquals(3, messages.size());
+        assertTrue(messages.stream().allMatch(m -> m.getGroupId() == 3));
+    }
+
+    @Test
+    void readIndex() {
+        List<NodeInfo> nodeInfos = List.of(new NodeInfo(1), new NodeInfo(2), new NodeInfo(3));
+        Map<Long, PaxosInstance> instances = new HashMap<>();
+        for (long id = 1; id <= 3; id++)
+            instances.put(id, new PaxosInstance(NodeTest.newTestConfig(id, nodeInfos,
+                    new MemoryStorage())));
+        CommitContext commit = new CommitContext();
+        commit.newCommit("123".getBytes());
+        instances.get(1L).propose(commit);
+        deliver(instances);
+        assertEquals(CommitContext.CommitResult.OK, commit.getResult().getSecond());
+
+        //master租约内直接返回
+        ReadIndexContext masterRead = new ReadIndexContext();
+        instances.get(1L).readIndex(masterRead);
+        assertTrue(masterRead.isEnd());
+        assertEquals(0L, masterRead.getResult());
+
+        //两个读共用一轮确认
+        ReadIndexContext first = new ReadIndexContext();
+        ReadIndexContext second = new ReadIndexContext();
+        instances.get(2L).readIndex(first);
+        instances.get(2L).readIndex(second);
+        List<PaxosMessage> messages = instances.get(2L).getMessages();
+        assertEquals(3, messages.size());
+        assertTrue(messages.stream().allMatch(m -> m.getType() == ReadIndex));
+        deliver(instances);
+        assertEquals(0L, first.getResult());
+        assertEquals(0L, second.getResult());
+    }
+
+    @Test
+    void readIndexTimeout() {
+        Config config = NodeTest.newTestConfig(1, List.of(new NodeInfo(1), new NodeInfo(2),
+                new NodeInfo(3)), new MemoryStorage());
+        PaxosInstance paxosInstance = new PaxosInstance(config);
+        ReadIndexContext read = new ReadIndexContext();
+        paxosInstance.readIndex(read);
+        paxosInstance.readMessages();
+        for (long i = 0; i < config.getReadIndexTimeout(); i++)
+            paxosInstance.tick();
+        assertTrue(read.isEnd());
+        assertNull(read.getResult());
+    }
+
+    @Test
+    void leaseReadNeedsQuorum() {
+        List<NodeInfo> nodeInfos = List.of(new NodeInfo(1), new NodeInfo(2), new NodeInfo(3));
+        Map<Long, PaxosInstance> instances = new HashMap<>();
+        for (long id = 1; id <= 3; id++)
+            instances.put(id, new PaxosInstance(NodeTest.newTestConfig(id, nodeInfos,
+                    new MemoryStorage())));
+        PaxosInstance master = instances.get(1L);
+        Config config = master.getConfig();
+        CommitContext commit = new CommitContext();
+        commit.newCommit("123".getBytes());
+        master.propose(commit);
+
+        //只有本地acceptor通过了prepare，还没有多数派的租约
+        for (PaxosMessage m : master.readMessages()) {
+            if (m.getToNodeId() == 1)
+                master.step(m);
+        }
+        master.readMessages();
+        assertEquals(1, master.getAcceptor().getMasterNodeId());
+        assertFalse(master.isMaster());
+        ReadIndexContext read = new ReadIndexContext();
+        master.readIndex(read);
+        assertFalse(read.isEnd());
+        assertTrue(master.getMessages().stream().allMatch(m -> m.getType() == ReadIndex));
+        deliver(instances);
+        assertEquals(-1L, read.getResult());
+
+        master.tick(config.getPrepareTimeout());
+        deliver(instances);
+        assertEquals(CommitContext.CommitResult.OK, commit.getResult().getSecond());
+        assertTrue(master.isMaster());
+        ReadIndexContext leaseRead = new ReadIndexContext();
+        master.readIndex(leaseRead);
+        assertTrue(leaseRead.isEnd());
+
+        //从发出accept开始计时，扣除时钟偏差后过期
+        master.tick(config.getMasterLeaseTimeout() - config.getMasterLeaseClockDrift());
+        assertFalse(master.isMaster());
+        ReadIndexContext expiredRead = new ReadIndexContext();
+        master.readIndex(expiredRead);
+        assertFalse(expiredRead.isEnd());
+    }
+
+    @Test
+    void rejectLosesLease() {
+        List<NodeInfo> nodeInfos = List.of(new NodeInfo(1), new NodeInfo(2), new NodeInfo(3));
+        Map<Long, PaxosInstance> instances = new HashMap<>();
+        for (long id = 1; id <= 3; id++)
+            instances.put(id, new PaxosInstance(NodeTest.newTestConfig(id, nodeInfos,
+                    new MemoryStorage())));
+        PaxosInstance master = instances.get(1L);
+        CommitContext commit = new CommitContext();
+        commit.newCommit("123".getBytes());
+        master.propose(commit);
+        deliver(instances);
+        assertTrue(master.isMaster());
+
+        //跳过prepare直接accept，被拒绝时放弃租约
+        CommitContext second = new CommitContext();
+        second.newCommit("456".getBytes());
+        master.propose(second);
+        assertTrue(master.getProposer().isAccepting());
+        master.readMessages();
+        master.step(PaxosMessage.builder()
+                .type(AcceptReply)
+                .instanceId(master.getProposer().getInstanceId())
+                .nodeId(2)
+                .toNodeId(1)
+                .proposalId(master.getProposer().getProposalId())
+                .rejectByPromiseId(10)
+                .build());
+        assertFalse(master.isMaster());
+    }
+
+    private static void deliver(Map<Long, PaxosInstance> instances) {
+        LinkedList<PaxosMessage> messages = new LinkedList<>();
+        instances.values().forEach(instance -> messages.addAll(instance.readMessages()));
+        while (!messages.isEmpty()) {
+            PaxosMessage m = messages.removeFirst();
+            PaxosInstance instance = instances.get(m.getToNodeId());
+            instance.step(m);
+            messages.addAll(instance.readMessages());
+        }
+    }
+
     @Test
     void init() {
         PaxosInstance paxosInstance = newPaxosInstanceSingleNode();
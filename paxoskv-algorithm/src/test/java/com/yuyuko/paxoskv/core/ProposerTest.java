@@ -43,6 +43,17 @@ class ProposerTest {
         assertEquals(PaxosMessage.PaxosMessageType.Accept, messages.get(0).getType());
     }
 
+    @Test
+    void proposeSharesValue() {
+        Proposer proposer = newProposer(1, List.of(1L, 2L, 3L));
+        proposer.setCanSkipPrepare(true);
+        byte[] value = "123".getBytes();
+        proposer.propose(value);
+        List<PaxosMessage> messages = proposer.readMessages();
+        assertEquals(3, messages.size());
+        messages.forEach(m -> assertSame(value, m.getValue()));
+    }
+
     @Test
     void proposeRejectBySomeone() {
         Proposer proposer = newProposer(1, List.of(1L));
@@ -0,0 +1,95 @@
+package com.yuyuko.paxoskv.core.node;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InboxTest {
+    /**
+     * 多个生产者同时放入，消费者按批取出，每个生产者的事件保持放入的顺序，不丢失也不重复
+     */
+    @Test
+    public void multiProducerOrdering() throws InterruptedException {
+        Inbox inbox = new Inbox();
+        int producers = 4;
+        int perProducer = 100000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perProducer; i++)
+                    inbox.offer(new long[]{producer, i});
+            }));
+        }
+        threads.forEach(Thread::start);
+        long[] next = new long[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            inbox.await();
+            int[] count = new int[1];
+            inbox.drain(1024, event -> {
+                long[] e = (long[]) event;
+                assertEquals(next[(int) e[0]]++, e[1]);
+                count[0]++;
+            });
+            assertTrue(count[0] > 0 && count[0] <= 1024);
+            received += count[0];
+        }
+        for (Thread thread : threads)
+            thread.join();
+        for (long n : next)
+            assertEquals(perProducer, n);
+        assertFalse(inbox.drain(1024, event -> fail("unexpected event " + event)));
+    }
+
+    /**
+     * 一次最多取出max个，剩下的事件不需要新的唤醒，await立刻返回
+     */
+    @Test
+    public void drainLimitLeavesRestSignalled() {
+        Inbox inbox = new Inbox();
+        for (int i = 0; i < 1500; i++)
+            inbox.offer(i);
+        List<Object> handled = new ArrayList<>();
+        assertTimeoutPreemptively(Duration.ofSeconds(5), inbox::await);
+        assertTrue(inbox.drain(1024, handled::add));
+        assertEquals(1024, handled.size());
+        assertEquals(1023, handled.get(1023));
+        // 没有新的事件放入，也不会因为信号已经被消费而阻塞
+        assertTimeoutPreemptively(Duration.ofSeconds(5), inbox::await);
+        assertFalse(inbox.drain(1024, handled::add));
+        assertEquals(1500, handled.size());
+        assertEquals(1499, handled.get(1499));
+    }
+
+    /**
+     * 消费者park之后，放入事件会把它唤醒
+     */
+    @Test
+    public void offerWakesParkedConsumer() throws InterruptedException {
+        Inbox inbox = new Inbox();
+        CountDownLatch woken = new CountDownLatch(3);
+        Thread consumer = new Thread(() -> {
+            while (woken.getCount() > 0) {
+                inbox.await();
+                inbox.drain(1024, event -> woken.countDown());
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < 3; i++) {
+            // 等消费者取完并重新park
+            TimeUnit.MILLISECONDS.sleep(50);
+            assertEquals(3 - i, woken.getCount());
+            inbox.offer(i);
+        }
+        assertTrue(woken.await(5, TimeUnit.SECONDS));
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+    }
+}
@@ -0,0 +1,229 @@
+package com.yuyuko.paxoskv.core.storage;
+
+import com.yuyuko.paxoskv.core.ChosenValue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileStorageTest {
+
+    @TempDir
+    Path dir;
+
+    private static ChosenValue chosenValue(long instanceId, long acceptedId, String value) {
+        return new ChosenValue(instanceId, acceptedId, 1, acceptedId, 1,
+                value == null ? null : value.getBytes());
+    }
+
+    @Test
+    void append() {
+        FileStorage storage = new FileStorage(dir.toString());
+        assertThrows(DataNotFoundException.class, storage::maxInstanceId);
+        storage.append(List.of(chosenValue(0, 1, "0"), chosenValue(1, 1, "1")));
+        assertEquals(1, storage.maxInstanceId());
+        storage.append(List.of(chosenValue(0, 2, "x"), chosenValue(1, 2, "y"),
+                chosenValue(2, 1, null)));
+        assertEquals(2, storage.maxInstanceId());
+        assertArrayEquals("0".getBytes(), storage.get(0).getAcceptedValue());
+        assertArrayEquals("y".getBytes(), storage.get(1).getAcceptedValue());
+        assertEquals(2, storage.get(1).getAcceptedId());
+        assertNull(storage.get(2).getAcceptedValue());
+        assertThrows(Throwable.class, () -> storage.append(List.of(chosenValue(4, 1, "4"))));
+        storage.close();
+    }
+
+    @Test
+    void list() {
+        FileStorage storage = new FileStorage(dir.toString());
+        storage.append(List.of(chosenValue(0, 1, "0"), chosenValue(1, 1, "1"),
+                chosenValue(2, 1, "2")));
+        assertEquals(3, storage.list(0).size());
+        List<ChosenValue> chosenValues = storage.list(1, 3);
+        assertEquals(2, chosenValues.size());
+        assertArrayEquals("2".getBytes(), chosenValues.get(1).getAcceptedValue());
+        assertThrows(DataNotFoundException.class, () -> storage.list(1, 4));
+        assertThrows(DataNotFoundException.class, () -> storage.get(3));
+        storage.close();
+    }
+
+    @Test
+    void scan() {
+        FileStorage storage = new FileStorage(dir.toString(), 1024);
+        int count = FileStorage.INDEX_INTERVAL * 3;
+        for (int i = 0; i < count; i++) {
+            storage.append(List.of(chosenValue(i, 1, String.valueOf(i))));
+            //覆盖最后一个instanceId，可能落在新的段中
+            storage.append(List.of(chosenValue(i, 2, String.valueOf(i))));
+        }
+        assertTrue(dir.toFile().listFiles().length > 1);
+        for (int from : new int[]{0, 1, FileStorage.INDEX_INTERVAL, count - 1}) {
+            List<ChosenValue> chosenValues = storage.list(from);
+            assertEquals(count - from, chosenValues.size());
+            for (int i = 0; i < chosenValues.size(); i++) {
+                assertEquals(from + i, chosenValues.get(i).getInstanceId());
+                assertEquals(2, chosenValues.get(i).getAcceptedId());
+            }
+        }
+        assertArrayEquals("100".getBytes(), storage.get(100).getAcceptedValue());
+        storage.close();
+    }
+
+    @Test
+    void compact() {
+        FileStorage storage = new FileStorage(dir.toString(), 64);
+        for (int i = 0; i < 6; i++)
+            storage.append(List.of(chosenValue(i, 1, String.valueOf(i))));
+        int segments = dir.toFile().listFiles().length;
+        storage.compact(3);
+        assertEquals(3, storage.minInstanceId());
+        assertThrows(DataNotFoundException.class, () -> storage.get(2));
+        assertEquals(3, storage.list(3).size());
+        assertTrue(dir.toFile().listFiles().length < segments);
+        storage.compact(10);
+        assertEquals(5, storage.minInstanceId());
+        assertArrayEquals("5".getBytes(), storage.get(5).getAcceptedValue());
+        storage.close();
+
+        FileStorage recovered = new FileStorage(dir.toString(), 64);
+        assertEquals(5, recovered.maxInstanceId());
+        assertArrayEquals("5".getBytes(), recovered.get(5).getAcceptedValue());
+        recovered.close();
+    }
+
+    @Test
+    void reset() {
+        FileStorage storage = new FileStorage(dir.toString(), 64);
+        for (int i = 0; i < 4; i++)
+            storage.append(List.of(chosenValue(i, 1, String.valueOf(i))));
+        storage.reset(chosenValue(10, 2, "10"));
+        assertEquals(10, storage.minInstanceId());
+        assertEquals(10, storage.maxInstanceId());
+        storage.append(List.of(chosenValue(11, 2, "11")));
+        storage.close();
+
+        FileStorage recovered = new FileStorage(dir.toString(), 64);
+        assertEquals(10, recovered.minInstanceId());
+        assertEquals(2, recovered.list(10).size());
+        recovered.close();
+    }
+
+    @Test
+    void recover() {
+        FileStorage storage = new FileStorage(dir.toString(), 64);
+        storage.append(List.of(chosenValue(0, 1, "0"), chosenValue(1, 1, "1"),
+                chosenValue(2, 1, "2")));
+        storage.append(List.of(chosenValue(2, 3, "3")));
+        storage.close();
+        assertTrue(dir.toFile().listFiles().length > 1);
+
+        FileStorage recovered = new FileStorage(dir.toString(), 64);
+        assertEquals(2, recovered.maxInstanceId());
+        assertArrayEquals("1".getBytes(), recovered.get(1).getAcceptedValue());
+        assertArrayEquals("3".getBytes(), recovered.get(2).getAcceptedValue());
+        assertEquals(3, recovered.get(2).getPromiseId());
+        recovered.close();
+    }
+
+    @Test
+    void recoverTornTail() throws IOException {
+        FileStorage storage = new FileStorage(dir.toString());
+        storage.append(List.of(chosenValue(0, 1, "0"), chosenValue(1, 1, "1")));
+        storage.close();
+        File segment = new File(dir.toFile(), FileStorage.segmentName(0));
+        long size = segment.length();
+        try (FileOutputStream out = new FileOutputStream(segment, true)) {
+            out.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+        }
+
+        FileStorage recovered = new FileStorage(dir.toString());
+        assertEquals(size, segment.length());
+        assertEquals(1, recovered.maxInstanceId());
+        recovered.append(List.of(chosenValue(2, 1, "2")));
+        recovered.close();
+        assertEquals(2, new FileStorage(dir.toString()).maxInstanceId());
+    }
+
+    @Test
+    void preallocate() {
+        FileStorage storage = new FileStorage(dir.toString(), 4096);
+        storage.append(List.of(chosenValue(0, 1, "0")));
+        FileStorage.Segment segment = storage.lastSegment();
+        assertEquals(4096, segment.getLength());
+        assertEquals(4096, segment.getFile().length());
+        for (int i = 1; i < 20; i++) {
+            storage.append(List.of(chosenValue(i, 1, String.valueOf(i))));
+            assertEquals(i + 1, storage.list(0).size());
+        }
+        //段变长不需要重新映射
+        assertEquals(1, segment.getMapCount());
+        long size = segment.getSize();
+        storage.close();
+        assertEquals(size, segment.getFile().length());
+
+        FileStorage recovered = new FileStorage(dir.toString(), 4096);
+        assertEquals(19, recovered.maxInstanceId());
+        recovered.append(List.of(chosenValue(20, 1, "20")));
+        assertArrayEquals("20".getBytes(), recovered.get(20).getAcceptedValue());
+        recovered.close();
+    }
+
+    @Test
+    void rollTrimsSegment() {
+        FileStorage storage = new FileStorage(dir.toString(), 256);
+        for (int i = 0; i < 10; i++)
+            storage.append(List.of(chosenValue(i, 1, String.valueOf(i))));
+        assertTrue(dir.toFile().listFiles().length > 1);
+        assertTrue(storage.lastSegment().getLength() >= 256);
+        storage.close();
+
+        //前面的段滚动时截断，否则重启时末尾的0会被当成损坏的段
+        FileStorage recovered = new FileStorage(dir.toString(), 256);
+        assertEquals(9, recovered.maxInstanceId());
+        assertEquals(10, recovered.list(0).size());
+        recovered.close();
+    }
+
+    /**
+     * sync的force不持有storage的锁，同时读取和滚动段时不出错
+     */
+    @Test
+    void readWhileSync() throws Exception {
+        FileStorage storage = new FileStorage(dir.toString(), 256);
+        storage.append(List.of(chosenValue(0, 1, "0")));
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (running.get()) {
+                    long max = storage.maxInstanceId();
+                    assertArrayEquals(String.valueOf(max).getBytes(),
+                            storage.get(max).getAcceptedValue());
+                }
+            } catch (Throwable ex) {
+                error.set(ex);
+            }
+        });
+        reader.start();
+        for (int i = 1; i < 200; i++) {
+            storage.append(List.of(chosenValue(i, 1, String.valueOf(i))));
+            storage.sync();
+        }
+        running.set(false);
+        reader.join();
+        assertNull(error.get());
+        storage.close();
+
+        FileStorage recovered = new FileStorage(dir.toString(), 256);
+        assertEquals(199, recovered.maxInstanceId());
+        recovered.close();
+    }
+}
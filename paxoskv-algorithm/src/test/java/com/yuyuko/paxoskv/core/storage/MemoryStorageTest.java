@@ -53,6 +53,16 @@ class MemoryStorageTest {
         assertThrows(PaxosException.class, () -> memoryStorage.append(List.of(new ChosenValue(6))));
     }
 
+    @Test
+    void appendOverwritesLast() {
+        MemoryStorage memoryStorage = new MemoryStorage();
+        memoryStorage.append(List.of(new ChosenValue(0), new ChosenValue(1, 1, 1, 0, 0, null)));
+        //只有promise的记录被之后accept的值覆盖
+        memoryStorage.append(List.of(new ChosenValue(1, 1, 1, 1, 1, "v".getBytes())));
+        assertEquals(1, memoryStorage.maxInstanceId());
+        assertArrayEquals("v".getBytes(), memoryStorage.get(1).getAcceptedValue());
+    }
+
     @ParameterizedTest
     @MethodSource("getGenerator")
     void get(long instanceId, boolean wEx) {
@@ -123,4 +133,34 @@ class MemoryStorageTest {
         storage.append(List.of(new ChosenValue(0)));
         assertEquals(0, storage.maxInstanceId());
     }
+
+    @Test
+    void compact() {
+        MemoryStorage storage = new MemoryStorage();
+        storage.compact(1);
+        storage.append(List.of(new ChosenValue(0), new ChosenValue(1), new ChosenValue(2)));
+        storage.compact(1);
+        assertEquals(1, storage.minInstanceId());
+        assertThrows(DataNotFoundException.class, () -> storage.get(0));
+        assertEquals(2, storage.list(1).size());
+        storage.compact(0);
+        assertEquals(1, storage.minInstanceId());
+        //最大的instanceId总是保留
+        storage.compact(5);
+        assertEquals(2, storage.minInstanceId());
+        assertEquals(2, storage.maxInstanceId());
+        storage.append(List.of(new ChosenValue(1), new ChosenValue(2), new ChosenValue(3)));
+        assertEquals(3, storage.maxInstanceId());
+    }
+
+    @Test
+    void reset() {
+        MemoryStorage storage = new MemoryStorage();
+        storage.append(List.of(new ChosenValue(0), new ChosenValue(1)));
+        storage.reset(new ChosenValue(10));
+        assertEquals(10, storage.minInstanceId());
+        assertEquals(10, storage.maxInstanceId());
+        storage.append(List.of(new ChosenValue(11)));
+        assertEquals(11, storage.maxInstanceId());
+    }
 }
\ No newline at end of file
@@ -66,6 +66,31 @@ class PaxosLogTest {
         );
     }
 
+    @ParameterizedTest
+    @MethodSource("listAcceptedValuesFromBoundedGen")
+    void listAcceptedValuesFromBounded(long from, long maxBytes, int wSize) {
+        MemoryStorage storage = new MemoryStorage();
+        PaxosLog log = new PaxosLog(storage);
+        for (int i = 0; i < 150; i++) {
+            ChosenValue chosenValue = new ChosenValue(i, 1, 1, 1, 1, new byte[10]);
+            if (i < 100)
+                storage.append(List.of(chosenValue));
+            else
+                log.getUnstable().append(chosenValue);
+        }
+        List<ChosenValue> chosenValues = log.listAcceptedValuesFrom(from, maxBytes);
+        assertEquals(wSize, chosenValues.size());
+        for (int i = 0; i < chosenValues.size(); i++)
+            assertEquals(from + i, chosenValues.get(i).getInstanceId());
+    }
+
+    static Stream<Arguments> listAcceptedValuesFromBoundedGen() {
+        return Stream.of(
+                of(0, 100, 10), of(0, 0, 1), of(95, 1000, 55), of(60, 200, 20),
+                of(149, 1000, 1), of(150, 1000, 0)
+        );
+    }
+
     @Test
     void append() {
         PaxosLog log = new PaxosLog(new MemoryStorage());
@@ -122,6 +122,36 @@ class UnstableTest {
         assertEquals(4, unstable.maxInstanceId());
     }
 
+    @Test
+    void appendListOverwritesLast() {
+        Unstable unstable = new Unstable(new MemoryStorage());
+        unstable.append(new ChosenValue(0));
+        unstable.append(new ChosenValue(1, 2, 2, 0, 0, null));
+        // 只有promise的最后一条被学习到的值覆盖
+        ChosenValue learned = new ChosenValue(1);
+        unstable.append(List.of(new ChosenValue(0), learned, new ChosenValue(2)));
+        assertEquals(2, unstable.maxInstanceId());
+        assertSame(learned, unstable.getChosenValue(1));
+        assertEquals(3, unstable.unstableValues().size());
+    }
+
+    @Test
+    void stableToKeepsOverwritten() {
+        Unstable unstable = new Unstable(new MemoryStorage());
+        ChosenValue promised = new ChosenValue(0, 1, 1, 0, 0, null);
+        unstable.append(promised);
+        unstable.stableTo(promised);
+        assertTrue(unstable.isEmpty());
+
+        promised = new ChosenValue(1, 1, 1, 0, 0, null);
+        unstable.append(promised);
+        // 持久化期间被accept覆盖，不能丢弃
+        unstable.append(new ChosenValue(1, 1, 1, 1, 1, "v".getBytes()));
+        unstable.stableTo(promised);
+        assertEquals(1, unstable.minInstanceId());
+        assertArrayEquals("v".getBytes(), unstable.getChosenValue(1).getAcceptedValue());
+    }
+
     @Test
     void lastChosenValue() {
         Unstable unstable = new Unstable(new MemoryStorage());
@@ -0,0 +1,67 @@
+package com.yuyuko.paxoskv.remoting;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 选择netty的传输层，linux上可以使用native epoll，不可用时退回NIO
+ */
+public final class NettyTransport {
+    private static final Logger log = LoggerFactory.getLogger(NettyTransport.class);
+
+    private NettyTransport() {
+    }
+
+    /**
+     * @param nativeTransport 配置是否使用native epoll
+     * @return 配置打开并且当前平台支持epoll时为true
+     */
+    public static boolean useEpoll(boolean nativeTransport) {
+        if (!nativeTransport)
+            return false;
+        if (Epoll.isAvailable())
+            return true;
+        log.info("[Epoll Unavailable] fall back to nio, cause: {}",
+                Epoll.unavailabilityCause().toString());
+        return false;
+    }
+
+    public static EventLoopGroup newEventLoopGroup(boolean epoll, int threads,
+                                                   ThreadFactory threadFactory) {
+        return epoll ? new EpollEventLoopGroup(threads, threadFactory) :
+                new NioEventLoopGroup(threads, threadFactory);
+    }
+
+    /**
+     * @param reusePort 多个进程可以监听同一个端口，由内核分发连接
+     */
+    public static ServerBootstrap serverChannel(ServerBootstrap bootstrap, boolean epoll,
+                                                boolean tcpQuickAck, boolean reusePort) {
+        if (!epoll)
+            return bootstrap.channel(NioServerSocketChannel.class);
+        return bootstrap.channel(EpollServerSocketChannel.class)
+                .option(EpollChannelOption.SO_REUSEPORT, reusePort)
+                .childOption(EpollChannelOption.TCP_QUICKACK, tcpQuickAck);
+    }
+
+    public static Bootstrap clientChannel(Bootstrap bootstrap, boolean epoll,
+                                          boolean tcpQuickAck) {
+        if (!epoll)
+            return bootstrap.channel(NioSocketChannel.class);
+        return bootstrap.channel(EpollSocketChannel.class)
+                .option(EpollChannelOption.TCP_QUICKACK, tcpQuickAck);
+    }
+}
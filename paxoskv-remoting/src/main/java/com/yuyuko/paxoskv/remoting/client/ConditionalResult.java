@@ -0,0 +1,34 @@
+package com.yuyuko.paxoskv.remoting.client;
+
+/**
+ * 条件写的结果
+ */
+public class ConditionalResult {
+    private final boolean succeeded;
+
+    private final long version;
+
+    ConditionalResult(boolean succeeded, long version) {
+        this.succeeded = succeeded;
+        this.version = version;
+    }
+
+    /**
+     * 条件满足并且已经写入，DELETE时为key存在并被删除
+     */
+    public boolean isSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * 成功时为写入之后的版本（删除之后为0），失败时为key当前的版本，key不存在时为0
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return "ConditionalResult{succeeded=" + succeeded + ", version=" + version + '}';
+    }
+}
@@ -0,0 +1,359 @@
+package com.yuyuko.paxoskv.remoting.client;
+
+import com.yuyuko.paxoskv.remoting.NettyTransport;
+import com.yuyuko.paxoskv.remoting.protocol.BinaryClientProtocol;
+import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
+import com.yuyuko.paxoskv.remoting.protocol.ResponseCode;
+import com.yuyuko.paxoskv.remoting.protocol.body.ConditionalProposeMessage;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 使用二进制协议访问paxoskv，一个连接上同时可以有多个请求，按requestId匹配回复
+ * 线程安全，多个线程可以共用一个client
+ */
+public class PaxosKvClient implements Closeable {
+    private final EventLoopGroup group;
+
+    private Channel channel;
+
+    private final long requestTimeoutMillis;
+
+    private final AtomicLong nextRequestId = new AtomicLong();
+
+    /**
+     * 还没有收到回复的请求
+     */
+    private final Map<Long, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * 还没有收到回复的MULTI_READ请求
+     */
+    private final Set<Long> multiReads = ConcurrentHashMap.newKeySet();
+
+    private static class Response {
+        private final int code;
+
+        private final String body;
+
+        /**
+         * MULTI_READ成功时的结果
+         */
+        private final Map<String, String> values;
+
+        Response(int code, String body, Map<String, String> values) {
+            this.code = code;
+            this.body = body;
+            this.values = values;
+        }
+    }
+
+    private PaxosKvClient(long requestTimeoutMillis) {
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.group = NettyTransport.newEventLoopGroup(NettyTransport.useEpoll(true), 1, r -> {
+            Thread thread = new Thread(r, "PaxosKvClient");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param port 服务端的二进制协议端口，默认为HTTP端口+NettyServerConfig.BINARY_PORT_INCREMENT
+     */
+    public static PaxosKvClient connect(String host, int port, long requestTimeoutMillis) {
+        PaxosKvClient client = new PaxosKvClient(requestTimeoutMillis);
+        try {
+            client.channel = NettyTransport.clientChannel(new Bootstrap(),
+                    NettyTransport.useEpoll(true), true)
+                    .group(client.group)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.pipeline().addLast(BinaryClientProtocol.newFrameDecoder(),
+                                    client.new ResponseHandler());
+                        }
+                    })
+                    .connect(host, port).sync().channel();
+            return client;
+        } catch (Exception ex) {
+            client.group.shutdownGracefully();
+            throw new PaxosKvClientException("connect to " + host + ":" + port + " failed", ex);
+        }
+    }
+
+    private class ResponseHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) {
+            long requestId = frame.readLong();
+            int code = frame.readByte();
+            CompletableFuture<Response> future = pending.remove(requestId);
+            if (future == null)
+                return;
+            // 只有MULTI_READ的结果是[n][key,value]，按发出的请求区分
+            if (code == ResponseCode.READ && multiReads.remove(requestId))
+                future.complete(new Response(code, null, BinaryClientProtocol.readValues(frame)));
+            else
+                future.complete(new Response(code, frame.toString(StandardCharsets.UTF_8), null));
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            failAll(new PaxosKvClientException("connection closed", null));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    private void failAll(PaxosKvClientException ex) {
+        for (Long requestId : pending.keySet()) {
+            CompletableFuture<Response> future = pending.remove(requestId);
+            if (future != null)
+                future.completeExceptionally(ex);
+        }
+    }
+
+    private CompletableFuture<Response> send(int code, String key, String value, boolean flush) {
+        long requestId = nextRequestId.incrementAndGet();
+        return send(requestId, BinaryClientProtocol.encodeRequest(channel.alloc(), requestId,
+                code, key, value), flush);
+    }
+
+    private CompletableFuture<Response> send(long requestId, ByteBuf frame, boolean flush) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        pending.put(requestId, future);
+        future.whenComplete((response, ex) -> multiReads.remove(requestId));
+        if (flush)
+            channel.writeAndFlush(frame);
+        else
+            channel.write(frame);
+        channel.eventLoop().schedule(() -> {
+            CompletableFuture<Response> timeout = pending.remove(requestId);
+            if (timeout != null)
+                timeout.completeExceptionally(new PaxosKvClientException("request timeout",
+                        null));
+        }, requestTimeoutMillis, TimeUnit.MILLISECONDS);
+        if (!channel.isActive())
+            failAll(new PaxosKvClientException("connection closed", null));
+        return future;
+    }
+
+    private static String readResult(Response response) {
+        if (response.code == ResponseCode.READ)
+            return response.body;
+        if (response.code == ResponseCode.READ_NOT_FOUND)
+            return null;
+        throw new PaxosKvClientException(response.code, response.body);
+    }
+
+    private static Void proposeResult(Response response) {
+        if (response.code != ResponseCode.PROPOSE)
+            throw new PaxosKvClientException(response.code, response.body);
+        return null;
+    }
+
+    /**
+     * 线性一致读，key不存在时为null
+     */
+    public CompletableFuture<String> getAsync(String key) {
+        return send(RequestCode.READ, key, null, true).thenApply(PaxosKvClient::readResult);
+    }
+
+    /**
+     * 只读连接的节点的本地状态机，不保证线性一致，
+     * 但这个client之前写成功的值都已经在这个节点apply，一定能读到
+     */
+    public CompletableFuture<String> getLocalAsync(String key) {
+        return send(RequestCode.LOCAL_READ, key, null, true).thenApply(PaxosKvClient::readResult);
+    }
+
+    public String getLocal(String key) {
+        return join(getLocalAsync(key));
+    }
+
+    public CompletableFuture<Void> putAsync(String key, String value) {
+        return send(RequestCode.PROPOSE, key, value, true)
+                .thenApply(PaxosKvClient::proposeResult);
+    }
+
+    public String get(String key) {
+        return join(getAsync(key));
+    }
+
+    public void put(String key, String value) {
+        join(putAsync(key, value));
+    }
+
+    /**
+     * 一个MULTI_READ请求读多个key，每个key都是线性一致的，同一个group中的key是同一时刻的值
+     *
+     * @return 不存在的key不在结果中
+     */
+    public CompletableFuture<Map<String, String>> getAllAsync(Collection<String> keys) {
+        long requestId = nextRequestId.incrementAndGet();
+        multiReads.add(requestId);
+        return send(requestId, BinaryClientProtocol.encodeMultiRequest(channel.alloc(),
+                requestId, RequestCode.MULTI_READ, new ArrayList<>(keys), null), true)
+                .thenApply(response -> {
+                    if (response.code != ResponseCode.READ)
+                        throw new PaxosKvClientException(response.code, response.body);
+                    return response.values;
+                });
+    }
+
+    public Map<String, String> getAll(Collection<String> keys) {
+        return join(getAllAsync(keys));
+    }
+
+    /**
+     * 一个MULTI_PROPOSE请求在一个实例中原子地写入所有key，
+     * 服务端有多个group时所有key需要在同一个group（使用相同的{tag}），否则失败
+     */
+    public CompletableFuture<Void> putAtomicallyAsync(Map<String, String> values) {
+        long requestId = nextRequestId.incrementAndGet();
+        return send(requestId, BinaryClientProtocol.encodeMultiRequest(channel.alloc(),
+                requestId, RequestCode.MULTI_PROPOSE, new ArrayList<>(values.keySet()),
+                new ArrayList<>(values.values())), true)
+                .thenApply(PaxosKvClient::proposeResult);
+    }
+
+    public void putAtomically(Map<String, String> values) {
+        join(putAtomicallyAsync(values));
+    }
+
+    private CompletableFuture<ConditionalResult> sendConditional(int code, String key,
+                                                                 long expectedVersion,
+                                                                 String expectedValue,
+                                                                 String value) {
+        long requestId = nextRequestId.incrementAndGet();
+        return send(requestId, BinaryClientProtocol.encodeConditionalRequest(channel.alloc(),
+                requestId, code, key, expectedVersion, expectedValue, value), true)
+                .thenApply(PaxosKvClient::conditionalResult);
+    }
+
+    private static ConditionalResult conditionalResult(Response response) {
+        if (response.code == ResponseCode.PROPOSE)
+            return new ConditionalResult(true, Long.parseLong(response.body));
+        if (response.code == ResponseCode.CONDITION_FAILED)
+            return new ConditionalResult(false, Long.parseLong(response.body));
+        throw new PaxosKvClientException(response.code, response.body);
+    }
+
+    /**
+     * 条件在状态机apply时判断，不需要先读再写
+     */
+    public CompletableFuture<ConditionalResult> putIfAbsentAsync(String key, String value) {
+        return sendConditional(RequestCode.PUT_IF_ABSENT, key,
+                ConditionalProposeMessage.ANY_VERSION, null, value);
+    }
+
+    public ConditionalResult putIfAbsent(String key, String value) {
+        return join(putIfAbsentAsync(key, value));
+    }
+
+    /**
+     * @param expectedValue 期望的当前值，为null时期望key不存在
+     */
+    public CompletableFuture<ConditionalResult> compareAndSetAsync(String key,
+                                                                   String expectedValue,
+                                                                   String value) {
+        return sendConditional(RequestCode.COMPARE_AND_SET, key,
+                ConditionalProposeMessage.ANY_VERSION, expectedValue, value);
+    }
+
+    public ConditionalResult compareAndSet(String key, String expectedValue, String value) {
+        return join(compareAndSetAsync(key, expectedValue, value));
+    }
+
+    /**
+     * @param expectedVersion 期望的当前版本，为0时期望key不存在
+     */
+    public CompletableFuture<ConditionalResult> putIfVersionAsync(String key,
+                                                                  long expectedVersion,
+                                                                  String value) {
+        if (expectedVersion < 0)
+            throw new IllegalArgumentException("negative version " + expectedVersion);
+        return sendConditional(RequestCode.PUT_IF_VERSION, key, expectedVersion, null, value);
+    }
+
+    public ConditionalResult putIfVersion(String key, long expectedVersion, String value) {
+        return join(putIfVersionAsync(key, expectedVersion, value));
+    }
+
+    public CompletableFuture<ConditionalResult> deleteAsync(String key) {
+        return sendConditional(RequestCode.DELETE, key, ConditionalProposeMessage.ANY_VERSION,
+                null, null);
+    }
+
+    public ConditionalResult delete(String key) {
+        return join(deleteAsync(key));
+    }
+
+    /**
+     * 只在当前版本等于expectedVersion时删除
+     */
+    public CompletableFuture<ConditionalResult> deleteIfVersionAsync(String key,
+                                                                     long expectedVersion) {
+        if (expectedVersion < 0)
+            throw new IllegalArgumentException("negative version " + expectedVersion);
+        return sendConditional(RequestCode.DELETE, key, expectedVersion, null, null);
+    }
+
+    public ConditionalResult deleteIfVersion(String key, long expectedVersion) {
+        return join(deleteIfVersionAsync(key, expectedVersion));
+    }
+
+    /**
+     * 所有请求写完之后只flush一次，每个key单独提议，不是原子的
+     */
+    public void putAll(Map<String, String> values) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(values.size());
+        values.forEach((key, value) ->
+                futures.add(send(RequestCode.PROPOSE, key, value, false)
+                        .thenApply(PaxosKvClient::proposeResult)));
+        channel.flush();
+        futures.forEach(PaxosKvClient::join);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new PaxosKvClientException("interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof PaxosKvClientException)
+                throw (PaxosKvClientException) ex.getCause();
+            throw new PaxosKvClientException("request failed", ex.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        channel.close().syncUninterruptibly();
+        group.shutdownGracefully();
+    }
+}
@@ -0,0 +1,25 @@
+package com.yuyuko.paxoskv.remoting.client;
+
+/**
+ * 服务端返回失败，或者请求超时、连接断开
+ */
+public class PaxosKvClientException extends RuntimeException {
+    /**
+     * ResponseCode，不是服务端返回的失败时为-1
+     */
+    private final int code;
+
+    public PaxosKvClientException(int code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    public PaxosKvClientException(String message, Throwable cause) {
+        super(message, cause);
+        this.code = -1;
+    }
+
+    public int getCode() {
+        return code;
+    }
+}
@@ -11,12 +11,28 @@ public class PeerMessage {
 
     private PeerMessageType type;
 
+    /**
+     * 只在建立连接时的心跳中出现，为null时不会被编码，和原来的格式完全相同，
+     * 不认识这个字段的节点会跳过它
+     */
+    private CodecNegotiation codec;
+
     public enum PeerMessageType {
         Normal,
         Heartbeat,
         DoNotReconnect
     }
 
+    /**
+     * 发起连接的一方在第一个心跳中带上Offer，接受连接的一方支持时回复Accept，之后它发送的都是二进制；
+     * 发起方收到Accept后回复Switch，之后它发送的也都是二进制
+     */
+    public enum CodecNegotiation {
+        Offer,
+        Accept,
+        Switch
+    }
+
     public PeerMessage() {
     }
 
@@ -24,7 +40,7 @@ public class PeerMessage {
         this(message, PeerMessageType.Normal);
     }
 
-    private PeerMessage(PaxosMessage message, PeerMessageType type) {
+    PeerMessage(PaxosMessage message, PeerMessageType type) {
         this.message = message;
         this.type = type;
     }
@@ -33,6 +49,15 @@ public class PeerMessage {
         return new PeerMessage(PaxosMessage.builder().nodeId(id).build(), PeerMessageType.Heartbeat);
     }
 
+    /**
+     * 带有编码协商的心跳
+     */
+    public static PeerMessage heartbeat(long id, CodecNegotiation codec) {
+        PeerMessage heartbeat = heartbeat(id);
+        heartbeat.codec = codec;
+        return heartbeat;
+    }
+
     public static PeerMessage doNotReconnect(long id) {
         return new PeerMessage(PaxosMessage.builder().nodeId(id).build(),
                 PeerMessageType.DoNotReconnect);
@@ -45,4 +70,8 @@ public class PeerMessage {
     public PeerMessageType getType() {
         return type;
     }
+
+    public CodecNegotiation getCodec() {
+        return codec;
+    }
 }
@@ -0,0 +1,182 @@
+package com.yuyuko.paxoskv.remoting.peer;
+
+import com.yuyuko.paxoskv.core.ChosenValue;
+import com.yuyuko.paxoskv.core.PaxosMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PeerMessage的二进制编码，直接读写ByteBuf，不经过反射和中间数组
+ * 格式：[peerType][hasMessage][paxosType][presence][非0的long字段][groupId][value][learnedValues]
+ * long字段用zigzag varint编码，presence的每一位表示对应字段是否非0
+ * 长度字段用长度+1编码，0表示null
+ */
+public final class PeerMessageBinaryCodec {
+    private static final PeerMessage.PeerMessageType[] PEER_TYPES =
+            PeerMessage.PeerMessageType.values();
+
+    private static final PaxosMessage.PaxosMessageType[] PAXOS_TYPES =
+            PaxosMessage.PaxosMessageType.values();
+
+    private static final int NULL_TYPE = 0xFF;
+
+    private static final int LONG_FIELD_COUNT = 13;
+
+    private PeerMessageBinaryCodec() {
+    }
+
+    public static void encode(PeerMessage msg, ByteBuf out) {
+        out.writeByte(msg.getType() == null ? NULL_TYPE : msg.getType().ordinal());
+        PaxosMessage m = msg.getMessage();
+        out.writeBoolean(m != null);
+        if (m == null)
+            return;
+        out.writeByte(m.getType() == null ? NULL_TYPE : m.getType().ordinal());
+        long[] fields = longFields(m);
+        int presence = 0;
+        for (int i = 0; i < LONG_FIELD_COUNT; i++)
+            if (fields[i] != 0)
+                presence |= 1 << i;
+        writeVarint(out, presence);
+        for (int i = 0; i < LONG_FIELD_COUNT; i++)
+            if (fields[i] != 0)
+                writeVarint(out, zigzag(fields[i]));
+        writeVarint(out, zigzag(m.getGroupId()));
+        writeBytes(out, m.getValue());
+        List<ChosenValue> learnedValues = m.getLearnedValues();
+        if (learnedValues == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        writeVarint(out, learnedValues.size() + 1L);
+        for (ChosenValue value : learnedValues) {
+            writeVarint(out, zigzag(value.getInstanceId()));
+            writeVarint(out, zigzag(value.getPromiseId()));
+            writeVarint(out, zigzag(value.getPromiseNodeId()));
+            writeVarint(out, zigzag(value.getAcceptedId()));
+            writeVarint(out, zigzag(value.getAcceptedNodeId()));
+            writeBytes(out, value.getAcceptedValue());
+        }
+    }
+
+    public static PeerMessage decode(ByteBuf in) {
+        int peerType = in.readUnsignedByte();
+        if (!in.readBoolean())
+            return new PeerMessage(null, peerType(peerType));
+        int paxosType = in.readUnsignedByte();
+        PaxosMessage.Builder builder = PaxosMessage.builder()
+                .type(paxosType == NULL_TYPE ? null : PAXOS_TYPES[checkIndex(paxosType,
+                        PAXOS_TYPES.length)]);
+        int presence = (int) readVarint(in);
+        long[] fields = new long[LONG_FIELD_COUNT];
+        for (int i = 0; i < LONG_FIELD_COUNT; i++)
+            if ((presence & (1 << i)) != 0)
+                fields[i] = unzigzag(readVarint(in));
+        builder.instanceId(fields[0])
+                .nodeId(fields[1])
+                .toNodeId(fields[2])
+                .proposalId(fields[3])
+                .proposalNodeId(fields[4])
+                .preAcceptId(fields[5])
+                .preAcceptNodeId(fields[6])
+                .rejectByPromiseId(fields[7])
+                .nowInstanceId(fields[8])
+                .minChosenInstanceId(fields[9])
+                .snapshotOffset(fields[10])
+                .snapshotSize(fields[11])
+                .readId(fields[12])
+                .groupId((int) unzigzag(readVarint(in)))
+                .value(readBytes(in));
+        long count = readVarint(in);
+        if (count > 0) {
+            List<ChosenValue> learnedValues = new ArrayList<>((int) Math.min(count - 1, 1024));
+            for (long i = 0; i < count - 1; i++)
+                learnedValues.add(new ChosenValue(unzigzag(readVarint(in)),
+                        unzigzag(readVarint(in)), unzigzag(readVarint(in)),
+                        unzigzag(readVarint(in)), unzigzag(readVarint(in)), readBytes(in)));
+            builder.learnedValues(learnedValues);
+        }
+        return new PeerMessage(builder.build(), peerType(peerType));
+    }
+
+    /**
+     * 顺序和decode一致，新增字段只能加在末尾
+     */
+    private static long[] longFields(PaxosMessage m) {
+        return new long[]{
+                m.getInstanceId(),
+                m.getNodeId(),
+                m.getToNodeId(),
+                m.getProposalId(),
+                m.getProposalNodeId(),
+                m.getPreAcceptId(),
+                m.getPreAcceptNodeId(),
+                m.getRejectByPromiseId(),
+                m.getNowInstanceId(),
+                m.getMinChosenInstanceId(),
+                m.getSnapshotOffset(),
+                m.getSnapshotSize(),
+                m.getReadId()
+        };
+    }
+
+    private static PeerMessage.PeerMessageType peerType(int ordinal) {
+        return ordinal == NULL_TYPE ? null : PEER_TYPES[checkIndex(ordinal, PEER_TYPES.length)];
+    }
+
+    private static int checkIndex(int index, int length) {
+        if (index >= length)
+            throw new CorruptedFrameException("unknown type " + index);
+        return index;
+    }
+
+    private static void writeBytes(ByteBuf out, byte[] bytes) {
+        if (bytes == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        writeVarint(out, bytes.length + 1L);
+        out.writeBytes(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuf in) {
+        long length = readVarint(in);
+        if (length == 0)
+            return null;
+        if (length - 1 > in.readableBytes())
+            throw new CorruptedFrameException("bytes length " + (length - 1) + " exceeds frame");
+        byte[] bytes = new byte[(int) (length - 1)];
+        in.readBytes(bytes);
+        return bytes;
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarint(ByteBuf out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarint(ByteBuf in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw new CorruptedFrameException("malformed varint");
+    }
+}
@@ -2,13 +2,20 @@ package com.yuyuko.paxoskv.remoting.peer;
 
 import com.yuyuko.paxoskv.remoting.protocol.codec.ProtostuffCodec;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 
+/**
+ * 每个连接一个实例，对方在Protostuff编码的Accept或Switch之后发送的都是二进制编码
+ * 在解码时切换，同一次读到的后续帧马上按二进制解码
+ */
 public class PeerMessageDecoder extends LengthFieldBasedFrameDecoder {
 
     private static final int FRAME_MAX_LENGTH = 16777216;
 
+    private boolean binary;
+
     public PeerMessageDecoder() {
         super(FRAME_MAX_LENGTH, 0, 4, 0, 4);
     }
@@ -19,12 +26,20 @@ public class PeerMessageDecoder extends LengthFieldBasedFrameDecoder {
         if (frame == null)
             return null;
         try {
-            int len = frame.readableBytes();
-            byte[] bytes = new byte[len];
-            frame.readBytes(bytes, frame.readerIndex(), len);
-            return ProtostuffCodec.getInstance().decode(bytes, PeerMessage.class);
+            if (binary)
+                return PeerMessageBinaryCodec.decode(frame);
+            PeerMessage msg = ProtostuffCodec.getInstance().decode(ByteBufUtil.getBytes(frame),
+                    PeerMessage.class);
+            if (msg.getCodec() == PeerMessage.CodecNegotiation.Accept
+                    || msg.getCodec() == PeerMessage.CodecNegotiation.Switch)
+                binary = true;
+            return msg;
         } finally {
             frame.release();
         }
     }
+
+    boolean isBinary() {
+        return binary;
+    }
 }
@@ -5,17 +5,38 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
 
-import java.nio.ByteBuffer;
-
+/**
+ * 帧格式：[int 长度][消息]，每个连接一个实例
+ * 一开始使用Protostuff编码，和不支持二进制编码的节点兼容，协商成功后改用二进制编码
+ */
 public class PeerMessageEncoder extends MessageToByteEncoder<PeerMessage> {
+    /**
+     * 只在连接的事件循环中读写，切换之前write的消息已经编码完
+     */
+    private boolean binary;
+
+    /**
+     * 之后的消息都使用二进制编码
+     */
+    public void useBinary() {
+        binary = true;
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
     @Override
     protected void encode(ChannelHandlerContext ctx, PeerMessage msg, ByteBuf out) throws Exception {
-        byte[] bytes = ProtostuffCodec.getInstance().encode(msg);
-        int length = 4;
-        ByteBuffer res = ByteBuffer.allocate(length + bytes.length);
-        res.putInt(bytes.length);
-        res.put(bytes);
-        res.flip();
-        out.writeBytes(res);
+        if (!binary) {
+            byte[] bytes = ProtostuffCodec.getInstance().encode(msg);
+            out.writeInt(bytes.length);
+            out.writeBytes(bytes);
+            return;
+        }
+        int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+        PeerMessageBinaryCodec.encode(msg, out);
+        out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
     }
 }
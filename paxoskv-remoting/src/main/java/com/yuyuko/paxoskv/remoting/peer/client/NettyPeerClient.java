@@ -1,18 +1,19 @@
 package com.yuyuko.paxoskv.remoting.peer.client;
 
 import com.yuyuko.paxoskv.core.PaxosMessage;
+import com.yuyuko.paxoskv.remoting.NettyTransport;
 import com.yuyuko.paxoskv.remoting.peer.*;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.timeout.IdleStateHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ThreadFactory;
@@ -29,6 +30,8 @@ public class NettyPeerClient extends AbstractPeerRemoting {
 
     private final List<PeerNode> peers;
 
+    private final boolean epoll;
+
     private volatile static NettyPeerClient globalInstance;
 
     public NettyPeerClient(long id, NettyPeerClientConfig clientConfig, List<PeerNode> peers,
@@ -37,7 +40,8 @@ public class NettyPeerClient extends AbstractPeerRemoting {
         super(id, peerMessageProcessor, channelManager);
         this.clientConfig = clientConfig;
         this.peers = peers;
-        this.eventLoopGroupWorker = new NioEventLoopGroup(1, new ThreadFactory() {
+        this.epoll = NettyTransport.useEpoll(clientConfig.isNativeTransport());
+        this.eventLoopGroupWorker = NettyTransport.newEventLoopGroup(epoll, 1, new ThreadFactory() {
             private AtomicInteger threadIndex = new AtomicInteger(0);
 
             @Override
@@ -61,8 +65,8 @@ public class NettyPeerClient extends AbstractPeerRemoting {
                 continue;
             Bootstrap bootstrap = new Bootstrap();
             try {
-                bootstrap.group(this.eventLoopGroupWorker)
-                        .channel(NioSocketChannel.class)
+                NettyTransport.clientChannel(bootstrap, epoll, clientConfig.isTcpQuickAck())
+                        .group(this.eventLoopGroupWorker)
                         .remoteAddress(new InetSocketAddress(peer.getAddr(), peer.getPort()))
                         .option(ChannelOption.TCP_NODELAY, true)
                         .option(ChannelOption.SO_KEEPALIVE, false)
@@ -80,7 +84,8 @@ public class NettyPeerClient extends AbstractPeerRemoting {
                                                 new IdleStateHandler(0, 0,
                                                         clientConfig.getClientChannelMaxIdleTimeSeconds()),
                                                 new PeerClientConnectionHandler(peer.getId(),
-                                                        channelManager, reconnectionManager),
+                                                        channelManager, reconnectionManager,
+                                                        clientConfig.isBinaryCodec()),
                                                 new PeerMessageHandler(messageProcessor)
                                         );
                             }
@@ -109,20 +114,38 @@ public class NettyPeerClient extends AbstractPeerRemoting {
         return globalInstance;
     }
 
+    /**
+     * 按节点分组，每个节点的消息在它的事件循环中一次write完，最后只flush一次
+     */
     public void sendMessage(List<PaxosMessage> messages) {
-        for (PaxosMessage message : messages) {
-            ChannelHandlerContext ctx = channelManager.getChannel(message.getToNodeId());
+        Map<Long, List<PaxosMessage>> messagesByPeer = new LinkedHashMap<>();
+        for (PaxosMessage message : messages)
+            messagesByPeer.computeIfAbsent(message.getToNodeId(), k -> new ArrayList<>())
+                    .add(message);
+        messagesByPeer.forEach((peerId, peerMessages) -> {
+            ChannelHandlerContext ctx = channelManager.getChannel(peerId);
             if (ctx == null)
-                continue;
-            ChannelFuture channelFuture = ctx.writeAndFlush(new PeerMessage(message));
-            channelFuture.addListener(
-                    future -> {
-                        if (!future.isSuccess()) {
-                            channelManager.removeChannel(message.getToNodeId());
-                            ctx.channel().close();
-                        }
-                    }
-            );
-        }
+                return;
+            ChannelFutureListener onFailure = future -> {
+                if (!future.isSuccess()) {
+                    channelManager.removeChannel(peerId);
+                    ctx.channel().close();
+                }
+            };
+            ctx.executor().execute(() -> writeBatch(ctx, peerMessages, onFailure));
+        });
+    }
+
+    /**
+     * 除最后一条外都使用voidPromise，不为每条消息创建promise和listener
+     * flush失败时这一批都失败，只在最后一条上监听就够了
+     */
+    static void writeBatch(ChannelHandlerContext ctx, List<PaxosMessage> messages,
+                           ChannelFutureListener onFailure) {
+        int last = messages.size() - 1;
+        for (int i = 0; i < last; i++)
+            ctx.write(new PeerMessage(messages.get(i)), ctx.voidPromise());
+        ctx.write(new PeerMessage(messages.get(last))).addListener(onFailure);
+        ctx.flush();
     }
 }
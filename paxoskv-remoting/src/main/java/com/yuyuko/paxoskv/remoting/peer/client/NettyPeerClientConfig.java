@@ -15,6 +15,22 @@ public class NettyPeerClientConfig {
 
     private int clientSocketRcvBufSize = 65535;
 
+    /**
+     * 建立连接时和对方协商，双方都打开时改用二进制编码，否则使用原来的Protostuff格式
+     */
+    private boolean binaryCodec = true;
+
+    /**
+     * linux上使用native epoll，不可用时退回NIO
+     */
+    private boolean nativeTransport = true;
+
+    /**
+     * 只对epoll有效
+     */
+    private boolean tcpQuickAck = true;
+
+
     public int getMaxReconnectTimes() {
         return maxReconnectTimes;
     }
@@ -42,4 +58,29 @@ public class NettyPeerClientConfig {
     public int  getClientChannelMaxIdleTimeSeconds() {
         return clientChannelMaxIdleTimeSeconds;
     }
+
+    public boolean isBinaryCodec() {
+        return binaryCodec;
+    }
+
+    public void setBinaryCodec(boolean binaryCodec) {
+        this.binaryCodec = binaryCodec;
+    }
+
+    public boolean isNativeTransport() {
+        return nativeTransport;
+    }
+
+    public void setNativeTransport(boolean nativeTransport) {
+        this.nativeTransport = nativeTransport;
+    }
+
+    public boolean isTcpQuickAck() {
+        return tcpQuickAck;
+    }
+
+    public void setTcpQuickAck(boolean tcpQuickAck) {
+        this.tcpQuickAck = tcpQuickAck;
+    }
+
 }
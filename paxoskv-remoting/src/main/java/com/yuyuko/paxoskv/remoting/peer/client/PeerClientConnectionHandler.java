@@ -2,6 +2,7 @@ package com.yuyuko.paxoskv.remoting.peer.client;
 
 import com.yuyuko.paxoskv.remoting.peer.PeerChannelManager;
 import com.yuyuko.paxoskv.remoting.peer.PeerMessage;
+import com.yuyuko.paxoskv.remoting.peer.PeerMessageEncoder;
 import com.yuyuko.paxoskv.remoting.peer.PeerReconnectionManager;
 import com.yuyuko.paxoskv.remoting.peer.server.NettyPeerServer;
 import io.netty.channel.*;
@@ -18,11 +19,15 @@ public class PeerClientConnectionHandler extends ChannelInboundHandlerAdapter {
 
     private final PeerReconnectionManager reconnectionManager;
 
+    private final boolean binaryCodec;
+
     public PeerClientConnectionHandler(long peerId, PeerChannelManager channelManager,
-                                       PeerReconnectionManager reconnectionManager) {
+                                       PeerReconnectionManager reconnectionManager,
+                                       boolean binaryCodec) {
         this.peerId = peerId;
         this.channelManager = channelManager;
         this.reconnectionManager = reconnectionManager;
+        this.binaryCodec = binaryCodec;
     }
 
     @Override
@@ -40,12 +45,30 @@ public class PeerClientConnectionHandler extends ChannelInboundHandlerAdapter {
 
         log.info("[Peer connect],peer {}", peerId);
 
-        //连接上后发个心跳
-        ctx.writeAndFlush(PeerMessage.heartbeat(NettyPeerServer.getGlobalInstance().getId()));
+        //连接上后发个心跳，支持二进制编码时同时发起协商
+        long id = NettyPeerServer.getGlobalInstance().getId();
+        ctx.writeAndFlush(binaryCodec ?
+                PeerMessage.heartbeat(id, PeerMessage.CodecNegotiation.Offer) :
+                PeerMessage.heartbeat(id));
 
         super.channelActive(ctx);
     }
 
+    /**
+     * 对方接受了二进制编码，用Protostuff编码的Switch告诉对方从下一条消息开始切换
+     */
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof PeerMessage
+                && ((PeerMessage) msg).getCodec() == PeerMessage.CodecNegotiation.Accept) {
+            log.info("[Peer Binary Codec],peer {}", peerId);
+            ctx.writeAndFlush(PeerMessage.heartbeat(NettyPeerServer.getGlobalInstance().getId(),
+                    PeerMessage.CodecNegotiation.Switch));
+            ctx.pipeline().get(PeerMessageEncoder.class).useBinary();
+        }
+        super.channelRead(ctx, msg);
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         if (reconnectionManager.reconnect(peerId)) {
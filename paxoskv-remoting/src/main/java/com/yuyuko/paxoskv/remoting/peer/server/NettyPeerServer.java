@@ -1,13 +1,12 @@
 package com.yuyuko.paxoskv.remoting.peer.server;
 
+import com.yuyuko.paxoskv.remoting.NettyTransport;
 import com.yuyuko.paxoskv.remoting.peer.*;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,6 +25,8 @@ public class NettyPeerServer extends AbstractPeerRemoting {
 
     private final NettyPeerServerConfig config;
 
+    private final boolean epoll;
+
     private static volatile NettyPeerServer globalInstance;
 
     public NettyPeerServer(long id, NettyPeerServerConfig config,
@@ -34,7 +35,8 @@ public class NettyPeerServer extends AbstractPeerRemoting {
         super(id, peerMessageProcessor, channelManager);
         this.config = config;
         this.serverBootstrap = new ServerBootstrap();
-        this.eventLoopGroupBoss = new NioEventLoopGroup(1, new ThreadFactory() {
+        this.epoll = NettyTransport.useEpoll(config.isNativeTransport());
+        this.eventLoopGroupBoss = NettyTransport.newEventLoopGroup(epoll, 1, new ThreadFactory() {
             private final AtomicInteger cnt = new AtomicInteger(0);
 
             @Override
@@ -43,7 +45,8 @@ public class NettyPeerServer extends AbstractPeerRemoting {
             }
         });
         this.eventLoopGroupSelector =
-                new NioEventLoopGroup(config.getServerSelectorThreads(), new ThreadFactory() {
+                NettyTransport.newEventLoopGroup(epoll, config.getServerSelectorThreads(),
+                        new ThreadFactory() {
                     private final AtomicInteger cnt = new AtomicInteger(0);
 
                     @Override
@@ -58,9 +61,9 @@ public class NettyPeerServer extends AbstractPeerRemoting {
 
     @Override
     public void start() {
-        this.serverBootstrap
+        NettyTransport.serverChannel(this.serverBootstrap, epoll, config.isTcpQuickAck(),
+                config.isReusePort())
                 .group(eventLoopGroupBoss, eventLoopGroupSelector)
-                .channel(NioServerSocketChannel.class)
                 .option(ChannelOption.SO_BACKLOG, 1024)
                 .option(ChannelOption.SO_REUSEADDR, true)
                 .option(ChannelOption.SO_KEEPALIVE, false)
@@ -74,7 +77,8 @@ public class NettyPeerServer extends AbstractPeerRemoting {
                         ch.pipeline().addLast(
                                 new PeerMessageEncoder(),
                                 new PeerMessageDecoder(),
-                                new PeerServerConnectionHandler(channelManager),
+                                new PeerServerConnectionHandler(channelManager,
+                                        config.isBinaryCodec()),
                                 new PeerMessageHandler(messageProcessor)
                         );
                     }
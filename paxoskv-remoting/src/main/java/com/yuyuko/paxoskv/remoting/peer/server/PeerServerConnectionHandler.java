@@ -2,6 +2,7 @@ package com.yuyuko.paxoskv.remoting.peer.server;
 
 import com.yuyuko.paxoskv.remoting.peer.PeerChannelManager;
 import com.yuyuko.paxoskv.remoting.peer.PeerMessage;
+import com.yuyuko.paxoskv.remoting.peer.PeerMessageEncoder;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -10,8 +11,11 @@ import io.netty.channel.SimpleChannelInboundHandler;
 public class PeerServerConnectionHandler extends SimpleChannelInboundHandler<PeerMessage> {
     private final PeerChannelManager channelManager;
 
-    public PeerServerConnectionHandler(PeerChannelManager channelManager) {
+    private final boolean binaryCodec;
+
+    public PeerServerConnectionHandler(PeerChannelManager channelManager, boolean binaryCodec) {
         this.channelManager = channelManager;
+        this.binaryCodec = binaryCodec;
     }
 
     @Override
@@ -23,6 +27,8 @@ public class PeerServerConnectionHandler extends SimpleChannelInboundHandler<Pee
         switch (msg.getType()) {
             case Normal:
             case Heartbeat:
+                if (msg.getCodec() == PeerMessage.CodecNegotiation.Offer && binaryCodec)
+                    acceptBinaryCodec(ctx);
                 channelManager.registerChannel(from, ctx);
                 ctx.fireChannelRead(msg);
                 break;
@@ -31,4 +37,13 @@ public class PeerServerConnectionHandler extends SimpleChannelInboundHandler<Pee
                 break;
         }
     }
+
+    /**
+     * Accept本身还是Protostuff编码，之后发送的都是二进制编码
+     */
+    private void acceptBinaryCodec(ChannelHandlerContext ctx) {
+        ctx.writeAndFlush(PeerMessage.heartbeat(NettyPeerServer.getGlobalInstance().getId(),
+                PeerMessage.CodecNegotiation.Accept));
+        ctx.pipeline().get(PeerMessageEncoder.class).useBinary();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,160 @@
+package com.yuyuko.paxoskv.remoting.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 客户端的二进制协议，服务端和PaxosKvClient共用
+ * 请求：[int 长度][long requestId][byte RequestCode][string key][string value，只有PROPOSE有]
+ * MULTI_READ和MULTI_PROPOSE的请求：[int 长度][long requestId][byte RequestCode][int n][n个key或者key,value]
+ * 条件写的请求：[int 长度][long requestId][byte RequestCode][string key][long 期望版本][string 期望值][string value]，
+ * 其中的string长度为-1时代表null
+ * 回复：[int 长度][long requestId][byte ResponseCode][body]，MULTI_READ成功时body为[int n][n个key,value]，
+ * 写请求的body为写入之后的版本的十进制字符串，条件不满足时为当前的版本
+ * string为[int 字节数][utf-8]，requestId由客户端分配，回复按处理完成的顺序返回
+ */
+public final class BinaryClientProtocol {
+    public static final int FRAME_MAX_LENGTH = 16777216;
+
+    private BinaryClientProtocol() {
+    }
+
+    /**
+     * 去掉长度字段，得到一个完整的请求或回复
+     */
+    public static LengthFieldBasedFrameDecoder newFrameDecoder() {
+        return new LengthFieldBasedFrameDecoder(FRAME_MAX_LENGTH, 0, 4, 0, 4);
+    }
+
+    public static ByteBuf encodeRequest(ByteBufAllocator alloc, long requestId, int code,
+                                        String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 1 + 4 + keyBytes.length + (valueBytes == null ? 0 :
+                4 + valueBytes.length);
+        ByteBuf out = alloc.buffer(4 + length);
+        out.writeInt(length);
+        out.writeLong(requestId);
+        out.writeByte(code);
+        writeBytes(out, keyBytes);
+        if (valueBytes != null)
+            writeBytes(out, valueBytes);
+        return out;
+    }
+
+    /**
+     * @param values MULTI_PROPOSE时和keys一一对应，MULTI_READ时为null
+     */
+    public static ByteBuf encodeMultiRequest(ByteBufAllocator alloc, long requestId, int code,
+                                             List<String> keys, List<String> values) {
+        ByteBuf out = alloc.buffer();
+        out.writeInt(0);
+        out.writeLong(requestId);
+        out.writeByte(code);
+        out.writeInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            writeString(out, keys.get(i));
+            if (values != null)
+                writeString(out, values.get(i));
+        }
+        out.setInt(0, out.readableBytes() - 4);
+        return out;
+    }
+
+    public static ByteBuf encodeConditionalRequest(ByteBufAllocator alloc, long requestId,
+                                                   int code, String key, long expectedVersion,
+                                                   String expectedValue, String value) {
+        ByteBuf out = alloc.buffer();
+        out.writeInt(0);
+        out.writeLong(requestId);
+        out.writeByte(code);
+        writeString(out, key);
+        out.writeLong(expectedVersion);
+        writeString(out, expectedValue);
+        writeString(out, value);
+        out.setInt(0, out.readableBytes() - 4);
+        return out;
+    }
+
+    public static void encodeResponse(ByteBuf out, long requestId, int code,
+                                      Map<String, String> values) {
+        int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+        out.writeLong(requestId);
+        out.writeByte(code);
+        out.writeInt(values.size());
+        values.forEach((key, value) -> {
+            writeString(out, key);
+            writeString(out, value);
+        });
+        out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
+    }
+
+    public static Map<String, String> readValues(ByteBuf in) {
+        int count = readCount(in);
+        Map<String, String> values = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++)
+            values.put(readString(in), readString(in));
+        return values;
+    }
+
+    /**
+     * 每个元素至少有一个4字节的长度，个数超过剩余的字节数时帧已经损坏
+     */
+    public static int readCount(ByteBuf in) {
+        int count = in.readInt();
+        if (count < 0 || count > in.readableBytes() / 4)
+            throw new CorruptedFrameException("count " + count + " exceeds frame");
+        return count;
+    }
+
+    public static void encodeResponse(ByteBuf out, long requestId, int code, byte[] body) {
+        out.writeInt(8 + 1 + body.length);
+        out.writeLong(requestId);
+        out.writeByte(code);
+        out.writeBytes(body);
+    }
+
+    public static String readString(ByteBuf in) {
+        int length = in.readInt();
+        if (length < 0 || length > in.readableBytes())
+            throw new CorruptedFrameException("string length " + length + " exceeds frame");
+        String value = in.toString(in.readerIndex(), length, StandardCharsets.UTF_8);
+        in.skipBytes(length);
+        return value;
+    }
+
+    /**
+     * 长度为-1时为null
+     */
+    public static String readNullableString(ByteBuf in) {
+        if (in.getInt(in.readerIndex()) == -1) {
+            in.skipBytes(4);
+            return null;
+        }
+        return readString(in);
+    }
+
+    private static void writeString(ByteBuf out, String value) {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+        int length = out.writeCharSequence(value, StandardCharsets.UTF_8);
+        out.setInt(lengthIndex, length);
+    }
+
+    private static void writeBytes(ByteBuf out, byte[] bytes) {
+        out.writeInt(bytes.length);
+        out.writeBytes(bytes);
+    }
+}
@@ -4,4 +4,43 @@ public class RequestCode {
     public static final int READ = 0;
 
     public static final int PROPOSE = 1;
+
+    /**
+     * 多个key的读，每个key都是线性一致的
+     */
+    public static final int MULTI_READ = 2;
+
+    /**
+     * 多个key的写，在一个实例中原子地apply
+     */
+    public static final int MULTI_PROPOSE = 3;
+
+    /**
+     * 条件写，在状态机apply时判断条件，结果回复给提议的客户端
+     */
+    public static final int DELETE = 4;
+
+    public static final int PUT_IF_ABSENT = 5;
+
+    /**
+     * 当前值等于期望值时写入
+     */
+    public static final int COMPARE_AND_SET = 6;
+
+    /**
+     * 当前版本等于期望版本时写入，版本0代表key不存在
+     */
+    public static final int PUT_IF_VERSION = 7;
+
+    /**
+     * 只读本地状态机，不保证线性一致，能读到本节点已经回复的写
+     */
+    public static final int LOCAL_READ = 8;
+
+    /**
+     * 需要等状态机apply之后才知道结果的写
+     */
+    public static boolean isConditional(int code) {
+        return code >= DELETE && code <= PUT_IF_VERSION;
+    }
 }
@@ -6,4 +6,38 @@ public class ResponseCode {
     public static final int PROPOSE = 5;
 
     public static final int TOO_MANY_REQUEST = 6;
+
+    public static final int SYSTEM_ERROR = 7;
+
+    /**
+     * 读的key不存在
+     */
+    public static final int READ_NOT_FOUND = 8;
+
+    public static final int READ_TIMEOUT = 9;
+
+    /**
+     * 提议和其他提议冲突，重试之后也没有被选中
+     */
+    public static final int PROPOSE_FAILED = 10;
+
+    /**
+     * 转发给master的提议超时，值可能被选中也可能没有
+     */
+    public static final int PROPOSE_TIMEOUT = 11;
+
+    /**
+     * 多个key的写涉及多个paxos group，不能在一个实例中完成
+     */
+    public static final int CROSS_GROUP = 12;
+
+    /**
+     * 条件写的条件不满足，body为key当前的版本
+     */
+    public static final int CONDITION_FAILED = 13;
+
+    /**
+     * 请求的格式错误，比如If-Match不是版本号，body为错误的原因
+     */
+    public static final int BAD_REQUEST = 14;
 }
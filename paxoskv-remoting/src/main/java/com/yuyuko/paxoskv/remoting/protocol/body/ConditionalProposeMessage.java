@@ -0,0 +1,53 @@
+package com.yuyuko.paxoskv.remoting.protocol.body;
+
+/**
+ * DELETE、PUT_IF_ABSENT、COMPARE_AND_SET和PUT_IF_VERSION共用的请求体，
+ * 每种请求只使用其中需要的字段
+ */
+public class ConditionalProposeMessage {
+    /**
+     * DELETE不检查版本
+     */
+    public static final long ANY_VERSION = -1;
+
+    private String key;
+
+    /**
+     * 要写入的值，DELETE时为null
+     */
+    private String value;
+
+    /**
+     * COMPARE_AND_SET期望的当前值，为null时期望key不存在
+     */
+    private String expectedValue;
+
+    /**
+     * PUT_IF_VERSION和DELETE期望的当前版本
+     */
+    private long expectedVersion;
+
+    public ConditionalProposeMessage(String key, String value, String expectedValue,
+                                     long expectedVersion) {
+        this.key = key;
+        this.value = value;
+        this.expectedValue = expectedValue;
+        this.expectedVersion = expectedVersion;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public String getExpectedValue() {
+        return expectedValue;
+    }
+
+    public long getExpectedVersion() {
+        return expectedVersion;
+    }
+}
@@ -0,0 +1,31 @@
+package com.yuyuko.paxoskv.remoting.protocol.body;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 多个key的写，在一个实例中一起apply
+ */
+public class MultiProposeMessage {
+    private List<String> keys;
+
+    private List<String> values;
+
+    public MultiProposeMessage(List<String> keys, List<String> values) {
+        if (keys.size() != values.size())
+            throw new IllegalArgumentException("keys and values size mismatch");
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * protostuff不写空的列表，解码出来是null
+     */
+    public List<String> getKeys() {
+        return keys == null ? Collections.emptyList() : keys;
+    }
+
+    public List<String> getValues() {
+        return values == null ? Collections.emptyList() : values;
+    }
+}
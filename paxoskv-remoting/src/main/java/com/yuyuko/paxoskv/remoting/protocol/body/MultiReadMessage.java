@@ -0,0 +1,19 @@
+package com.yuyuko.paxoskv.remoting.protocol.body;
+
+import java.util.Collections;
+import java.util.List;
+
+public class MultiReadMessage {
+    private List<String> keys;
+
+    public MultiReadMessage(List<String> keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * protostuff不写空的列表，解码出来是null
+     */
+    public List<String> getKeys() {
+        return keys == null ? Collections.emptyList() : keys;
+    }
+}
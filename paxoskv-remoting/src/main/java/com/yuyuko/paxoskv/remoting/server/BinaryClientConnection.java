@@ -0,0 +1,54 @@
+package com.yuyuko.paxoskv.remoting.server;
+
+import io.netty.channel.ChannelHandlerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * 二进制协议的客户端连接，请求带有客户端分配的requestId，到达后立刻处理，
+ * 回复按完成的顺序写回，由FlushConsolidationHandler合并flush
+ * 同一个连接上的请求之间没有顺序保证，依赖写结果的读需要等写回复之后再发
+ */
+class BinaryClientConnection extends ClientConnection {
+    private static final Logger log = LoggerFactory.getLogger(BinaryClientConnection.class);
+
+    /**
+     * 还没有回复的requestId
+     */
+    private final Set<Long> processing = new HashSet<>();
+
+    BinaryClientConnection(ChannelHandlerContext ctx, Consumer<ClientRequest> dispatcher) {
+        super(ctx, dispatcher);
+    }
+
+    @Override
+    void receive(ClientRequest request) {
+        // 解码时已经设置了requestId
+        request.attach(this, request.getSequence());
+        if (!processing.add(request.getSequence())) {
+            log.warn("[Duplicate RequestId] {}, remote {}",
+                    request.getSequence(), ctx.channel().remoteAddress());
+            ctx.close();
+            return;
+        }
+        dispatcher.accept(request);
+    }
+
+    @Override
+    void reply(ClientRequest request, ClientResponse response, Runnable onFirstReply) {
+        if (!ctx.executor().inEventLoop()) {
+            ctx.executor().execute(() -> reply(request, response, onFirstReply));
+            return;
+        }
+        if (!processing.remove(request.getSequence()))
+            return;
+        if (onFirstReply != null)
+            onFirstReply.run();
+        response.setSequence(request.getSequence());
+        ctx.writeAndFlush(response);
+    }
+}
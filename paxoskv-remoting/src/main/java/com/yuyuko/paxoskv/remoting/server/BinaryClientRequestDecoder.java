@@ -0,0 +1,67 @@
+package com.yuyuko.paxoskv.remoting.server;
+
+import com.yuyuko.paxoskv.core.utils.Tuple;
+import com.yuyuko.paxoskv.remoting.protocol.BinaryClientProtocol;
+import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
+import com.yuyuko.paxoskv.remoting.protocol.body.ConditionalProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.MultiProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.MultiReadMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.ProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.ReadMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.MessageToMessageDecoder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 解码二进制协议的请求，得到和HTTP请求相同的ClientRequest
+ * 不生成字符串的requestId，客户端的requestId保存在sequence中
+ */
+public class BinaryClientRequestDecoder extends MessageToMessageDecoder<ByteBuf> {
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf frame, List<Object> out)
+            throws Exception {
+        long requestId = frame.readLong();
+        int code = frame.readByte();
+        Object body;
+        if (code == RequestCode.READ || code == RequestCode.LOCAL_READ)
+            body = new ReadMessage(BinaryClientProtocol.readString(frame));
+        else if (code == RequestCode.PROPOSE)
+            body = new ProposeMessage(BinaryClientProtocol.readString(frame),
+                    BinaryClientProtocol.readString(frame));
+        else if (code == RequestCode.MULTI_READ)
+            body = new MultiReadMessage(readKeys(frame, false).getFirst());
+        else if (code == RequestCode.MULTI_PROPOSE) {
+            Tuple<List<String>, List<String>> keyValues = readKeys(frame, true);
+            body = new MultiProposeMessage(keyValues.getFirst(), keyValues.getSecond());
+        } else if (RequestCode.isConditional(code)) {
+            String key = BinaryClientProtocol.readString(frame);
+            long expectedVersion = frame.readLong();
+            String expectedValue = BinaryClientProtocol.readNullableString(frame);
+            String value = BinaryClientProtocol.readNullableString(frame);
+            if (value == null && code != RequestCode.DELETE)
+                throw new CorruptedFrameException("missing value for request code " + code);
+            body = new ConditionalProposeMessage(key, value, expectedValue, expectedVersion);
+        } else
+            throw new CorruptedFrameException("unknown request code " + code);
+        ClientRequest request = ClientRequestDecoder.newRequest(null, code, body);
+        request.attach(null, requestId);
+        request.setKeepAlive(true);
+        out.add(request);
+    }
+
+    private static Tuple<List<String>, List<String>> readKeys(ByteBuf frame, boolean withValues) {
+        int count = BinaryClientProtocol.readCount(frame);
+        List<String> keys = new ArrayList<>(count);
+        List<String> values = withValues ? new ArrayList<>(count) : null;
+        for (int i = 0; i < count; i++) {
+            keys.add(BinaryClientProtocol.readString(frame));
+            if (withValues)
+                values.add(BinaryClientProtocol.readString(frame));
+        }
+        return new Tuple<>(keys, values);
+    }
+}
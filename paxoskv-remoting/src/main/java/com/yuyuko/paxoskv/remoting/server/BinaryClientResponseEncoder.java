@@ -0,0 +1,21 @@
+package com.yuyuko.paxoskv.remoting.server;
+
+import com.yuyuko.paxoskv.remoting.protocol.BinaryClientProtocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+@ChannelHandler.Sharable
+public class BinaryClientResponseEncoder extends MessageToByteEncoder<ClientResponse> {
+    @Override
+    protected void encode(ChannelHandlerContext ctx, ClientResponse msg, ByteBuf out)
+            throws Exception {
+        if (msg.getValues() != null)
+            BinaryClientProtocol.encodeResponse(out, msg.getSequence(), msg.getCode(),
+                    msg.getValues());
+        else
+            BinaryClientProtocol.encodeResponse(out, msg.getSequence(), msg.getCode(),
+                    msg.getBody());
+    }
+}
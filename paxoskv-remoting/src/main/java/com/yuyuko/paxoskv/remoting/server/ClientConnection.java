@@ -0,0 +1,32 @@
+package com.yuyuko.paxoskv.remoting.server;
+
+import io.netty.channel.ChannelHandlerContext;
+
+import java.util.function.Consumer;
+
+/**
+ * 一个客户端连接，决定连接上的请求什么时候开始处理，以及回复怎样写回
+ * 只在channel的io线程中访问
+ */
+abstract class ClientConnection {
+    protected final ChannelHandlerContext ctx;
+
+    /**
+     * 开始处理一个请求
+     */
+    protected final Consumer<ClientRequest> dispatcher;
+
+    ClientConnection(ChannelHandlerContext ctx, Consumer<ClientRequest> dispatcher) {
+        this.ctx = ctx;
+        this.dispatcher = dispatcher;
+    }
+
+    abstract void receive(ClientRequest request);
+
+    /**
+     * 可以在任意线程调用，同一个请求只有第一次回复有效
+     *
+     * @param onFirstReply 第一次回复时调用，可以为null
+     */
+    abstract void reply(ClientRequest request, ClientResponse response, Runnable onFirstReply);
+}
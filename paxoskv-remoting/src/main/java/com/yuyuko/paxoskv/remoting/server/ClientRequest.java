@@ -1,18 +1,49 @@
 package com.yuyuko.paxoskv.remoting.server;
 
 public class ClientRequest {
+    /**
+     * HTTP请求生成的id，只用于日志，二进制协议的请求为null
+     */
     private String requestId;
 
     private int code;
 
     private byte[] body;
 
+    /**
+     * 提议节点随机生成，非0时状态机apply之后把结果交给提议节点上等待的请求
+     */
+    private long applyToken;
+
+    /**
+     * 请求所在的连接和在连接中的编号（二进制协议为客户端的requestId），回复时使用，不参与序列化
+     */
+    private transient ClientConnection connection;
+
+    private transient long sequence;
+
+    private transient boolean keepAlive;
+
+    /**
+     * 解码失败的原因，不为null时不处理，直接回复BAD_REQUEST
+     */
+    private transient String badRequestReason;
+
     public ClientRequest(String requestId, int code, byte[] body) {
         this.requestId = requestId;
         this.code = code;
         this.body = body;
     }
 
+    /**
+     * 格式错误的请求，code为-1，按写请求排队
+     */
+    static ClientRequest badRequest(String requestId, String reason) {
+        ClientRequest request = new ClientRequest(requestId, -1, new byte[0]);
+        request.badRequestReason = reason;
+        return request;
+    }
+
     public String getRequestId() {
         return requestId;
     }
@@ -24,4 +55,37 @@ public class ClientRequest {
     public byte[] getBody() {
         return body;
     }
+
+    public long getApplyToken() {
+        return applyToken;
+    }
+
+    public void setApplyToken(long applyToken) {
+        this.applyToken = applyToken;
+    }
+
+    void attach(ClientConnection connection, long sequence) {
+        this.connection = connection;
+        this.sequence = sequence;
+    }
+
+    ClientConnection getConnection() {
+        return connection;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    String getBadRequestReason() {
+        return badRequestReason;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
 }
\ No newline at end of file
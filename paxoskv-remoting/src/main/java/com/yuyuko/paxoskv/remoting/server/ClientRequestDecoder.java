@@ -1,34 +1,152 @@
 package com.yuyuko.paxoskv.remoting.server;
 
 import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
+import com.yuyuko.paxoskv.remoting.protocol.body.ConditionalProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.MultiProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.MultiReadMessage;
 import com.yuyuko.paxoskv.remoting.protocol.body.ProposeMessage;
 import com.yuyuko.paxoskv.remoting.protocol.body.ReadMessage;
 import com.yuyuko.paxoskv.remoting.protocol.codec.ProtostuffCodec;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageDecoder;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.util.CharsetUtil;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
 public class ClientRequestDecoder extends MessageToMessageDecoder<FullHttpRequest> {
+    /**
+     * body每行一个key
+     */
+    static final String MULTI_READ_URI = "_mget";
+
+    /**
+     * body每行一个key=value，在一个实例中原子地写入
+     */
+    static final String MULTI_PROPOSE_URI = "_mput";
+
+    /**
+     * PUT带上这个header时为COMPARE_AND_SET，值为期望的当前值
+     */
+    static final String EXPECTED_VALUE_HEADER = "X-Expected-Value";
+
+    /**
+     * GET带上X-Consistency: local时只读本地状态机
+     */
+    static final String CONSISTENCY_HEADER = "X-Consistency";
+
+    /**
+     * 格式错误和不支持的请求也输出一个请求，在连接中占用一个编号，按顺序回复BAD_REQUEST，
+     * 不抛出异常关闭keep-alive的连接，前面的请求的回复不会丢失
+     */
     @Override
     protected void decode(ChannelHandlerContext ctx, FullHttpRequest msg, List<Object> out) throws Exception {
+        ClientRequest request;
+        try {
+            request = decode(msg);
+        } catch (IllegalArgumentException ex) {
+            request = ClientRequest.badRequest(UUID.randomUUID().toString(), ex.getMessage());
+        }
+        request.setKeepAlive(HttpUtil.isKeepAlive(msg));
+        out.add(request);
+    }
+
+    /**
+     * @throws IllegalArgumentException 格式错误或者不支持的请求
+     */
+    private static ClientRequest decode(FullHttpRequest msg) {
         String uri = msg.uri().substring(1);
-        if (msg.method() == HttpMethod.GET) {
-            out.add(newRequest(RequestCode.READ,
-                    new ReadMessage(uri)));
-        } else if (msg.method() == HttpMethod.PUT) {
-            out.add(newRequest(RequestCode.PROPOSE,
-                    new ProposeMessage(uri,
-                            msg.content().toString(CharsetUtil.UTF_8))));
+        if (msg.method() == HttpMethod.GET)
+            return newRequest("local".equals(msg.headers().get(CONSISTENCY_HEADER)) ?
+                    RequestCode.LOCAL_READ : RequestCode.READ, new ReadMessage(uri));
+        if (msg.method() == HttpMethod.PUT)
+            return put(uri, msg);
+        if (msg.method() == HttpMethod.DELETE)
+            return newRequest(RequestCode.DELETE, new ConditionalProposeMessage(uri, null,
+                    null, expectedVersion(msg)));
+        if (msg.method() == HttpMethod.POST && uri.equals(MULTI_READ_URI))
+            return newRequest(RequestCode.MULTI_READ, new MultiReadMessage(lines(msg)));
+        if (msg.method() == HttpMethod.POST && uri.equals(MULTI_PROPOSE_URI))
+            return newRequest(RequestCode.MULTI_PROPOSE, multiPropose(lines(msg)));
+        throw new IllegalArgumentException("unsupported request " + msg.method() + " " +
+                msg.uri());
+    }
+
+    /**
+     * If-None-Match: *为PUT_IF_ABSENT，If-Match: 版本为PUT_IF_VERSION，
+     * X-Expected-Value为COMPARE_AND_SET，都没有时为普通的PROPOSE
+     */
+    private static ClientRequest put(String key, FullHttpRequest msg) {
+        String value = msg.content().toString(CharsetUtil.UTF_8);
+        HttpHeaders headers = msg.headers();
+        if ("*".equals(headers.get(HttpHeaderNames.IF_NONE_MATCH)))
+            return newRequest(RequestCode.PUT_IF_ABSENT,
+                    new ConditionalProposeMessage(key, value, null,
+                            ConditionalProposeMessage.ANY_VERSION));
+        if (headers.contains(HttpHeaderNames.IF_MATCH))
+            return newRequest(RequestCode.PUT_IF_VERSION,
+                    new ConditionalProposeMessage(key, value, null, expectedVersion(msg)));
+        if (headers.contains(EXPECTED_VALUE_HEADER))
+            return newRequest(RequestCode.COMPARE_AND_SET,
+                    new ConditionalProposeMessage(key, value, headers.get(EXPECTED_VALUE_HEADER),
+                            ConditionalProposeMessage.ANY_VERSION));
+        return newRequest(RequestCode.PROPOSE, new ProposeMessage(key, value));
+    }
+
+    /**
+     * If-Match的值是版本号，可以带上ETag的引号，没有时不检查版本
+     */
+    private static long expectedVersion(FullHttpRequest msg) {
+        String ifMatch = msg.headers().get(HttpHeaderNames.IF_MATCH);
+        if (ifMatch == null)
+            return ConditionalProposeMessage.ANY_VERSION;
+        String version = ifMatch.trim();
+        if (version.length() >= 2 && version.startsWith("\"") && version.endsWith("\""))
+            version = version.substring(1, version.length() - 1);
+        long expectedVersion;
+        try {
+            expectedVersion = Long.parseLong(version);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("If-Match is not a version: " + ifMatch);
         }
+        if (expectedVersion < 0)
+            throw new IllegalArgumentException("negative version " + ifMatch);
+        return expectedVersion;
+    }
+
+    private static List<String> lines(FullHttpRequest msg) {
+        List<String> lines = new ArrayList<>();
+        for (String line : msg.content().toString(CharsetUtil.UTF_8).split("\n")) {
+            if (!line.isEmpty())
+                lines.add(line);
+        }
+        return lines;
+    }
+
+    private static MultiProposeMessage multiPropose(List<String> lines) {
+        List<String> keys = new ArrayList<>(lines.size());
+        List<String> values = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            int index = line.indexOf('=');
+            if (index < 0)
+                throw new IllegalArgumentException("expect key=value, got " + line);
+            keys.add(line.substring(0, index));
+            values.add(line.substring(index + 1));
+        }
+        return new MultiProposeMessage(keys, values);
     }
 
     public static ClientRequest newRequest(int code, Object body) {
-        return new ClientRequest(UUID.randomUUID().toString(), code,
-                ProtostuffCodec.getInstance().encode(body));
+        return newRequest(UUID.randomUUID().toString(), code, body);
+    }
+
+    static ClientRequest newRequest(String requestId, int code, Object body) {
+        return new ClientRequest(requestId, code, ProtostuffCodec.getInstance().encode(body));
     }
 }
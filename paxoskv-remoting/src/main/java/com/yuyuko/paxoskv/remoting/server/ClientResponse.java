@@ -1,15 +1,38 @@
 package com.yuyuko.paxoskv.remoting.server;
 
+import java.util.Map;
+
 public class ClientResponse {
     private int code;
 
     private byte[] body;
 
+    /**
+     * 多个key的读的结果，由各个协议的编码器转换成body
+     */
+    private Map<String, String> values;
+
+    private boolean keepAlive;
+
+    /**
+     * 对应的请求在连接中的编号，二进制协议写回给客户端
+     */
+    private long sequence;
+
     public ClientResponse(int code, byte[] body) {
         this.code = code;
         this.body = body;
     }
 
+    public ClientResponse(int code, Map<String, String> values) {
+        this.code = code;
+        this.values = values;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
     public byte[] getBody() {
         return body;
     }
@@ -18,5 +41,25 @@ public class ClientResponse {
         this.body = body;
     }
 
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
 
 }
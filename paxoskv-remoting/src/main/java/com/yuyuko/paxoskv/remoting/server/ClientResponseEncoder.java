@@ -1,28 +1,53 @@
 package com.yuyuko.paxoskv.remoting.server;
 
+import com.yuyuko.paxoskv.remoting.protocol.ResponseCode;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageEncoder;
 import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
 import io.netty.util.ReferenceCountUtil;
 
 import java.util.List;
+import java.util.Map;
 
 @ChannelHandler.Sharable
 public class ClientResponseEncoder extends MessageToMessageEncoder<ClientResponse> {
     @Override
     protected void encode(ChannelHandlerContext ctx, ClientResponse msg, List<Object> out)
             throws Exception {
-        out.add(newHttpResponse(msg.getBody()));
+        byte[] body = msg.getValues() != null ? renderValues(msg.getValues()) : msg.getBody();
+        //其他失败一直用body区分，条件写失败和格式错误按HTTP的语义返回412和400
+        HttpResponseStatus status;
+        if (msg.getCode() == ResponseCode.CONDITION_FAILED)
+            status = HttpResponseStatus.PRECONDITION_FAILED;
+        else if (msg.getCode() == ResponseCode.BAD_REQUEST)
+            status = HttpResponseStatus.BAD_REQUEST;
+        else
+            status = HttpResponseStatus.OK;
+        out.add(newHttpResponse(status, body, msg.isKeepAlive()));
         ReferenceCountUtil.release(msg);
     }
 
-    private static FullHttpResponse newHttpResponse(byte[] body) {
+    /**
+     * 每行一个key=value，不存在的key不返回
+     */
+    private static byte[] renderValues(Map<String, String> values) {
+        StringBuilder builder = new StringBuilder();
+        values.forEach((key, value) -> builder.append(key).append('=').append(value).append('\n'));
+        return builder.toString().getBytes(CharsetUtil.UTF_8);
+    }
+
+    private static FullHttpResponse newHttpResponse(HttpResponseStatus status, byte[] body,
+                                                    boolean keepAlive) {
         DefaultFullHttpResponse response =
-                new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
                         Unpooled.copiedBuffer(body));
         response.headers().add(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+        // keep-alive的连接上客户端靠content-length确定回复的边界
+        HttpUtil.setContentLength(response, body.length);
+        HttpUtil.setKeepAlive(response, keepAlive);
         return response;
     }
 }
@@ -1,5 +1,8 @@
 package com.yuyuko.paxoskv.remoting.server;
 
 public interface ClientResponseSender {
-    void sendResponseToClient(String requestId, ClientResponse response);
+    /**
+     * 回复写回请求所在的连接，同一个请求只有第一次回复有效
+     */
+    void sendResponseToClient(ClientRequest request, ClientResponse response);
 }
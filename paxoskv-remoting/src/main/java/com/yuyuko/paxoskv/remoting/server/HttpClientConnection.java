@@ -0,0 +1,131 @@
+package com.yuyuko.paxoskv.remoting.server;
+
+import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 一个HTTP客户端的keep-alive连接，支持HTTP/1.1 pipelining：
+ * 请求按到达顺序编号，处理完成的顺序可能不同，回复缓存起来按编号顺序写回
+ * 只有连续的读请求可以并行处理，写请求要等前面的请求都回复之后才处理，
+ * 后面的请求也要等它回复，保证同一个连接上后发的读能看到先发的写
+ * 只在channel的io线程中访问
+ */
+class HttpClientConnection extends ClientConnection {
+    /**
+     * 等待的请求超过这个数量时暂停读取，让TCP的流量控制限制客户端
+     */
+    static final int MAX_WAITING_REQUESTS = 128;
+
+    /**
+     * 下一个到达的请求的编号
+     */
+    private long nextSequence;
+
+    /**
+     * 下一个要写回的回复的编号
+     */
+    private long nextWriteSequence;
+
+    /**
+     * 已经完成，但前面还有请求没有回复的回复
+     */
+    private final Map<Long, ClientResponse> pendingResponses = new HashMap<>();
+
+    /**
+     * 还不能开始处理的请求
+     */
+    private final Deque<ClientRequest> waitingRequests = new ArrayDeque<>();
+
+    /**
+     * 已经开始处理还没有回复的请求数
+     */
+    private int processing;
+
+    private boolean writeProcessing;
+
+    private boolean dispatching;
+
+    HttpClientConnection(ChannelHandlerContext ctx, Consumer<ClientRequest> dispatcher) {
+        super(ctx, dispatcher);
+    }
+
+    @Override
+    void receive(ClientRequest request) {
+        request.attach(this, nextSequence++);
+        waitingRequests.addLast(request);
+        dispatch();
+        if (waitingRequests.size() >= MAX_WAITING_REQUESTS)
+            ctx.channel().config().setAutoRead(false);
+    }
+
+    private void dispatch() {
+        if (dispatching)
+            return;
+        dispatching = true;
+        try {
+            while (!waitingRequests.isEmpty() && !writeProcessing) {
+                ClientRequest request = waitingRequests.peekFirst();
+                boolean write = !isSafe(request);
+                if (write && processing > 0)
+                    break;
+                waitingRequests.pollFirst();
+                processing++;
+                writeProcessing = write;
+                dispatcher.accept(request);
+            }
+        } finally {
+            dispatching = false;
+        }
+        if (waitingRequests.size() < MAX_WAITING_REQUESTS && !ctx.channel().config().isAutoRead())
+            ctx.channel().config().setAutoRead(true);
+    }
+
+    private static boolean isSafe(ClientRequest request) {
+        return request.getCode() == RequestCode.READ || request.getCode() == RequestCode.MULTI_READ
+                || request.getCode() == RequestCode.LOCAL_READ;
+    }
+
+    @Override
+    void reply(ClientRequest request, ClientResponse response, Runnable onFirstReply) {
+        if (!ctx.executor().inEventLoop()) {
+            ctx.executor().execute(() -> reply(request, response, onFirstReply));
+            return;
+        }
+        long sequence = request.getSequence();
+        if (sequence < nextWriteSequence || pendingResponses.containsKey(sequence))
+            return;
+        if (onFirstReply != null)
+            onFirstReply.run();
+        response.setKeepAlive(request.isKeepAlive());
+        pendingResponses.put(sequence, response);
+        processing--;
+        if (!isSafe(request))
+            writeProcessing = false;
+        flushResponses();
+        dispatch();
+    }
+
+    private void flushResponses() {
+        ClientResponse next;
+        boolean written = false;
+        while ((next = pendingResponses.remove(nextWriteSequence)) != null) {
+            nextWriteSequence++;
+            written = true;
+            if (!next.isKeepAlive()) {
+                ctx.writeAndFlush(next).addListener(ChannelFutureListener.CLOSE);
+                waitingRequests.clear();
+                return;
+            }
+            ctx.write(next);
+        }
+        if (written)
+            ctx.flush();
+    }
+}
@@ -1,18 +1,24 @@
 package com.yuyuko.paxoskv.remoting.server;
 
+import com.yuyuko.paxoskv.remoting.NettyTransport;
+import com.yuyuko.paxoskv.remoting.protocol.BinaryClientProtocol;
 import com.yuyuko.paxoskv.remoting.protocol.ResponseCode;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 
 public class NettyServer implements ClientResponseSender {
     private static final Logger log = LoggerFactory.getLogger(NettyServer.class);
@@ -27,13 +33,26 @@ public class NettyServer implements ClientResponseSender {
 
     private final long id;
 
-    private final ClientRequestHandler handler;
+    private final boolean epoll;
+
+    private final ClientRequestProcessor processor;
+
+    private final ExecutorService requestExecutor;
+
+    private final BinaryClientResponseEncoder binaryResponseEncoder =
+            new BinaryClientResponseEncoder();
+
+    /**
+     * 还没有回复的请求，回复时释放，为null时不限制
+     */
+    private final Semaphore inflightRequests;
 
     public NettyServer(long id, final NettyServerConfig serverConfig,
                        ClientRequestProcessor processor) {
         this.serverBootstrap = new ServerBootstrap();
         this.serverConfig = serverConfig;
-        this.eventLoopGroupBoss = new NioEventLoopGroup(1, new ThreadFactory() {
+        this.epoll = NettyTransport.useEpoll(serverConfig.isNativeTransport());
+        this.eventLoopGroupBoss = NettyTransport.newEventLoopGroup(epoll, 1, new ThreadFactory() {
             private final AtomicInteger cnt = new AtomicInteger(0);
 
             @Override
@@ -42,7 +61,8 @@ public class NettyServer implements ClientResponseSender {
             }
         });
         this.eventLoopGroupSelector =
-                new NioEventLoopGroup(serverConfig.getServerSelectorThreads(), new ThreadFactory() {
+                NettyTransport.newEventLoopGroup(epoll, serverConfig.getServerSelectorThreads(),
+                        new ThreadFactory() {
                     private final AtomicInteger cnt = new AtomicInteger(0);
 
                     @Override
@@ -53,51 +73,114 @@ public class NettyServer implements ClientResponseSender {
                     }
                 });
         this.id = id;
-        ExecutorService requestProcessorThreadPool =
-                Executors.newFixedThreadPool(serverConfig.getRequestProcessorThreadPoolSize());
-        this.handler = new ClientRequestHandler(processor, requestProcessorThreadPool);
+        this.inflightRequests = serverConfig.getMaxInflightRequests() > 0 ?
+                new Semaphore(serverConfig.getMaxInflightRequests()) : null;
+        this.processor = processor;
+        this.requestExecutor = newRequestExecutor(serverConfig);
     }
 
-    @Override
-    public void sendResponseToClient(String requestId, ClientResponse response) {
-        ChannelHandlerContext ctx = ClientChannelManager.getInstance().getChannel(requestId);
-        if (ctx == null)
-            return;
-        try {
-            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-        } catch (Throwable ex) {
-            log.warn("[Response to Client Failed],requestId[{}]", requestId,
-                    ex);
-        } finally {
-            ClientChannelManager.getInstance().removeChannel(requestId);
+    /**
+     * 虚拟线程阻塞时不占用平台线程，读请求等待确认和apply时不会限制并发，
+     * 并发由maxInflightRequests限制
+     */
+    private static ExecutorService newRequestExecutor(NettyServerConfig serverConfig) {
+        if (serverConfig.isVirtualThreads()) {
+            try {
+                // 项目仍然使用JDK 11编译，通过反射调用JDK 21的接口
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                log.info("[Request Executor] virtual threads, max inflight requests {}",
+                        serverConfig.getMaxInflightRequests());
+                return (ExecutorService) method.invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                log.warn("[Virtual Threads Unavailable] fall back to thread pool, java version {}",
+                        System.getProperty("java.version"));
+            }
         }
+        AtomicInteger cnt = new AtomicInteger(0);
+        return Executors.newFixedThreadPool(serverConfig.getRequestProcessorThreadPoolSize(),
+                r -> new Thread(r, "ClientRequestProcessor-" + cnt.incrementAndGet()));
+    }
+
+    @Override
+    public void sendResponseToClient(ClientRequest request, ClientResponse response) {
+        request.getConnection().reply(request, response, this::releaseInflight);
+    }
+
+    private void releaseInflight() {
+        if (inflightRequests != null)
+            inflightRequests.release();
     }
 
-    @ChannelHandler.Sharable
+    /**
+     * 每个连接一个，由ClientConnection决定请求处理的时机和回复的顺序
+     */
     class ClientRequestHandler extends SimpleChannelInboundHandler<ClientRequest> {
-        private final ClientRequestProcessor processor;
+        private final BiFunction<ChannelHandlerContext, Consumer<ClientRequest>,
+                ClientConnection> connectionFactory;
 
-        private final ExecutorService executors;
+        private ClientConnection connection;
 
-        public ClientRequestHandler(ClientRequestProcessor processor, ExecutorService executors) {
-            this.processor = processor;
-            this.executors = executors;
+        ClientRequestHandler(BiFunction<ChannelHandlerContext, Consumer<ClientRequest>,
+                ClientConnection> connectionFactory) {
+            this.connectionFactory = connectionFactory;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            connection = connectionFactory.apply(ctx, this::dispatch);
         }
 
         @Override
         protected void channelRead0(ChannelHandlerContext ctx, ClientRequest request) throws Exception {
-            ClientChannelManager.getInstance().registerChannel(request.getRequestId(), ctx);
+            connection.receive(request);
+        }
+
+        private void dispatch(ClientRequest request) {
+            if (request.getBadRequestReason() != null) {
+                connection.reply(request, new ClientResponse(ResponseCode.BAD_REQUEST,
+                        request.getBadRequestReason().getBytes()), null);
+                return;
+            }
+            if (inflightRequests != null && !inflightRequests.tryAcquire()) {
+                // 没有占用inflightRequests，回复时不释放
+                connection.reply(request, new ClientResponse(ResponseCode.TOO_MANY_REQUEST,
+                        "(Rejected,too many request)".getBytes()), null);
+                return;
+            }
             try {
-                executors.submit(
-                        () -> processor.processRequest(request)
-                );
+                requestExecutor.submit(() -> process(request));
             } catch (RejectedExecutionException e) {
-                sendResponseToClient(request.getRequestId(),
+                sendResponseToClient(request,
                         new ClientResponse(ResponseCode.TOO_MANY_REQUEST,
                         "(Rejected,too many request)".getBytes()));
             }
         }
 
+        /**
+         * 处理失败时也要回复，否则请求一直占用inflightRequests
+         */
+        private void process(ClientRequest request) {
+            try {
+                processor.processRequest(request);
+            } catch (Throwable ex) {
+                log.warn("[Process Request Failed] requestId {}", request.getRequestId(), ex);
+                sendResponseToClient(request,
+                        new ClientResponse(ResponseCode.SYSTEM_ERROR,
+                                "(System error)".getBytes()));
+            }
+        }
+
+        /**
+         * keep-alive的连接长时间没有读写时关闭
+         */
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof IdleStateEvent)
+                ctx.close();
+            else
+                super.userEventTriggered(ctx, evt);
+        }
+
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
             log.warn("[Exception in ClientRequestHandler]", cause);
@@ -106,34 +189,28 @@ public class NettyServer implements ClientResponseSender {
     }
 
     public void start() {
-        this.serverBootstrap
-                .group(eventLoopGroupBoss, eventLoopGroupSelector)
-                .channel(NioServerSocketChannel.class)
-                .option(ChannelOption.SO_BACKLOG, 1024)
-                .option(ChannelOption.SO_REUSEADDR, true)
-                .option(ChannelOption.SO_KEEPALIVE, false)
-                .childOption(ChannelOption.TCP_NODELAY, true)
-                .childOption(ChannelOption.SO_SNDBUF, serverConfig.getServerSocketSndBufSize())
-                .childOption(ChannelOption.SO_RCVBUF, serverConfig.getServerSocketRcvBufSize())
-                .localAddress(new InetSocketAddress(this.serverConfig.getListenPort()))
-                .childHandler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    protected void initChannel(SocketChannel ch) throws Exception {
-                        ch.pipeline()
-                                .addLast(
-                                        new HttpResponseEncoder(),
-                                        new ClientResponseEncoder(),
-                                        new HttpRequestDecoder(),
-                                        new HttpObjectAggregator(serverConfig.getMaxContentLength()),
-                                        new ClientRequestDecoder(),
-                                        handler
-                                );
-                    }
-                });
         ChannelFuture sync;
         try {
-            sync = this.serverBootstrap.bind().sync();
+            sync = newServerBootstrap(this.serverBootstrap, serverConfig.getListenPort())
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) throws Exception {
+                            ch.pipeline()
+                                    .addLast(
+                                            new IdleStateHandler(0, 0,
+                                                    serverConfig.getClientIdleSeconds()),
+                                            new HttpResponseEncoder(),
+                                            new ClientResponseEncoder(),
+                                            new HttpRequestDecoder(),
+                                            new HttpObjectAggregator(serverConfig.getMaxContentLength()),
+                                            new ClientRequestDecoder(),
+                                            new ClientRequestHandler(HttpClientConnection::new)
+                                    );
+                        }
+                    }).bind().sync();
             log.info("[Server Bind Success] port {}", serverConfig.getListenPort());
+            if (serverConfig.getBinaryListenPort() > 0)
+                bindBinary();
             sync.channel().closeFuture().sync();
         } catch (Throwable ex) {
             log.error("[Server Bind Failed] port {}", serverConfig.getListenPort(), ex);
@@ -143,4 +220,43 @@ public class NettyServer implements ClientResponseSender {
             eventLoopGroupSelector.shutdownGracefully();
         }
     }
+
+    /**
+     * 二进制协议和HTTP共用io线程和处理请求的线程
+     */
+    private void bindBinary() throws InterruptedException {
+        newServerBootstrap(new ServerBootstrap(), serverConfig.getBinaryListenPort())
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline()
+                                .addLast(
+                                        new IdleStateHandler(0, 0,
+                                                serverConfig.getClientIdleSeconds()),
+                                        // 多个请求的回复在一次读或者一批任务之后一起flush
+                                        new FlushConsolidationHandler(
+                                                FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES,
+                                                true),
+                                        BinaryClientProtocol.newFrameDecoder(),
+                                        new BinaryClientRequestDecoder(),
+                                        binaryResponseEncoder,
+                                        new ClientRequestHandler(BinaryClientConnection::new)
+                                );
+                    }
+                }).bind().sync();
+        log.info("[Binary Server Bind Success] port {}", serverConfig.getBinaryListenPort());
+    }
+
+    private ServerBootstrap newServerBootstrap(ServerBootstrap bootstrap, int port) {
+        return NettyTransport.serverChannel(bootstrap, epoll,
+                serverConfig.isTcpQuickAck(), serverConfig.isReusePort())
+                .group(eventLoopGroupBoss, eventLoopGroupSelector)
+                .option(ChannelOption.SO_BACKLOG, 1024)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .option(ChannelOption.SO_KEEPALIVE, false)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.SO_SNDBUF, serverConfig.getServerSocketSndBufSize())
+                .childOption(ChannelOption.SO_RCVBUF, serverConfig.getServerSocketRcvBufSize())
+                .localAddress(new InetSocketAddress(port));
+    }
 }
@@ -1,18 +1,55 @@
 package com.yuyuko.paxoskv.remoting.server;
 
 public class NettyServerConfig {
+    public static final int BINARY_PORT_INCREMENT = 20000;
+
     private int listenPort = 8888;
 
+    /**
+     * 二进制协议的端口，不大于0时不开启
+     */
+    private int binaryListenPort;
+
     private int serverSelectorThreads = 4;
 
     private int maxContentLength = 1024 * 1024;
 
     private int requestProcessorThreadPoolSize = 16;
 
+    /**
+     * 每个请求在一个虚拟线程中处理，需要JDK 21，不支持时退回固定大小的线程池
+     */
+    private boolean virtualThreads;
+
+    /**
+     * 同时在处理中（还没有回复）的请求数上限，超过时直接拒绝，不大于0时不限制
+     */
+    private int maxInflightRequests = 10000;
+
+    /**
+     * keep-alive的连接空闲超过这个时间后关闭
+     */
+    private int clientIdleSeconds = 120;
+
     private int serverSocketSndBufSize = 65535;
 
     private int serverSocketRcvBufSize = 65535;
 
+    /**
+     * linux上使用native epoll，不可用时退回NIO
+     */
+    private boolean nativeTransport = true;
+
+    /**
+     * 只对epoll有效
+     */
+    private boolean tcpQuickAck = true;
+
+    /**
+     * 只对epoll有效
+     */
+    private boolean reusePort;
+
     public int getListenPort() {
         return listenPort;
     }
@@ -21,14 +58,46 @@ public class NettyServerConfig {
         this.listenPort = listenPort;
     }
 
+    public int getBinaryListenPort() {
+        return binaryListenPort;
+    }
+
+    public void setBinaryListenPort(int binaryListenPort) {
+        this.binaryListenPort = binaryListenPort;
+    }
+
     public int getRequestProcessorThreadPoolSize() {
         return requestProcessorThreadPoolSize;
     }
 
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public int getMaxInflightRequests() {
+        return maxInflightRequests;
+    }
+
+    public void setMaxInflightRequests(int maxInflightRequests) {
+        this.maxInflightRequests = maxInflightRequests;
+    }
+
     public int getServerSelectorThreads() {
         return serverSelectorThreads;
     }
 
+    public int getClientIdleSeconds() {
+        return clientIdleSeconds;
+    }
+
+    public void setClientIdleSeconds(int clientIdleSeconds) {
+        this.clientIdleSeconds = clientIdleSeconds;
+    }
+
     public int getServerSocketSndBufSize() {
         return serverSocketSndBufSize;
     }
@@ -40,4 +109,28 @@ public class NettyServerConfig {
     public int getMaxContentLength() {
         return maxContentLength;
     }
+
+    public boolean isNativeTransport() {
+        return nativeTransport;
+    }
+
+    public void setNativeTransport(boolean nativeTransport) {
+        this.nativeTransport = nativeTransport;
+    }
+
+    public boolean isTcpQuickAck() {
+        return tcpQuickAck;
+    }
+
+    public void setTcpQuickAck(boolean tcpQuickAck) {
+        this.tcpQuickAck = tcpQuickAck;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
 }
@@ -0,0 +1,296 @@
+package com.yuyuko.paxoskv.remoting.client;
+
+import com.yuyuko.paxoskv.remoting.protocol.BinaryClientProtocol;
+import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
+import com.yuyuko.paxoskv.remoting.protocol.ResponseCode;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 按二进制协议解析请求的内存kv，代替真正的服务端检查客户端的编码和回复的解析
+ * 版本和状态机一样全局递增，读key为"hold"时等下一个请求回复之后再回复
+ */
+class PaxosKvClientTest {
+    private EventLoopGroup group;
+
+    private Channel server;
+
+    /**
+     * 服务端接受的client的连接
+     */
+    private volatile Channel connection;
+
+    private PaxosKvClient client;
+
+    private final Map<String, String> values = new LinkedHashMap<>();
+
+    private final Map<String, Long> versions = new LinkedHashMap<>();
+
+    private long lastVersion;
+
+    /**
+     * 服务端只有一个io线程，数据只在这个线程中访问
+     */
+    private class FakeServer extends SimpleChannelInboundHandler<ByteBuf> {
+        private ByteBuf held;
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) {
+            long requestId = frame.readLong();
+            int code = frame.readByte();
+            ByteBuf out = ctx.alloc().buffer();
+            boolean hold = handle(out, requestId, code, frame);
+            if (hold) {
+                held = out;
+                return;
+            }
+            ctx.write(out);
+            if (held != null) {
+                ctx.write(held);
+                held = null;
+            }
+            ctx.flush();
+        }
+
+        /**
+         * @return 是否延后回复
+         */
+        private boolean handle(ByteBuf out, long requestId, int code, ByteBuf frame) {
+            if (code == RequestCode.MULTI_READ) {
+                Map<String, String> read = new LinkedHashMap<>();
+                int count = BinaryClientProtocol.readCount(frame);
+                for (int i = 0; i < count; i++) {
+                    String key = BinaryClientProtocol.readString(frame);
+                    if (values.containsKey(key))
+                        read.put(key, values.get(key));
+                }
+                BinaryClientProtocol.encodeResponse(out, requestId, ResponseCode.READ, read);
+                return false;
+            }
+            if (code == RequestCode.MULTI_PROPOSE) {
+                int count = BinaryClientProtocol.readCount(frame);
+                for (int i = 0; i < count; i++)
+                    put(BinaryClientProtocol.readString(frame),
+                            BinaryClientProtocol.readString(frame));
+                reply(out, requestId, ResponseCode.PROPOSE, String.valueOf(lastVersion));
+                return false;
+            }
+            String key = BinaryClientProtocol.readString(frame);
+            if ("timeout".equals(key)) {
+                reply(out, requestId, ResponseCode.PROPOSE_TIMEOUT, "Propose Timeout");
+                return false;
+            }
+            if (code == RequestCode.READ || code == RequestCode.LOCAL_READ) {
+                String value = values.get(key);
+                if (value == null)
+                    reply(out, requestId, ResponseCode.READ_NOT_FOUND, "(null)");
+                else
+                    reply(out, requestId, ResponseCode.READ, value);
+                return "hold".equals(key);
+            }
+            if (code == RequestCode.PROPOSE) {
+                reply(out, requestId, ResponseCode.PROPOSE,
+                        String.valueOf(put(key, BinaryClientProtocol.readString(frame))));
+                return false;
+            }
+            long expectedVersion = frame.readLong();
+            String expectedValue = BinaryClientProtocol.readNullableString(frame);
+            String value = BinaryClientProtocol.readNullableString(frame);
+            long version = versions.getOrDefault(key, 0L);
+            boolean matched;
+            if (code == RequestCode.PUT_IF_ABSENT)
+                matched = !values.containsKey(key);
+            else if (code == RequestCode.COMPARE_AND_SET)
+                matched = Objects.equals(values.get(key), expectedValue);
+            else if (code == RequestCode.PUT_IF_VERSION)
+                matched = version == expectedVersion;
+            else
+                matched = values.containsKey(key) && (expectedVersion == -1 ||
+                        version == expectedVersion);
+            if (!matched)
+                reply(out, requestId, ResponseCode.CONDITION_FAILED, String.valueOf(version));
+            else if (code == RequestCode.DELETE) {
+                values.remove(key);
+                versions.remove(key);
+                reply(out, requestId, ResponseCode.PROPOSE, "0");
+            } else
+                reply(out, requestId, ResponseCode.PROPOSE, String.valueOf(put(key, value)));
+            return false;
+        }
+
+        private long put(String key, String value) {
+            values.put(key, value);
+            versions.put(key, ++lastVersion);
+            return lastVersion;
+        }
+
+        private void reply(ByteBuf out, long requestId, int code, String body) {
+            BinaryClientProtocol.encodeResponse(out, requestId, code,
+                    body.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @BeforeEach
+    void start() throws Exception {
+        group = new NioEventLoopGroup(1);
+        server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        connection = ch;
+                        ch.pipeline().addLast(BinaryClientProtocol.newFrameDecoder(),
+                                new FakeServer());
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+        client = PaxosKvClient.connect("127.0.0.1",
+                ((InetSocketAddress) server.localAddress()).getPort(), 1000);
+    }
+
+    @AfterEach
+    void stop() {
+        client.close();
+        server.close().syncUninterruptibly();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    @Test
+    void getAndPut() {
+        assertNull(client.get("k"));
+        client.put("k", "值");
+        assertEquals("值", client.get("k"));
+        assertEquals("值", client.getLocal("k"));
+        client.put("empty", "");
+        assertEquals("", client.get("empty"));
+    }
+
+    /**
+     * 单个key的READ回复只有body，不会被当作MULTI_READ的[n][key,value]解析
+     */
+    @Test
+    void getAll() throws Exception {
+        Map<String, String> put = new LinkedHashMap<>();
+        put.put("b", "2");
+        put.put("a", "1");
+        client.putAtomically(put);
+        // 在MULTI_READ之前和之后各有一个单key的READ
+        CompletableFuture<String> before = client.getAsync("a");
+        CompletableFuture<Map<String, String>> all = client.getAllAsync(
+                List.of("a", "missing", "b"));
+        CompletableFuture<String> after = client.getAsync("b");
+        Map<String, String> read = all.get();
+        assertEquals(List.of("a", "b"), new ArrayList<>(read.keySet()));
+        assertEquals(List.of("1", "2"), new ArrayList<>(read.values()));
+        assertEquals("1", before.get());
+        assertEquals("2", after.get());
+        assertEquals(Map.of(), client.getAll(List.of("missing")));
+    }
+
+    /**
+     * 回复的顺序和请求不同时按requestId匹配
+     */
+    @Test
+    void outOfOrderResponses() throws Exception {
+        client.put("hold", "h");
+        client.put("k", "v");
+        CompletableFuture<String> held = client.getAsync("hold");
+        CompletableFuture<String> next = client.getAsync("k");
+        assertEquals("v", next.get());
+        assertEquals("h", held.get());
+    }
+
+    @Test
+    void putAll() {
+        Map<String, String> put = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++)
+            put.put("k" + i, "v" + i);
+        client.putAll(put);
+        assertEquals(put, client.getAll(put.keySet()));
+    }
+
+    @Test
+    void conditional() {
+        ConditionalResult result = client.putIfAbsent("k", "1");
+        assertTrue(result.isSucceeded());
+        assertEquals(1, result.getVersion());
+        result = client.putIfAbsent("k", "2");
+        assertFalse(result.isSucceeded());
+        assertEquals(1, result.getVersion());
+
+        assertFalse(client.compareAndSet("k", "x", "2").isSucceeded());
+        assertTrue(client.compareAndSet("k", "1", "2").isSucceeded());
+        // 期望的值为null时期望key不存在
+        assertFalse(client.compareAndSet("k", null, "3").isSucceeded());
+        assertTrue(client.compareAndSet("other", null, "3").isSucceeded());
+
+        assertEquals(2, client.putIfVersion("k", 1, "4").getVersion());
+        result = client.putIfVersion("k", 2, "4");
+        assertTrue(result.isSucceeded());
+        assertEquals(4, result.getVersion());
+        assertEquals("4", client.get("k"));
+
+        assertFalse(client.deleteIfVersion("k", 1).isSucceeded());
+        result = client.deleteIfVersion("k", 4);
+        assertTrue(result.isSucceeded());
+        assertEquals(0, result.getVersion());
+        assertNull(client.get("k"));
+        assertFalse(client.delete("k").isSucceeded());
+        assertTrue(client.delete("other").isSucceeded());
+
+        assertThrows(IllegalArgumentException.class, () -> client.putIfVersion("k", -1, "v"));
+        assertThrows(IllegalArgumentException.class, () -> client.deleteIfVersion("k", -1));
+    }
+
+    /**
+     * 失败的回复带着ResponseCode抛出
+     */
+    @Test
+    void errorResponse() {
+        PaxosKvClientException ex = assertThrows(PaxosKvClientException.class,
+                () -> client.put("timeout", "v"));
+        assertEquals(ResponseCode.PROPOSE_TIMEOUT, ex.getCode());
+        assertEquals("Propose Timeout", ex.getMessage());
+        ex = assertThrows(PaxosKvClientException.class, () -> client.putIfAbsent("timeout", "v"));
+        assertEquals(ResponseCode.PROPOSE_TIMEOUT, ex.getCode());
+    }
+
+    /**
+     * 连接断开时还没有回复的请求立刻失败，不等到超时
+     */
+    @Test
+    void connectionClosed() {
+        // 收到回复之后服务端一定已经接受了连接
+        assertNull(client.get("k"));
+        CompletableFuture<String> held = client.getAsync("hold");
+        connection.close().syncUninterruptibly();
+        PaxosKvClientException ex = assertThrows(PaxosKvClientException.class,
+                () -> client.get("k"));
+        assertEquals(-1, ex.getCode());
+        assertTrue(held.isCompletedExceptionally());
+    }
+}
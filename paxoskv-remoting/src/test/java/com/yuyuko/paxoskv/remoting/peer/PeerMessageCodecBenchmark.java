@@ -0,0 +1,60 @@
+package com.yuyuko.paxoskv.remoting.peer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * 比较Protostuff和二进制编码一个100字节value的Accept的编码+解码耗时，
+ * 使用实际的PeerMessageEncoder和PeerMessageDecoder，帧写入池化的direct buffer
+ * 运行：mvn -pl paxoskv-remoting test-compile之后，
+ * java -cp target/classes:target/test-classes:依赖 com.yuyuko.paxoskv.remoting.peer.PeerMessageCodecBenchmark
+ */
+public class PeerMessageCodecBenchmark {
+    private static final int WARMUP = 500_000;
+
+    private static final int ITERATIONS = 2_000_000;
+
+    public static void main(String[] args) throws Exception {
+        PeerMessage msg = new PeerMessage(PeerMessageCodecTest.accept());
+        for (int round = 0; round < 3; round++) {
+            run("protostuff", msg, false);
+            run("binary", msg, true);
+        }
+    }
+
+    private static void run(String name, PeerMessage msg, boolean binary) throws Exception {
+        PeerMessageEncoder encoder = new PeerMessageEncoder();
+        PeerMessageDecoder decoder = new PeerMessageDecoder();
+        if (binary) {
+            encoder.useBinary();
+            //解码方在收到Switch之后切换
+            ByteBuf switchFrame = PooledByteBufAllocator.DEFAULT.directBuffer();
+            new PeerMessageEncoder().encode(null,
+                    PeerMessage.heartbeat(1, PeerMessage.CodecNegotiation.Switch), switchFrame);
+            decoder.decode(null, switchFrame);
+            switchFrame.release();
+        }
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(256);
+        int frameBytes = 0;
+        for (int i = 0; i < WARMUP; i++)
+            frameBytes = roundTrip(encoder, decoder, msg, buf);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            roundTrip(encoder, decoder, msg, buf);
+        long elapsed = System.nanoTime() - start;
+        buf.release();
+        System.out.printf("%-10s %6.1f ns/op, frame %d bytes%n", name,
+                (double) elapsed / ITERATIONS, frameBytes);
+    }
+
+    private static int roundTrip(PeerMessageEncoder encoder, PeerMessageDecoder decoder,
+                                 PeerMessage msg, ByteBuf buf) throws Exception {
+        buf.clear();
+        encoder.encode(null, msg, buf);
+        int frameBytes = buf.readableBytes();
+        PeerMessage decoded = (PeerMessage) decoder.decode(null, buf);
+        if (decoded.getMessage().getInstanceId() != msg.getMessage().getInstanceId())
+            throw new IllegalStateException();
+        return frameBytes;
+    }
+}
@@ -0,0 +1,143 @@
+package com.yuyuko.paxoskv.remoting.peer;
+
+import com.yuyuko.paxoskv.core.ChosenValue;
+import com.yuyuko.paxoskv.core.PaxosMessage;
+import com.yuyuko.paxoskv.remoting.protocol.codec.ProtostuffCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerMessageCodecTest {
+
+    static PaxosMessage accept() {
+        return PaxosMessage.builder()
+                .type(PaxosMessage.PaxosMessageType.Accept)
+                .instanceId(12345)
+                .nodeId(1)
+                .toNodeId(2)
+                .proposalId(7)
+                .groupId(3)
+                .value(new byte[100])
+                .build();
+    }
+
+    /**
+     * 没有协商时和原来的格式逐字节相同：[int 长度][Protostuff编码的PeerMessage]
+     */
+    @Test
+    void protostuffFrameIsBaseline() {
+        EmbeddedChannel channel = new EmbeddedChannel(new PeerMessageEncoder());
+        for (PeerMessage msg : List.of(new PeerMessage(accept()), PeerMessage.heartbeat(1))) {
+            channel.writeOutbound(msg);
+            ByteBuf frame = channel.readOutbound();
+            byte[] bytes = ProtostuffCodec.getInstance().encode(msg);
+            ByteBuf baseline = Unpooled.buffer().writeInt(bytes.length).writeBytes(bytes);
+            assertTrue(ByteBufUtil.equals(baseline, frame));
+            frame.release();
+        }
+    }
+
+    @Test
+    void negotiate() {
+        EmbeddedChannel client = new EmbeddedChannel(new PeerMessageEncoder(),
+                new PeerMessageDecoder());
+        EmbeddedChannel server = new EmbeddedChannel(new PeerMessageEncoder(),
+                new PeerMessageDecoder());
+
+        client.writeOutbound(PeerMessage.heartbeat(1, PeerMessage.CodecNegotiation.Offer));
+        transfer(client, server);
+        PeerMessage offer = server.readInbound();
+        assertEquals(PeerMessage.CodecNegotiation.Offer, offer.getCodec());
+        assertFalse(server.pipeline().get(PeerMessageDecoder.class).isBinary());
+
+        //Accept和之后的消息在同一次读中到达
+        server.writeOutbound(PeerMessage.heartbeat(2, PeerMessage.CodecNegotiation.Accept));
+        server.pipeline().get(PeerMessageEncoder.class).useBinary();
+        server.writeOutbound(new PeerMessage(accept()));
+        transfer(server, client);
+        PeerMessage accept = client.readInbound();
+        assertEquals(PeerMessage.CodecNegotiation.Accept, accept.getCodec());
+        assertEquals(accept(), ((PeerMessage) client.readInbound()).getMessage());
+        assertTrue(client.pipeline().get(PeerMessageDecoder.class).isBinary());
+
+        client.writeOutbound(PeerMessage.heartbeat(1, PeerMessage.CodecNegotiation.Switch));
+        client.pipeline().get(PeerMessageEncoder.class).useBinary();
+        client.writeOutbound(new PeerMessage(accept()));
+        transfer(client, server);
+        assertEquals(PeerMessage.CodecNegotiation.Switch,
+                ((PeerMessage) server.readInbound()).getCodec());
+        assertEquals(accept(), ((PeerMessage) server.readInbound()).getMessage());
+        assertTrue(server.pipeline().get(PeerMessageDecoder.class).isBinary());
+    }
+
+    /**
+     * 不认识协商字段的节点不会回复Accept，双方一直使用Protostuff
+     */
+    @Test
+    void offerIgnored() {
+        EmbeddedChannel client = new EmbeddedChannel(new PeerMessageEncoder(),
+                new PeerMessageDecoder());
+        EmbeddedChannel server = new EmbeddedChannel(new PeerMessageEncoder(),
+                new PeerMessageDecoder());
+        client.writeOutbound(PeerMessage.heartbeat(1, PeerMessage.CodecNegotiation.Offer));
+        transfer(client, server);
+        server.readInbound();
+        server.writeOutbound(new PeerMessage(accept()));
+        transfer(server, client);
+        assertEquals(accept(), ((PeerMessage) client.readInbound()).getMessage());
+        assertFalse(client.pipeline().get(PeerMessageDecoder.class).isBinary());
+        assertFalse(client.pipeline().get(PeerMessageEncoder.class).isBinary());
+    }
+
+    @Test
+    void binaryRoundTrip() {
+        PaxosMessage message = PaxosMessage.builder()
+                .type(PaxosMessage.PaxosMessageType.SendLearnValue)
+                .instanceId(Long.MAX_VALUE)
+                .nodeId(1)
+                .toNodeId(2)
+                .rejectByPromiseId(-1)
+                .readId(99)
+                .learnedValues(List.of(new ChosenValue(5, 1, 2, 3, 4, "v".getBytes()),
+                        new ChosenValue(6, 0, 0, 0, 0, null)))
+                .build();
+        ByteBuf buf = Unpooled.buffer();
+        PeerMessageBinaryCodec.encode(new PeerMessage(message), buf);
+        PeerMessage decoded = PeerMessageBinaryCodec.decode(buf);
+        assertFalse(buf.isReadable());
+        assertEquals(PeerMessage.PeerMessageType.Normal, decoded.getType());
+        PaxosMessage m = decoded.getMessage();
+        assertEquals(Long.MAX_VALUE, m.getInstanceId());
+        assertEquals(-1, m.getRejectByPromiseId());
+        assertEquals(99, m.getReadId());
+        assertNull(m.getValue());
+        assertEquals(2, m.getLearnedValues().size());
+        ChosenValue first = m.getLearnedValues().get(0);
+        assertEquals(5, first.getInstanceId());
+        assertEquals(4, first.getAcceptedNodeId());
+        assertArrayEquals("v".getBytes(), first.getAcceptedValue());
+        assertNull(m.getLearnedValues().get(1).getAcceptedValue());
+
+        ByteBuf heartbeat = Unpooled.buffer();
+        PeerMessageBinaryCodec.encode(PeerMessage.heartbeat(3), heartbeat);
+        PeerMessage decodedHeartbeat = PeerMessageBinaryCodec.decode(heartbeat);
+        assertEquals(PeerMessage.PeerMessageType.Heartbeat, decodedHeartbeat.getType());
+        assertEquals(3, decodedHeartbeat.getMessage().getNodeId());
+    }
+
+    private static void transfer(EmbeddedChannel from, EmbeddedChannel to) {
+        ByteBuf all = Unpooled.buffer();
+        ByteBuf buf;
+        while ((buf = from.readOutbound()) != null) {
+            all.writeBytes(buf);
+            buf.release();
+        }
+        to.writeInbound(all);
+    }
+}
@@ -0,0 +1,131 @@
+package com.yuyuko.paxoskv.remoting.peer.client;
+
+import com.yuyuko.paxoskv.core.PaxosMessage;
+import com.yuyuko.paxoskv.remoting.peer.PeerChannelManager;
+import com.yuyuko.paxoskv.remoting.peer.PeerMessage;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NettyPeerClientTest {
+    private PeerChannelManager channelManager;
+
+    private NettyPeerClient client;
+
+    @BeforeEach
+    void setUp() {
+        channelManager = new PeerChannelManager();
+        client = new NettyPeerClient(1, new NettyPeerClientConfig(), null, null,
+                channelManager);
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.shutdown();
+    }
+
+    /**
+     * 记录write使用的promise和flush的次数，failWrites为true时所有的write都失败
+     */
+    private static class Recorder extends ChannelOutboundHandlerAdapter {
+        private final boolean failWrites;
+
+        private int voidPromises;
+
+        private int promises;
+
+        private int flushes;
+
+        Recorder(boolean failWrites) {
+            this.failWrites = failWrites;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            if (promise.isVoid())
+                voidPromises++;
+            else
+                promises++;
+            if (failWrites)
+                promise.setFailure(new IOException("broken pipe"));
+            else
+                ctx.write(msg, promise);
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+            flushes++;
+            ctx.flush();
+        }
+    }
+
+    private EmbeddedChannel register(long peerId, Recorder recorder) {
+        EmbeddedChannel channel = new EmbeddedChannel(recorder,
+                new ChannelInboundHandlerAdapter());
+        channelManager.registerChannel(peerId, channel.pipeline().lastContext());
+        return channel;
+    }
+
+    private static PaxosMessage message(long toNodeId, long instanceId) {
+        return PaxosMessage.builder().nodeId(1).toNodeId(toNodeId).instanceId(instanceId)
+                .build();
+    }
+
+    @Test
+    void sendMessageBatchesPerPeer() {
+        Recorder recorder2 = new Recorder(false);
+        Recorder recorder3 = new Recorder(false);
+        EmbeddedChannel peer2 = register(2, recorder2);
+        EmbeddedChannel peer3 = register(3, recorder3);
+
+        client.sendMessage(List.of(message(2, 0), message(3, 0), message(2, 1),
+                message(2, 2)));
+        peer2.runPendingTasks();
+        peer3.runPendingTasks();
+
+        for (long instanceId = 0; instanceId < 3; instanceId++)
+            assertEquals(instanceId,
+                    ((PeerMessage) peer2.readOutbound()).getMessage().getInstanceId());
+        assertNull(peer2.readOutbound());
+        assertEquals(2, recorder2.voidPromises);
+        assertEquals(1, recorder2.promises);
+        assertEquals(1, recorder2.flushes);
+
+        assertEquals(0, ((PeerMessage) peer3.readOutbound()).getMessage().getInstanceId());
+        assertEquals(0, recorder3.voidPromises);
+        assertEquals(1, recorder3.promises);
+        assertEquals(1, recorder3.flushes);
+    }
+
+    @Test
+    void sendMessageFailureClosesChannel() {
+        Recorder recorder = new Recorder(true);
+        EmbeddedChannel peer2 = register(2, recorder);
+
+        client.sendMessage(List.of(message(2, 0), message(2, 1), message(2, 2)));
+        peer2.runPendingTasks();
+
+        assertEquals(2, recorder.voidPromises);
+        assertEquals(1, recorder.promises);
+        assertNull(channelManager.getChannel(2L));
+        assertFalse(peer2.isOpen());
+        //voidPromise的失败交给pipeline的exceptionCaught
+        assertThrows(IOException.class, peer2::checkException);
+    }
+
+    @Test
+    void sendMessageToUnknownPeer() {
+        client.sendMessage(List.of(message(4, 0)));
+        assertNull(channelManager.getChannel(4L));
+    }
+}
@@ -0,0 +1,131 @@
+package com.yuyuko.paxoskv.remoting.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.CorruptedFrameException;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryClientProtocolTest {
+    /**
+     * 长度字段和内容一致，读完之后没有剩余的字节
+     */
+    private static ByteBuf skipHeader(ByteBuf frame, long requestId, int code) {
+        assertEquals(frame.readableBytes() - 4, frame.readInt());
+        assertEquals(requestId, frame.readLong());
+        assertEquals(code, frame.readByte());
+        return frame;
+    }
+
+    @Test
+    void request() {
+        ByteBuf frame = BinaryClientProtocol.encodeRequest(ByteBufAllocator.DEFAULT, 7,
+                RequestCode.PROPOSE, "键", "值");
+        skipHeader(frame, 7, RequestCode.PROPOSE);
+        assertEquals("键", BinaryClientProtocol.readString(frame));
+        assertEquals("值", BinaryClientProtocol.readString(frame));
+        assertFalse(frame.isReadable());
+        frame.release();
+
+        // 读请求没有value
+        frame = BinaryClientProtocol.encodeRequest(ByteBufAllocator.DEFAULT, 8,
+                RequestCode.READ, "k", null);
+        skipHeader(frame, 8, RequestCode.READ);
+        assertEquals("k", BinaryClientProtocol.readString(frame));
+        assertFalse(frame.isReadable());
+        frame.release();
+    }
+
+    @Test
+    void multiRequest() {
+        ByteBuf frame = BinaryClientProtocol.encodeMultiRequest(ByteBufAllocator.DEFAULT, 1,
+                RequestCode.MULTI_PROPOSE, List.of("a", "b"), List.of("1", ""));
+        skipHeader(frame, 1, RequestCode.MULTI_PROPOSE);
+        assertEquals(2, BinaryClientProtocol.readCount(frame));
+        assertEquals("a", BinaryClientProtocol.readString(frame));
+        assertEquals("1", BinaryClientProtocol.readString(frame));
+        assertEquals("b", BinaryClientProtocol.readString(frame));
+        assertEquals("", BinaryClientProtocol.readString(frame));
+        assertFalse(frame.isReadable());
+        frame.release();
+    }
+
+    /**
+     * null编码为长度-1，空字符串是长度0
+     */
+    @Test
+    void nullableString() {
+        ByteBuf frame = BinaryClientProtocol.encodeConditionalRequest(ByteBufAllocator.DEFAULT,
+                3, RequestCode.COMPARE_AND_SET, "k", -1, null, "");
+        skipHeader(frame, 3, RequestCode.COMPARE_AND_SET);
+        assertEquals("k", BinaryClientProtocol.readString(frame));
+        assertEquals(-1, frame.readLong());
+        assertEquals(-1, frame.getInt(frame.readerIndex()));
+        assertNull(BinaryClientProtocol.readNullableString(frame));
+        assertEquals("", BinaryClientProtocol.readNullableString(frame));
+        assertFalse(frame.isReadable());
+        frame.release();
+
+        // 不可为null的字段遇到-1时帧已经损坏
+        ByteBuf negative = Unpooled.buffer().writeInt(-1);
+        assertThrows(CorruptedFrameException.class,
+                () -> BinaryClientProtocol.readString(negative));
+    }
+
+    @Test
+    void stringExceedsFrame() {
+        ByteBuf frame = Unpooled.buffer().writeInt(10).writeBytes(new byte[9]);
+        assertThrows(CorruptedFrameException.class, () -> BinaryClientProtocol.readString(frame));
+    }
+
+    /**
+     * 每个元素至少4个字节，负数或者超过剩余字节数/4的个数不会用来分配集合
+     */
+    @Test
+    void readCountRejectsCorruptCount() {
+        ByteBuf negative = Unpooled.buffer().writeInt(-1);
+        assertThrows(CorruptedFrameException.class, () -> BinaryClientProtocol.readCount(negative));
+        ByteBuf huge = Unpooled.buffer().writeInt(Integer.MAX_VALUE).writeInt(0);
+        assertThrows(CorruptedFrameException.class, () -> BinaryClientProtocol.readCount(huge));
+        ByteBuf tooMany = Unpooled.buffer().writeInt(3).writeBytes(new byte[11]);
+        assertThrows(CorruptedFrameException.class, () -> BinaryClientProtocol.readCount(tooMany));
+        ByteBuf exact = Unpooled.buffer().writeInt(3).writeBytes(new byte[12]);
+        assertEquals(3, BinaryClientProtocol.readCount(exact));
+        ByteBuf empty = Unpooled.buffer().writeInt(0);
+        assertEquals(0, BinaryClientProtocol.readCount(empty));
+    }
+
+    /**
+     * MULTI_READ的回复保持key的顺序
+     */
+    @Test
+    void valuesResponse() {
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("z", "1");
+        values.put("a", "中文");
+        values.put("m", "");
+        ByteBuf out = Unpooled.buffer();
+        // 同一个buffer中的第二个回复，长度从写入位置开始计算
+        BinaryClientProtocol.encodeResponse(out, 1, ResponseCode.PROPOSE, "5".getBytes());
+        BinaryClientProtocol.encodeResponse(out, 2, ResponseCode.READ, values);
+        assertEquals(8 + 1 + 1, out.readInt());
+        assertEquals(1, out.readLong());
+        assertEquals(ResponseCode.PROPOSE, out.readByte());
+        assertEquals('5', out.readByte());
+        ByteBuf second = out.readSlice(out.readInt());
+        assertFalse(out.isReadable());
+        assertEquals(2, second.readLong());
+        assertEquals(ResponseCode.READ, second.readByte());
+        Map<String, String> read = BinaryClientProtocol.readValues(second);
+        assertEquals(values, read);
+        assertEquals(List.of("z", "a", "m"), List.copyOf(read.keySet()));
+        assertFalse(second.isReadable());
+        out.release();
+    }
+}
@@ -0,0 +1,162 @@
+package com.yuyuko.paxoskv.remoting.server;
+
+import com.yuyuko.paxoskv.remoting.protocol.BinaryClientProtocol;
+import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
+import com.yuyuko.paxoskv.remoting.protocol.body.ConditionalProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.MultiProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.MultiReadMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.ProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.ReadMessage;
+import com.yuyuko.paxoskv.remoting.protocol.codec.ProtostuffCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryClientRequestDecoderTest {
+    private final EmbeddedChannel channel = new EmbeddedChannel(
+            BinaryClientProtocol.newFrameDecoder(), new BinaryClientRequestDecoder());
+
+    /**
+     * requestId保存在sequence中，二进制连接都是keep-alive的
+     */
+    private ClientRequest decode(ByteBuf frame, long requestId, int code) {
+        assertTrue(channel.writeInbound(frame));
+        ClientRequest request = channel.readInbound();
+        assertNull(channel.readInbound());
+        assertEquals(requestId, request.getSequence());
+        assertEquals(code, request.getCode());
+        assertTrue(request.isKeepAlive());
+        return request;
+    }
+
+    private static <T> T body(ClientRequest request, Class<T> type) {
+        return ProtostuffCodec.getInstance().decode(request.getBody(), type);
+    }
+
+    private ConditionalProposeMessage decodeConditional(int code, long expectedVersion,
+                                                        String expectedValue, String value) {
+        return body(decode(BinaryClientProtocol.encodeConditionalRequest(
+                ByteBufAllocator.DEFAULT, 9, code, "k", expectedVersion, expectedValue, value),
+                9, code), ConditionalProposeMessage.class);
+    }
+
+    @Test
+    void read() {
+        for (int code : new int[]{RequestCode.READ, RequestCode.LOCAL_READ}) {
+            ClientRequest request = decode(BinaryClientProtocol.encodeRequest(
+                    ByteBufAllocator.DEFAULT, 1, code, "键", null), 1, code);
+            assertEquals("键", body(request, ReadMessage.class).getKey());
+        }
+    }
+
+    @Test
+    void propose() {
+        ClientRequest request = decode(BinaryClientProtocol.encodeRequest(
+                ByteBufAllocator.DEFAULT, Long.MAX_VALUE, RequestCode.PROPOSE, "k", "v"),
+                Long.MAX_VALUE, RequestCode.PROPOSE);
+        ProposeMessage message = body(request, ProposeMessage.class);
+        assertEquals("k", message.getKey());
+        assertEquals("v", message.getValue());
+    }
+
+    @Test
+    void multiRead() {
+        ClientRequest request = decode(BinaryClientProtocol.encodeMultiRequest(
+                ByteBufAllocator.DEFAULT, 2, RequestCode.MULTI_READ, List.of("b", "a"), null),
+                2, RequestCode.MULTI_READ);
+        assertEquals(List.of("b", "a"), body(request, MultiReadMessage.class).getKeys());
+    }
+
+    @Test
+    void multiPropose() {
+        ClientRequest request = decode(BinaryClientProtocol.encodeMultiRequest(
+                ByteBufAllocator.DEFAULT, 3, RequestCode.MULTI_PROPOSE, List.of("a", "b"),
+                List.of("1", "2")), 3, RequestCode.MULTI_PROPOSE);
+        MultiProposeMessage message = body(request, MultiProposeMessage.class);
+        assertEquals(List.of("a", "b"), message.getKeys());
+        assertEquals(List.of("1", "2"), message.getValues());
+    }
+
+    @Test
+    void conditional() {
+        ConditionalProposeMessage message = decodeConditional(RequestCode.DELETE,
+                ConditionalProposeMessage.ANY_VERSION, null, null);
+        assertEquals("k", message.getKey());
+        assertNull(message.getValue());
+        assertNull(message.getExpectedValue());
+        assertEquals(ConditionalProposeMessage.ANY_VERSION, message.getExpectedVersion());
+
+        message = decodeConditional(RequestCode.DELETE, 4, null, null);
+        assertEquals(4, message.getExpectedVersion());
+
+        message = decodeConditional(RequestCode.PUT_IF_ABSENT,
+                ConditionalProposeMessage.ANY_VERSION, null, "v");
+        assertEquals("v", message.getValue());
+
+        message = decodeConditional(RequestCode.COMPARE_AND_SET,
+                ConditionalProposeMessage.ANY_VERSION, "old", "new");
+        assertEquals("old", message.getExpectedValue());
+        assertEquals("new", message.getValue());
+        // 期望的值为null时期望key不存在，和空字符串不同
+        assertNull(decodeConditional(RequestCode.COMPARE_AND_SET,
+                ConditionalProposeMessage.ANY_VERSION, null, "new").getExpectedValue());
+        assertEquals("", decodeConditional(RequestCode.COMPARE_AND_SET,
+                ConditionalProposeMessage.ANY_VERSION, "", "new").getExpectedValue());
+
+        message = decodeConditional(RequestCode.PUT_IF_VERSION, 0, null, "v");
+        assertEquals(0, message.getExpectedVersion());
+        assertEquals("v", message.getValue());
+    }
+
+    /**
+     * 除了DELETE，条件写必须有value
+     */
+    @Test
+    void conditionalWithoutValue() {
+        for (int code : new int[]{RequestCode.PUT_IF_ABSENT, RequestCode.COMPARE_AND_SET,
+                RequestCode.PUT_IF_VERSION}) {
+            ByteBuf frame = BinaryClientProtocol.encodeConditionalRequest(
+                    ByteBufAllocator.DEFAULT, 1, code, "k", 0, null, null);
+            assertThrows(CorruptedFrameException.class, () -> channel.writeInbound(frame));
+        }
+    }
+
+    @Test
+    void unknownCode() {
+        ByteBuf frame = BinaryClientProtocol.encodeRequest(ByteBufAllocator.DEFAULT, 1, 100,
+                "k", null);
+        assertThrows(CorruptedFrameException.class, () -> channel.writeInbound(frame));
+    }
+
+    /**
+     * 个数超过帧的剩余字节数时不分配集合，直接拒绝
+     */
+    @Test
+    void corruptCount() {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeInt(8 + 1 + 4 + 4);
+        frame.writeLong(1);
+        frame.writeByte(RequestCode.MULTI_READ);
+        frame.writeInt(Integer.MAX_VALUE);
+        frame.writeInt(0);
+        assertThrows(CorruptedFrameException.class, () -> channel.writeInbound(frame));
+    }
+
+    @Test
+    void truncatedString() {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeInt(8 + 1 + 4 + 2);
+        frame.writeLong(1);
+        frame.writeByte(RequestCode.READ);
+        frame.writeInt(100);
+        frame.writeShort(0);
+        assertThrows(CorruptedFrameException.class, () -> channel.writeInbound(frame));
+    }
+}
@@ -0,0 +1,195 @@
+package com.yuyuko.paxoskv.remoting.server;
+
+import com.yuyuko.paxoskv.remoting.NettyTransport;
+import com.yuyuko.paxoskv.remoting.protocol.BinaryClientProtocol;
+import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
+import com.yuyuko.paxoskv.remoting.protocol.ResponseCode;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多个客户端同时访问一个节点的二进制端口，每个客户端一个连接，同一时刻只有一个请求，
+ * 收到回复后立刻发下一个，统计吞吐、延迟分位数和TOO_MANY_REQUEST的个数
+ * 所有连接共用一个EventLoopGroup，1k～10k个客户端不需要同样多的线程
+ * 运行：先启动集群（可以加-v、-m），mvn -pl paxoskv-remoting test-compile之后，
+ * java -cp target/classes:target/test-classes:依赖 com.yuyuko.paxoskv.remoting.server.ConcurrentClientsBenchmark
+ * [host] [二进制端口] [客户端数，逗号分隔] [每轮秒数] [put|get]
+ */
+public class ConcurrentClientsBenchmark {
+    private static final int KEYS = 1000;
+
+    /**
+     * 每轮开始前不统计的时间
+     */
+    private static final long WARMUP_MILLIS = 2000;
+
+    /**
+     * 每个客户端最多记录的延迟个数
+     */
+    private static final int MAX_SAMPLES = 1024;
+
+    private final int code;
+
+    private final AtomicLong ok = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final List<Client> clients = new ArrayList<>();
+
+    private volatile boolean recording;
+
+    private volatile boolean running = true;
+
+    private ConcurrentClientsBenchmark(int code) {
+        this.code = code;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 28888;
+        String[] clients = (args.length > 2 ? args[2] : "1000,5000,10000").split(",");
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        boolean put = args.length <= 4 || "put".equals(args[4]);
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean epoll = NettyTransport.useEpoll(true);
+        EventLoopGroup group = NettyTransport.newEventLoopGroup(epoll, threads, r -> {
+            Thread thread = new Thread(r, "BenchmarkClient");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (String n : clients)
+                new ConcurrentClientsBenchmark(put ? RequestCode.PROPOSE : RequestCode.READ)
+                        .run(group, epoll, host, port, Integer.parseInt(n.trim()), seconds);
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    private void run(EventLoopGroup group, boolean epoll, String host, int port, int clients,
+                     int seconds) throws Exception {
+        Bootstrap bootstrap = NettyTransport.clientChannel(new Bootstrap(), epoll, true)
+                .group(group)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
+        List<Channel> channels = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            Client client = new Client(i);
+            this.clients.add(client);
+            channels.add(bootstrap.handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    ch.pipeline().addLast(BinaryClientProtocol.newFrameDecoder(), client);
+                }
+            }).connect(host, port).sync().channel());
+        }
+        for (Channel channel : channels)
+            channel.eventLoop().execute(() -> send(channel));
+        TimeUnit.MILLISECONDS.sleep(WARMUP_MILLIS);
+        recording = true;
+        long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(seconds);
+        recording = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        running = false;
+        for (Channel channel : channels)
+            channel.close().sync();
+        report(clients, elapsed);
+    }
+
+    private void send(Channel channel) {
+        Client client = channel.pipeline().get(Client.class);
+        client.sendNanos = System.nanoTime();
+        long requestId = client.nextRequestId++;
+        String key = "bench" + (client.id * 31 + requestId) % KEYS;
+        channel.writeAndFlush(BinaryClientProtocol.encodeRequest(channel.alloc(), requestId,
+                code, key, code == RequestCode.PROPOSE ? "v" + requestId : null));
+    }
+
+    /**
+     * 一个客户端，只在连接的io线程中访问
+     */
+    private class Client extends SimpleChannelInboundHandler<ByteBuf> {
+        private final int id;
+
+        /**
+         * 成功的请求的延迟，微秒
+         */
+        private final long[] latency = new long[MAX_SAMPLES];
+
+        private int samples;
+
+        private long nextRequestId;
+
+        private long sendNanos;
+
+        Client(int id) {
+            this.id = id;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) {
+            frame.readLong();
+            int responseCode = frame.readByte();
+            if (recording) {
+                if (responseCode == ResponseCode.TOO_MANY_REQUEST)
+                    rejected.incrementAndGet();
+                else if (responseCode == ResponseCode.PROPOSE ||
+                        responseCode == ResponseCode.READ ||
+                        responseCode == ResponseCode.READ_NOT_FOUND) {
+                    ok.incrementAndGet();
+                    if (samples < latency.length)
+                        latency[samples++] = (System.nanoTime() - sendNanos) / 1000;
+                } else
+                    failed.incrementAndGet();
+            }
+            if (running)
+                send(ctx.channel());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            failed.incrementAndGet();
+            ctx.close();
+        }
+    }
+
+    private void report(int clients, double elapsed) {
+        int total = 0;
+        for (Client client : this.clients)
+            total += client.samples;
+        long[] all = new long[total];
+        int index = 0;
+        for (Client client : this.clients) {
+            System.arraycopy(client.latency, 0, all, index, client.samples);
+            index += client.samples;
+        }
+        Arrays.sort(all);
+        System.out.printf("%s clients %6d: %8.0f req/s, ok %d, rejected %d, failed %d, " +
+                        "latency(ms) p50 %.1f p99 %.1f max %.1f%n",
+                code == RequestCode.PROPOSE ? "put" : "get", clients, ok.get() / elapsed,
+                ok.get(), rejected.get(), failed.get(), percentile(all, 0.5),
+                percentile(all, 0.99), all.length == 0 ? 0 : all[all.length - 1] / 1000.0);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1000.0;
+    }
+}
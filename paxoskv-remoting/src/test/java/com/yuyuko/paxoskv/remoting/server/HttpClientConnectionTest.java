@@ -0,0 +1,222 @@
+package com.yuyuko.paxoskv.remoting.server;
+
+import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
+import com.yuyuko.paxoskv.remoting.protocol.ResponseCode;
+import com.yuyuko.paxoskv.remoting.protocol.body.ConditionalProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.ProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.ReadMessage;
+import com.yuyuko.paxoskv.remoting.protocol.codec.ProtostuffCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * HTTP pipelining：请求由测试线程按任意顺序回复，检查处理的时机和写回的顺序
+ */
+class HttpClientConnectionTest {
+    private static final Pattern RESPONSE = Pattern.compile(
+            "HTTP/1\\.1 (\\d+) [^\\r]*\\r\\n(?:[^\\r]+\\r\\n)*?content-length: (\\d+)\\r\\n" +
+                    "(?:[^\\r]+\\r\\n)*\\r\\n", Pattern.CASE_INSENSITIVE);
+
+    private final BlockingQueue<ClientRequest> processing = new LinkedBlockingQueue<>();
+
+    private final NettyServer server;
+
+    private final EmbeddedChannel channel;
+
+    HttpClientConnectionTest() {
+        NettyServerConfig config = new NettyServerConfig();
+        config.setNativeTransport(false);
+        server = new NettyServer(1, config, processing::add);
+        channel = new EmbeddedChannel(new HttpResponseEncoder(), new ClientResponseEncoder(),
+                new HttpRequestDecoder(), new HttpObjectAggregator(65536),
+                new ClientRequestDecoder(), server.new ClientRequestHandler(HttpClientConnection::new));
+    }
+
+    @AfterEach
+    void close() {
+        channel.finishAndReleaseAll();
+    }
+
+    private void send(String method, String uri, String headers, String body) {
+        String request = method + " " + uri + " HTTP/1.1\r\nHost: localhost\r\n" + headers +
+                "Content-Length: " + body.getBytes(CharsetUtil.UTF_8).length + "\r\n\r\n" + body;
+        channel.writeInbound(Unpooled.copiedBuffer(request, CharsetUtil.UTF_8));
+    }
+
+    private void get(String key) {
+        send("GET", "/" + key, "", "");
+    }
+
+    private void put(String key, String value) {
+        send("PUT", "/" + key, "", value);
+    }
+
+    /**
+     * 已经交给processor的请求的key -> 请求
+     */
+    private Map<String, ClientRequest> take(int count) throws InterruptedException {
+        Map<String, ClientRequest> requests = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            ClientRequest request = processing.poll(5, TimeUnit.SECONDS);
+            assertNotNull(request);
+            requests.put(keyOf(request), request);
+        }
+        assertNull(processing.poll(100, TimeUnit.MILLISECONDS));
+        return requests;
+    }
+
+    private static String keyOf(ClientRequest request) {
+        switch (request.getCode()) {
+            case RequestCode.READ:
+            case RequestCode.LOCAL_READ:
+                return ProtostuffCodec.getInstance().decode(request.getBody(),
+                        ReadMessage.class).getKey();
+            case RequestCode.PROPOSE:
+                return ProtostuffCodec.getInstance().decode(request.getBody(),
+                        ProposeMessage.class).getKey();
+            default:
+                return ProtostuffCodec.getInstance().decode(request.getBody(),
+                        ConditionalProposeMessage.class).getKey();
+        }
+    }
+
+    private void reply(ClientRequest request, String body) {
+        server.sendResponseToClient(request, new ClientResponse(ResponseCode.READ,
+                body.getBytes(CharsetUtil.UTF_8)));
+    }
+
+    /**
+     * @return 到目前为止写回的回复，每个为"状态码 body"
+     */
+    private String responses() {
+        StringBuilder out = new StringBuilder();
+        ByteBuf buf;
+        while ((buf = channel.readOutbound()) != null) {
+            out.append(buf.toString(CharsetUtil.UTF_8));
+            buf.release();
+        }
+        StringBuilder responses = new StringBuilder();
+        Matcher matcher = RESPONSE.matcher(out);
+        int position = 0;
+        while (position < out.length()) {
+            assertTrue(matcher.find(position) && matcher.start() == position, out.toString());
+            int end = matcher.end() + Integer.parseInt(matcher.group(2));
+            if (responses.length() > 0)
+                responses.append(',');
+            responses.append(matcher.group(1)).append(' ').append(out, matcher.end(), end);
+            position = end;
+        }
+        return responses.toString();
+    }
+
+    /**
+     * 连续的读并行处理，先完成的回复等前面的回复写完之后按请求顺序写回
+     */
+    @Test
+    void outOfOrderCompletionWrittenInOrder() throws Exception {
+        get("a");
+        get("b");
+        get("c");
+        Map<String, ClientRequest> requests = take(3);
+        reply(requests.get("c"), "C");
+        reply(requests.get("b"), "B");
+        assertEquals("", responses());
+        reply(requests.get("a"), "A");
+        assertEquals("200 A,200 B,200 C", responses());
+        // 重复的回复被忽略
+        reply(requests.get("b"), "B2");
+        assertEquals("", responses());
+        assertTrue(channel.isOpen());
+    }
+
+    /**
+     * 写等前面的读回复之后才处理，后面的读再等写回复
+     */
+    @Test
+    void writeWaitsForEarlierReads() throws Exception {
+        get("a");
+        put("b", "1");
+        get("c");
+        Map<String, ClientRequest> requests = take(1);
+        reply(requests.get("a"), "A");
+        requests = take(1);
+        assertEquals(RequestCode.PROPOSE, requests.get("b").getCode());
+        reply(requests.get("b"), "B");
+        requests = take(1);
+        reply(requests.get("c"), "C");
+        assertEquals("200 A,200 B,200 C", responses());
+    }
+
+    /**
+     * 不是keep-alive的回复写完之后关闭连接，后面的请求不再回复
+     */
+    @Test
+    void connectionCloseEndsPipeline() throws Exception {
+        send("GET", "/a", "Connection: close\r\n", "");
+        get("b");
+        Map<String, ClientRequest> requests = take(2);
+        reply(requests.get("b"), "B");
+        assertEquals("", responses());
+        reply(requests.get("a"), "A");
+        channel.runPendingTasks();
+        assertEquals("200 A", responses());
+        assertFalse(channel.isOpen());
+    }
+
+    /**
+     * 等待的请求达到上限时暂停读取，写回复之后排队的读开始处理，恢复读取
+     */
+    @Test
+    void autoReadToggledAtMaxWaitingRequests() throws Exception {
+        put("w", "1");
+        ClientRequest write = take(1).get("w");
+        for (int i = 0; i < HttpClientConnection.MAX_WAITING_REQUESTS - 1; i++)
+            get("r" + i);
+        assertTrue(channel.config().isAutoRead());
+        get("last");
+        assertFalse(channel.config().isAutoRead());
+        reply(write, "W");
+        assertTrue(channel.config().isAutoRead());
+        assertEquals(HttpClientConnection.MAX_WAITING_REQUESTS,
+                take(HttpClientConnection.MAX_WAITING_REQUESTS).size());
+        assertEquals("200 W", responses());
+    }
+
+    /**
+     * 格式错误的请求按顺序回复400，不交给processor，也不关闭连接
+     */
+    @Test
+    void badRequestTakesItsSlot() throws Exception {
+        get("a");
+        send("PUT", "/b", "If-Match: abc\r\n", "1");
+        send("DELETE", "/b", "If-Match: -1\r\n", "");
+        send("POST", "/_mput", "", "k1=v1\nbroken\n");
+        send("PATCH", "/b", "", "");
+        get("c");
+        Map<String, ClientRequest> requests = take(1);
+        reply(requests.get("a"), "A");
+        requests = take(1);
+        reply(requests.get("c"), "C");
+        assertEquals("200 A,400 If-Match is not a version: abc,400 negative version -1," +
+                "400 expect key=value, got broken,400 unsupported request PATCH /b,200 C",
+                responses());
+        assertTrue(channel.isOpen());
+    }
+}
@@ -0,0 +1,142 @@
+package com.yuyuko.paxoskv.remoting.server;
+
+import com.yuyuko.paxoskv.remoting.protocol.BinaryClientProtocol;
+import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
+import com.yuyuko.paxoskv.remoting.protocol.ResponseCode;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NettyServerTest {
+    /**
+     * 请求只放入队列，由测试线程回复，请求在回复之前一直占用inflightRequests
+     */
+    private final BlockingQueue<ClientRequest> processing = new LinkedBlockingQueue<>();
+
+    private NettyServer newServer(int maxInflightRequests) {
+        NettyServerConfig config = new NettyServerConfig();
+        config.setNativeTransport(false);
+        config.setMaxInflightRequests(maxInflightRequests);
+        return new NettyServer(1, config, processing::add);
+    }
+
+    private static EmbeddedChannel binaryChannel(NettyServer server) {
+        return new EmbeddedChannel(BinaryClientProtocol.newFrameDecoder(),
+                new BinaryClientRequestDecoder(), new BinaryClientResponseEncoder(),
+                server.new ClientRequestHandler(BinaryClientConnection::new));
+    }
+
+    private static void send(EmbeddedChannel channel, long requestId) {
+        channel.writeInbound(BinaryClientProtocol.encodeRequest(ByteBufAllocator.DEFAULT,
+                requestId, RequestCode.PROPOSE, "k" + requestId, "v"));
+    }
+
+    /**
+     * @return [requestId, ResponseCode]
+     */
+    private static long[] readResponse(EmbeddedChannel channel) {
+        ByteBuf frame = channel.readOutbound();
+        assertNotNull(frame);
+        try {
+            frame.readInt();
+            return new long[]{frame.readLong(), frame.readByte()};
+        } finally {
+            frame.release();
+        }
+    }
+
+    private ClientRequest take() throws InterruptedException {
+        ClientRequest request = processing.poll(5, TimeUnit.SECONDS);
+        assertNotNull(request);
+        return request;
+    }
+
+    @Test
+    void rejectOverInflightLimit() throws Exception {
+        NettyServer server = newServer(2);
+        EmbeddedChannel channel = binaryChannel(server);
+        send(channel, 1);
+        send(channel, 2);
+        send(channel, 3);
+        // 第3个请求在io线程中直接拒绝，不交给processor
+        assertArrayEquals(new long[]{3, ResponseCode.TOO_MANY_REQUEST}, readResponse(channel));
+        ClientRequest first = take();
+        take();
+        assertNull(processing.poll(100, TimeUnit.MILLISECONDS));
+
+        // 回复之后释放，后面的请求可以处理
+        server.sendResponseToClient(first, new ClientResponse(ResponseCode.PROPOSE,
+                new byte[0]));
+        assertEquals(ResponseCode.PROPOSE, readResponse(channel)[1]);
+        send(channel, 4);
+        assertEquals(4, take().getSequence());
+        assertNull(channel.readOutbound());
+
+        send(channel, 5);
+        assertArrayEquals(new long[]{5, ResponseCode.TOO_MANY_REQUEST}, readResponse(channel));
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * 被拒绝的请求没有占用inflightRequests，重复回复也只释放一次
+     */
+    @Test
+    void releaseOncePerRequest() throws Exception {
+        NettyServer server = newServer(1);
+        EmbeddedChannel channel = binaryChannel(server);
+        send(channel, 1);
+        send(channel, 2);
+        assertArrayEquals(new long[]{2, ResponseCode.TOO_MANY_REQUEST}, readResponse(channel));
+        ClientRequest request = take();
+        for (int i = 0; i < 2; i++)
+            server.sendResponseToClient(request, new ClientResponse(ResponseCode.PROPOSE,
+                    new byte[0]));
+        assertEquals(ResponseCode.PROPOSE, readResponse(channel)[1]);
+        assertNull(channel.readOutbound());
+
+        send(channel, 3);
+        take();
+        send(channel, 4);
+        assertArrayEquals(new long[]{4, ResponseCode.TOO_MANY_REQUEST}, readResponse(channel));
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * 回复之后requestId可以重用，还没有回复时重复的requestId无法匹配回复，关闭连接
+     */
+    @Test
+    void duplicateRequestIdClosesConnection() throws Exception {
+        NettyServer server = newServer(0);
+        EmbeddedChannel channel = binaryChannel(server);
+        send(channel, 1);
+        server.sendResponseToClient(take(), new ClientResponse(ResponseCode.PROPOSE,
+                new byte[0]));
+        assertArrayEquals(new long[]{1, ResponseCode.PROPOSE}, readResponse(channel));
+        send(channel, 1);
+        take();
+        assertTrue(channel.isOpen());
+        send(channel, 1);
+        assertFalse(channel.isOpen());
+        assertNull(processing.poll(100, TimeUnit.MILLISECONDS));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void unlimitedWhenNotPositive() throws Exception {
+        NettyServer server = newServer(0);
+        EmbeddedChannel channel = binaryChannel(server);
+        for (int i = 1; i <= 100; i++)
+            send(channel, i);
+        for (int i = 0; i < 100; i++)
+            take();
+        assertNull(channel.readOutbound());
+        channel.finishAndReleaseAll();
+    }
+}
@@ -5,8 +5,10 @@ import com.yuyuko.paxoskv.remoting.peer.PeerMessageProcessor;
 import com.yuyuko.paxoskv.remoting.peer.PeerNode;
 import com.yuyuko.paxoskv.remoting.peer.server.NettyPeerServerConfig;
 import com.yuyuko.paxoskv.remoting.server.ClientRequestProcessor;
-import com.yuyuko.paxoskv.server.core.PaxosNode;
+import com.yuyuko.paxoskv.remoting.server.NettyServerConfig;
+import com.yuyuko.paxoskv.server.core.PaxosGroups;
 import com.yuyuko.paxoskv.server.core.Server;
+import com.yuyuko.paxoskv.server.statemachine.KvEngine;
 import com.yuyuko.paxoskv.server.statemachine.StateMachine;
 import com.yuyuko.paxoskv.server.utils.Triple;
 import com.yuyuko.selector.Channel;
@@ -19,27 +21,41 @@ import java.util.stream.Collectors;
 
 public class Startup {
     public static void main(String[] args) throws ParseException {
-        Triple<Long, Integer, List<PeerNode>> idPortPeerNodesTriple = parseCmdLine("raftkv", args);
+        CommandLine commandLine = parseCmdLine("raftkv", args);
+        Triple<Long, Integer, List<PeerNode>> idPortPeerNodesTriple = parseIdPortPeerNodes(commandLine);
 
+        NettyServerConfig serverConfig = new NettyServerConfig();
+        serverConfig.setListenPort(idPortPeerNodesTriple.getSecond());
+        serverConfig.setBinaryListenPort(idPortPeerNodesTriple.getSecond() +
+                NettyServerConfig.BINARY_PORT_INCREMENT);
+        serverConfig.setVirtualThreads(commandLine.hasOption("v"));
+        if (commandLine.hasOption("m"))
+            serverConfig.setMaxInflightRequests(Integer.parseInt(commandLine.getOptionValue("m")));
         Server server = createServer(
                 idPortPeerNodesTriple.getFirst(),
-                idPortPeerNodesTriple.getSecond(),
-                idPortPeerNodesTriple.getThird());
+                serverConfig,
+                idPortPeerNodesTriple.getThird(),
+                Integer.parseInt(commandLine.getOptionValue("g", "1")),
+                commandLine.getOptionValue("d"),
+                KvEngine.parse(commandLine.getOptionValue("e", "hash")));
         server.start();
     }
 
-    private static Server createServer(long id, int port, List<PeerNode> peerNodes) {
+    private static Server createServer(long id, NettyServerConfig serverConfig,
+                                       List<PeerNode> peerNodes,
+                                       int groupCount, String dataDir, KvEngine engine) {
 
         Tuple<PeerMessageProcessor, ClientRequestProcessor> tuple =
-                PaxosNode.newPaxosNode(id,
-                        peerNodes.stream().map(PeerNode::getId).collect(Collectors.toList()));
+                PaxosGroups.newPaxosGroups(id,
+                        peerNodes.stream().map(PeerNode::getId).collect(Collectors.toList()),
+                        groupCount, dataDir, engine);
 
-        return new Server(id, port, tuple.getSecond(), peerNodes, tuple.getFirst());
+        return new Server(id, serverConfig, tuple.getSecond(), peerNodes, tuple.getFirst());
     }
 
 
-    private static final Triple<Long, Integer, List<PeerNode>> parseCmdLine(String appName,
-                                                                            String[] args) throws ParseException {
+    private static final CommandLine parseCmdLine(String appName,
+                                                  String[] args) throws ParseException {
         HelpFormatter helpFormatter = new HelpFormatter();
         helpFormatter.setWidth(110);
         Options options = buildCommandlineOptions(new Options());
@@ -51,7 +67,10 @@ public class Startup {
         }
         if (commandLine == null)
             System.exit(-1);
+        return commandLine;
+    }
 
+    private static final Triple<Long, Integer, List<PeerNode>> parseIdPortPeerNodes(CommandLine commandLine) {
         long id = Long.parseLong(commandLine.getOptionValue("id"));
 
         AtomicInteger idCnt = new AtomicInteger(0);
@@ -76,10 +95,28 @@ public class Startup {
     private static final Options buildCommandlineOptions(Options options) {
         Option port = new Option("p", "port", true, "server port");
         port.setRequired(false);
+        Option dataDir = new Option("d", "data-dir", true, "paxos log dir, in memory if absent");
+        dataDir.setRequired(false);
+        Option groups = new Option("g", "groups", true, "paxos group count, default 1");
+        groups.setRequired(false);
+        Option virtualThreads = new Option("v", "virtual-threads", false,
+                "process client requests on virtual threads, requires JDK 21");
+        virtualThreads.setRequired(false);
+        Option maxInflight = new Option("m", "max-inflight", true,
+                "max unanswered client requests, default 10000, unlimited if <= 0");
+        maxInflight.setRequired(false);
+        Option engine = new Option("e", "engine", true,
+                "state machine storage engine: hash, compact or off-heap, default hash");
+        engine.setRequired(false);
         options.addOption(new Option("i", "id", true, "raft node id"))
                 .addOption(new Option("c", "cluster", true,
                         "raft server address list, eg: 192.168.0.1:9876,192.168.0.2:9876"))
-                .addOption(port);
+                .addOption(port)
+                .addOption(dataDir)
+                .addOption(groups)
+                .addOption(virtualThreads)
+                .addOption(maxInflight)
+                .addOption(engine);
         return options;
     }
 }
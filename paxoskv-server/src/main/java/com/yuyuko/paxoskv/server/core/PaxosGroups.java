@@ -0,0 +1,172 @@
+package com.yuyuko.paxoskv.server.core;
+
+import com.yuyuko.paxoskv.core.PaxosMessage;
+import com.yuyuko.paxoskv.core.utils.Tuple;
+import com.yuyuko.paxoskv.remoting.peer.PeerMessageProcessor;
+import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
+import com.yuyuko.paxoskv.remoting.protocol.ResponseCode;
+import com.yuyuko.paxoskv.remoting.protocol.body.ConditionalProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.MultiProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.MultiReadMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.ProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.ReadMessage;
+import com.yuyuko.paxoskv.remoting.protocol.codec.ProtostuffCodec;
+import com.yuyuko.paxoskv.remoting.server.ClientRequest;
+import com.yuyuko.paxoskv.remoting.server.ClientRequestProcessor;
+import com.yuyuko.paxoskv.remoting.server.ClientResponse;
+import com.yuyuko.paxoskv.server.statemachine.KvEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一个进程中的多个相互独立的paxos group，key按hash分配到group
+ * 所有group共用节点之间的连接，PaxosMessage带上groupId区分
+ */
+public class PaxosGroups implements PeerMessageProcessor, ClientRequestProcessor {
+    private static final Logger log = LoggerFactory.getLogger(PaxosGroups.class);
+
+    private final PaxosNode[] groups;
+
+    private PaxosGroups(int groupCount) {
+        this.groups = new PaxosNode[groupCount];
+    }
+
+    /**
+     * @param dataDir 每个group使用其中的group-{groupId}子目录，为null时只保存在内存中
+     * @param engine  每个group的状态机使用的存储引擎
+     */
+    public static Tuple<PeerMessageProcessor, ClientRequestProcessor>
+    newPaxosGroups(long id,
+                   List<Long> peers,
+                   int groupCount,
+                   String dataDir,
+                   KvEngine engine) {
+        if (groupCount <= 0)
+            throw new IllegalArgumentException("groupCount must be positive");
+        PaxosGroups paxosGroups = new PaxosGroups(groupCount);
+        for (int groupId = 0; groupId < groupCount; groupId++) {
+            String groupDir = dataDir == null ? null :
+                    new File(dataDir, "group-" + groupId).getPath();
+            paxosGroups.groups[groupId] = PaxosNode.newGroup(id, groupId, peers, groupDir,
+                    engine);
+        }
+        return new Tuple<>(paxosGroups, paxosGroups);
+    }
+
+    /**
+     * String的hashCode是确定的，所有节点把同一个key分到同一个group
+     * key中有{tag}时只按第一个tag计算，需要原子地一起写入的key可以用相同的tag放到同一个group
+     */
+    static int groupOf(String key, int groupCount) {
+        int start = key.indexOf('{');
+        if (start >= 0) {
+            int end = key.indexOf('}', start + 1);
+            if (end > start + 1)
+                key = key.substring(start + 1, end);
+        }
+        return Math.floorMod(key.hashCode(), groupCount);
+    }
+
+    @Override
+    public void process(PaxosMessage message) {
+        int groupId = message.getGroupId();
+        if (groupId < 0 || groupId >= groups.length) {
+            log.warn("[Unknown Group] groupId {}, from node {}", groupId, message.getNodeId());
+            return;
+        }
+        groups[groupId].process(message);
+    }
+
+    @Override
+    public void processRequest(ClientRequest clientRequest) {
+        switch (clientRequest.getCode()) {
+            case RequestCode.PROPOSE:
+                route(clientRequest, ProtostuffCodec.getInstance().decode(clientRequest.getBody(),
+                        ProposeMessage.class).getKey());
+                break;
+            case RequestCode.DELETE:
+            case RequestCode.PUT_IF_ABSENT:
+            case RequestCode.COMPARE_AND_SET:
+            case RequestCode.PUT_IF_VERSION:
+                route(clientRequest, ProtostuffCodec.getInstance().decode(clientRequest.getBody(),
+                        ConditionalProposeMessage.class).getKey());
+                break;
+            case RequestCode.MULTI_PROPOSE:
+                multiPropose(clientRequest);
+                break;
+            case RequestCode.MULTI_READ:
+                multiRead(clientRequest);
+                break;
+            default:
+                route(clientRequest, ProtostuffCodec.getInstance().decode(clientRequest.getBody(),
+                        ReadMessage.class).getKey());
+        }
+    }
+
+    private void route(ClientRequest clientRequest, String key) {
+        groups[groupOf(key, groups.length)].processRequest(clientRequest);
+    }
+
+    /**
+     * 只有在同一个group中的key才能在一个实例中原子地写入
+     */
+    private void multiPropose(ClientRequest clientRequest) {
+        List<String> keys = ProtostuffCodec.getInstance().decode(clientRequest.getBody(),
+                MultiProposeMessage.class).getKeys();
+        Map<Integer, List<String>> keysByGroup = keysByGroup(keys);
+        if (keysByGroup.size() > 1) {
+            Server.sendResponseToClient(clientRequest, new ClientResponse(ResponseCode.CROSS_GROUP,
+                    "(Keys span multiple groups, use the same {tag})".getBytes()));
+            return;
+        }
+        groups[keysByGroup.isEmpty() ? 0 : keysByGroup.keySet().iterator().next()]
+                .processRequest(clientRequest);
+    }
+
+    /**
+     * 分到各个group分别读，每个key都是线性一致的，不同group之间不是同一时刻的快照
+     */
+    private void multiRead(ClientRequest clientRequest) {
+        List<String> keys = ProtostuffCodec.getInstance().decode(clientRequest.getBody(),
+                MultiReadMessage.class).getKeys();
+        Map<Integer, List<String>> keysByGroup = keysByGroup(keys);
+        if (keysByGroup.size() <= 1) {
+            groups[keysByGroup.isEmpty() ? 0 : keysByGroup.keySet().iterator().next()]
+                    .processRequest(clientRequest);
+            return;
+        }
+        Map<String, String> values = new HashMap<>();
+        for (Map.Entry<Integer, List<String>> entry : keysByGroup.entrySet()) {
+            Map<String, String> groupValues = groups[entry.getKey()].readAll(entry.getValue());
+            if (groupValues == null) {
+                Server.sendResponseToClient(clientRequest,
+                        new ClientResponse(ResponseCode.READ_TIMEOUT, "Read Timeout".getBytes()));
+                return;
+            }
+            values.putAll(groupValues);
+        }
+        // 按请求中key的顺序返回
+        Map<String, String> ordered = new LinkedHashMap<>();
+        for (String key : keys) {
+            String value = values.get(key);
+            if (value != null)
+                ordered.put(key, value);
+        }
+        Server.sendResponseToClient(clientRequest, new ClientResponse(ResponseCode.READ, ordered));
+    }
+
+    private Map<Integer, List<String>> keysByGroup(List<String> keys) {
+        Map<Integer, List<String>> keysByGroup = new HashMap<>();
+        for (String key : keys)
+            keysByGroup.computeIfAbsent(groupOf(key, groups.length), k -> new ArrayList<>())
+                    .add(key);
+        return keysByGroup;
+    }
+}
@@ -5,17 +5,22 @@ import com.yuyuko.paxoskv.core.CommitContext;
 import com.yuyuko.paxoskv.core.PaxosException;
 import com.yuyuko.paxoskv.core.PaxosMessage;
 import com.yuyuko.paxoskv.core.node.*;
+import com.yuyuko.paxoskv.core.storage.FileStorage;
 import com.yuyuko.paxoskv.core.storage.MemoryStorage;
+import com.yuyuko.paxoskv.core.storage.Storage;
 import com.yuyuko.paxoskv.core.utils.Tuple;
 import com.yuyuko.paxoskv.core.utils.Utils;
 import com.yuyuko.paxoskv.remoting.peer.PeerMessageProcessor;
 import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
 import com.yuyuko.paxoskv.remoting.protocol.ResponseCode;
+import com.yuyuko.paxoskv.remoting.protocol.body.MultiReadMessage;
 import com.yuyuko.paxoskv.remoting.protocol.body.ReadMessage;
 import com.yuyuko.paxoskv.remoting.protocol.codec.ProtostuffCodec;
 import com.yuyuko.paxoskv.remoting.server.ClientRequest;
 import com.yuyuko.paxoskv.remoting.server.ClientRequestProcessor;
 import com.yuyuko.paxoskv.remoting.server.ClientResponse;
+import com.yuyuko.paxoskv.server.statemachine.ApplyResult;
+import com.yuyuko.paxoskv.server.statemachine.KvEngine;
 import com.yuyuko.paxoskv.server.statemachine.StateMachine;
 import com.yuyuko.selector.Channel;
 import com.yuyuko.selector.SelectionKey;
@@ -23,10 +28,13 @@ import com.yuyuko.selector.Selector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class PaxosNode implements PeerMessageProcessor, ClientRequestProcessor {
@@ -34,33 +42,93 @@ public class PaxosNode implements PeerMessageProcessor, ClientRequestProcessor {
 
     private long id;
 
+    /**
+     * 所属的paxos group
+     */
+    private int groupId;
+
     private List<Long> peers;
 
     /**
      * newInstance时写入，让StateMachine消费
      */
-    private Channel<byte[]> applyChan;
+    private Channel<ChosenValue> applyChan;
 
     private long applyInstanceId = -1;
 
+    /**
+     * 快照之后paxosLog中保留的实例数，落后不多的节点仍然可以从paxosLog追赶
+     */
+    private static final long RETAIN_INSTANCES = 1000;
+
+    /**
+     * paxosLog中保留的第一个instanceId
+     */
+    private long compactInstanceId;
+
     private Node node;
 
-    private MemoryStorage storage = new MemoryStorage();
+    private Storage storage;
+
+    /**
+     * 当前paxosInstance的instanceId，之前的实例都已经chosen
+     */
+    private volatile long instanceId;
+
+    private SnapshotTransfer snapshotTransfer;
 
-    private Timer timer = new Timer("TickTask", true);
+    /**
+     * 接收完的快照交给事件循环安装
+     */
+    private final Channel<Tuple<File, ChosenValue>> installChan = new Channel<>();
+
+    /**
+     * 线性一致读等待状态机apply到readIndex的超时时间
+     */
+    private static final long READ_APPLY_TIMEOUT_MILLIS = 3000;
+
+    /**
+     * 等待本地状态机apply的超时时间，线性一致读和提议之后的回复共用
+     */
+    private volatile long applyTimeoutMillis = READ_APPLY_TIMEOUT_MILLIS;
 
     private StateMachine stateMachine;
 
     public static Tuple<PeerMessageProcessor, ClientRequestProcessor>
     newPaxosNode(long id,
                  List<Long> peers) {
+        return newPaxosNode(id, peers, null);
+    }
+
+    /**
+     * @param dataDir paxosLog的目录，为null时只保存在内存中
+     */
+    public static Tuple<PeerMessageProcessor, ClientRequestProcessor>
+    newPaxosNode(long id,
+                 List<Long> peers,
+                 String dataDir) {
+        PaxosNode paxosNode = newGroup(id, 0, peers, dataDir, KvEngine.HASH);
+        return new Tuple<>(paxosNode, paxosNode);
+    }
+
+    /**
+     * 启动一个paxos group，每个group有自己的paxosLog、状态机和事件循环
+     */
+    static PaxosNode newGroup(long id, int groupId, List<Long> peers, String dataDir,
+                              KvEngine engine) {
         PaxosNode paxosNode = new PaxosNode();
         paxosNode.id = id;
+        paxosNode.groupId = groupId;
         paxosNode.peers = peers;
-        paxosNode.startPaxos();
+        paxosNode.storage = dataDir == null ? new MemoryStorage() : new FileStorage(dataDir);
+        //恢复的paxosLog在启动后就会重放，applyChan需要先于paxos创建
         paxosNode.applyChan = new Channel<>();
-        paxosNode.stateMachine = new StateMachine(paxosNode.applyChan);
-        return new Tuple<>(paxosNode, paxosNode);
+        paxosNode.stateMachine = new StateMachine(paxosNode.applyChan, dataDir, engine);
+        paxosNode.applyInstanceId = paxosNode.stateMachine.getSnapshotInstanceId();
+        paxosNode.snapshotTransfer = new SnapshotTransfer(id, groupId, paxosNode.stateMachine,
+                paxosNode.storage, paxosNode.installChan::write);
+        paxosNode.startPaxos();
+        return paxosNode;
     }
 
     private void startPaxos() {
@@ -70,37 +138,38 @@ public class PaxosNode implements PeerMessageProcessor, ClientRequestProcessor {
         config.setNodeInfoList(nodeInfos);
         config.setNodeCount(nodeInfos.size());
         config.setNodeId(id);
+        config.setGroupId(groupId);
+        config.setBatchPropose(true);
+        config.setInternalTick(true);
         node = DefaultNode.startNode(config);
 
         Thread thread = new Thread(this::serveChannels);
-        thread.setName("ServerChannelEventLoop");
+        thread.setName("ServerChannelEventLoop-" + groupId);
 
         thread.start();
     }
 
     private void serveChannels() {
-        final Channel<Object> tickChan = new Channel<>();
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                tickChan.write(null);
-            }
-        }, 0, 1);
-
         while (true) {
             SelectionKey<?> key = Selector.open()
-                    .register(tickChan, SelectionKey.read())
                     .register(node.ready(), SelectionKey.read())
+                    .register(installChan, SelectionKey.read())
                     .select();
-            if (key.channel() == tickChan)
-                node.tick();
+            if (key.channel() == installChan) {
+                @SuppressWarnings("unchecked")
+                Tuple<File, ChosenValue> tuple = (Tuple<File, ChosenValue>) key.data();
+                installSnapshot(tuple.getFirst(), tuple.getSecond());
+            }
             else if (key.channel() == node.ready()) {
                 Ready rd = key.data(Ready.class);
                 storage.append(rd.getChosenValues());
-                storage.saveInstanceId(rd.getInstanceId());
-                if (storage.isNewInstance()) {
+                //一批Ready只sync一次，并且必须在发送消息之前，保证promise和accept已经落盘
+                storage.sync();
+                if (rd.getInstanceId() > instanceId) {
+                    instanceId = rd.getInstanceId();
                     publishChosenValuesToStateMachine();
                 }
+                maybeCompact();
                 if (Utils.notEmpty(rd.getMessages())) {
                     List<PaxosMessage> remoteMessages = new ArrayList<>();
                     rd.getMessages().forEach(m -> {
@@ -119,52 +188,184 @@ public class PaxosNode implements PeerMessageProcessor, ClientRequestProcessor {
     }
 
     private void publishChosenValuesToStateMachine() {
-        long maxInstanceId = storage.maxInstanceId();
-        if (applyInstanceId == maxInstanceId)
+        //当前实例的值只是被accept，还不一定是chosen
+        long chosenInstanceId = instanceId - 1;
+        if (applyInstanceId >= chosenInstanceId)
             return;
-        List<ChosenValue> valuesToApply = storage.list(applyInstanceId + 1, maxInstanceId + 1);
+        List<ChosenValue> valuesToApply = storage.list(applyInstanceId + 1, chosenInstanceId + 1);
         for (ChosenValue chosenValue : valuesToApply) {
-            applyChan.write(chosenValue.getAcceptedValue());
+            applyChan.write(chosenValue);
             applyInstanceId = chosenValue.getInstanceId();
         }
     }
 
+    /**
+     * 依次安装状态机快照，重置storage，通知paxos从快照的下一个实例继续
+     *
+     * @param received    接收完的快照文件
+     * @param chosenValue 快照的最后一个实例
+     */
+    private void installSnapshot(File received, ChosenValue chosenValue) {
+        if (chosenValue.getInstanceId() < instanceId) {
+            log.info("[Ignore Snapshot] snapshot instanceId {}, now instanceId {}",
+                    chosenValue.getInstanceId(), instanceId);
+            if (!received.delete())
+                log.warn("[Delete Received Snapshot Failed] {}", received);
+            return;
+        }
+        stateMachine.installSnapshot(received, chosenValue.getInstanceId());
+        storage.reset(chosenValue);
+        applyInstanceId = chosenValue.getInstanceId();
+        node.installSnapshot(chosenValue);
+    }
+
+    private void maybeCompact() {
+        long keepFrom = stateMachine.getSnapshotInstanceId() + 1 - RETAIN_INSTANCES;
+        if (keepFrom <= compactInstanceId)
+            return;
+        storage.compact(keepFrom);
+        compactInstanceId = keepFrom;
+        log.info("[Compact PaxosLog] keep from instanceId {}", keepFrom);
+    }
+
     @Override
     public void process(PaxosMessage message) {
+        if (SnapshotTransfer.isSnapshotMessage(message)) {
+            snapshotTransfer.process(message, instanceId);
+            return;
+        }
         node.step(message);
     }
 
     @Override
     public void processRequest(ClientRequest clientRequest) {
-        if (clientRequest.getCode() == RequestCode.PROPOSE)
+        if (clientRequest.getCode() == RequestCode.PROPOSE
+                || clientRequest.getCode() == RequestCode.MULTI_PROPOSE
+                || RequestCode.isConditional(clientRequest.getCode()))
             propose(clientRequest);
+        else if (clientRequest.getCode() == RequestCode.LOCAL_READ)
+            readLocal(clientRequest);
+        else if (clientRequest.getCode() == RequestCode.MULTI_READ)
+            readAll(clientRequest);
         else
             read(clientRequest);
     }
 
+    /**
+     * 异步提议，不占用处理请求的线程
+     * 提议之前先登记applyToken，值被选中之后等本地状态机apply完再回复apply的结果，
+     * 条件写的结果只有apply时才知道，回复之后在本节点读也一定能读到这次写入
+     */
     public void propose(ClientRequest request) {
-        Tuple<Long, CommitContext.CommitResult> res =
-                node.propose(ProtostuffCodec.getInstance().encode(request));
-        CommitContext.CommitResult result = res.getSecond();
-        switch (result) {
-            case OK:
-                Server.sendResponseToClient(request.getRequestId(),
-                        new ClientResponse(ResponseCode.PROPOSE, "Propose Success".getBytes()));
-                break;
-            case Conflict:
-                Server.sendResponseToClient(request.getRequestId(),
-                        new ClientResponse(ResponseCode.PROPOSE, "Propose Failed".getBytes()));
-                break;
-        }
+        long applyToken;
+        do {
+            applyToken = ThreadLocalRandom.current().nextLong();
+        } while (applyToken == 0);
+        request.setApplyToken(applyToken);
+        long token = applyToken;
+        CompletableFuture<ApplyResult> applyResult = stateMachine.expectResult(token);
+        node.proposeAsync(ProtostuffCodec.getInstance().encode(request))
+                .whenComplete((res, ex) -> {
+                    if (ex == null && res.getSecond() == CommitContext.CommitResult.OK) {
+                        replyApplyResult(request, token, applyResult);
+                        return;
+                    }
+                    stateMachine.cancelResult(token);
+                    if (ex != null) {
+                        log.warn("[Propose Failed] requestId {}", request.getRequestId(), ex);
+                        reply(request, ResponseCode.PROPOSE_FAILED, "Propose Failed");
+                    } else if (res.getSecond() == CommitContext.CommitResult.Timeout)
+                        reply(request, ResponseCode.PROPOSE_TIMEOUT, "Propose Timeout");
+                    else
+                        reply(request, ResponseCode.PROPOSE_FAILED, "Propose Failed");
+                });
+    }
+
+    /**
+     * 被快照覆盖的实例不会在本地apply，等待超时时结果未知
+     */
+    private void replyApplyResult(ClientRequest request, long applyToken,
+                                  CompletableFuture<ApplyResult> applyResult) {
+        applyResult.orTimeout(applyTimeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((result, ex) -> {
+                    if (ex != null) {
+                        stateMachine.cancelResult(applyToken);
+                        reply(request, ResponseCode.PROPOSE_TIMEOUT, "Apply Timeout");
+                    } else
+                        reply(request, result.isSucceeded() ? ResponseCode.PROPOSE :
+                                ResponseCode.CONDITION_FAILED, String.valueOf(result.getVersion()));
+                });
+    }
+
+    private void reply(ClientRequest request, int code, String message) {
+        Server.sendResponseToClient(request, new ClientResponse(code, message.getBytes()));
     }
 
     public void read(ClientRequest request) {
+        ReadMessage readMessage = ProtostuffCodec.getInstance().decode(request.getBody(),
+                ReadMessage.class);
+        if (!waitReadIndex()) {
+            reply(request, ResponseCode.READ_TIMEOUT, "Read Timeout");
+            return;
+        }
+        String value = stateMachine.get(readMessage.getKey());
+        if (value == null)
+            reply(request, ResponseCode.READ_NOT_FOUND, "(null)");
+        else
+            reply(request, ResponseCode.READ, value);
+    }
+
+    /**
+     * 不确认readIndex，直接读本地状态机，可能读不到其他节点刚回复的写，
+     * 但本节点回复的写都已经apply，同一个客户端在本节点写完之后一定能读到
+     */
+    public void readLocal(ClientRequest request) {
         ReadMessage readMessage = ProtostuffCodec.getInstance().decode(request.getBody(),
                 ReadMessage.class);
         String value = stateMachine.get(readMessage.getKey());
         if (value == null)
-            value = "(null)";
-        Server.sendResponseToClient(request.getRequestId(),
-                new ClientResponse(ResponseCode.READ, value.getBytes()));
+            reply(request, ResponseCode.READ_NOT_FOUND, "(null)");
+        else
+            reply(request, ResponseCode.READ, value);
+    }
+
+    public void readAll(ClientRequest request) {
+        MultiReadMessage multiReadMessage = ProtostuffCodec.getInstance().decode(
+                request.getBody(), MultiReadMessage.class);
+        Map<String, String> values = readAll(multiReadMessage.getKeys());
+        if (values == null)
+            reply(request, ResponseCode.READ_TIMEOUT, "Read Timeout");
+        else
+            Server.sendResponseToClient(request, new ClientResponse(ResponseCode.READ, values));
+    }
+
+    /**
+     * 多个key共用一次ReadIndex
+     *
+     * @return 超时时为null
+     */
+    Map<String, String> readAll(List<String> keys) {
+        if (!waitReadIndex())
+            return null;
+        return stateMachine.getAll(keys);
+    }
+
+    /**
+     * 先确认读之前可能已经被选中的实例，等状态机apply到这里再读
+     *
+     * @return 超时时返回false
+     */
+    private boolean waitReadIndex() {
+        Long readIndex = node.readIndex();
+        return readIndex != null
+                && stateMachine.waitApplied(readIndex, applyTimeoutMillis);
+    }
+
+    StateMachine getStateMachine() {
+        return stateMachine;
+    }
+
+    void setApplyTimeoutMillis(long applyTimeoutMillis) {
+        this.applyTimeoutMillis = applyTimeoutMillis;
     }
-}
\ No newline at end of file
+}
@@ -17,23 +17,27 @@ public class Server {
 
     private static volatile Server globalInstance;
 
+    /**
+     * 没有启动Server时为null，回复被丢弃，测试时可以直接设置
+     */
+    private static volatile ClientResponseSender responseSender;
+
     public Server(long id,
-                  int port,
+                  NettyServerConfig serverConfig,
                   ClientRequestProcessor requestProcessor,
                   List<PeerNode> peerNodes,
                   PeerMessageProcessor messageProcessor) {
-        NettyServerConfig serverConfig = new NettyServerConfig();
-        serverConfig.setListenPort(port);
-
         server = new NettyServer(id, serverConfig, requestProcessor);
 
 
         NettyPeerServerConfig peerServerConfig = new NettyPeerServerConfig();
-        peerServerConfig.setListenPort(port + NettyPeerServerConfig.PEER_PORT_INCREMENT);
+        peerServerConfig.setListenPort(serverConfig.getListenPort() +
+                NettyPeerServerConfig.PEER_PORT_INCREMENT);
 
         cluster = new Cluster(id, peerServerConfig,
                 new NettyPeerClientConfig(), messageProcessor, peerNodes);
         globalInstance = this;
+        responseSender = server;
     }
 
     public void start() {
@@ -46,8 +50,13 @@ public class Server {
             globalInstance.cluster.sendMessageToPeer(messages);
     }
 
-    public static void sendResponseToClient(String requestId, ClientResponse response) {
-        if (globalInstance != null)
-            globalInstance.server.sendResponseToClient(requestId, response);
+    public static void sendResponseToClient(ClientRequest request, ClientResponse response) {
+        ClientResponseSender sender = responseSender;
+        if (sender != null)
+            sender.sendResponseToClient(request, response);
+    }
+
+    static void setResponseSender(ClientResponseSender sender) {
+        responseSender = sender;
     }
 }
\ No newline at end of file
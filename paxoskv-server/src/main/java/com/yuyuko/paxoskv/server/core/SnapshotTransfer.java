@@ -0,0 +1,269 @@
+package com.yuyuko.paxoskv.server.core;
+
+import com.yuyuko.paxoskv.core.ChosenValue;
+import com.yuyuko.paxoskv.core.PaxosMessage;
+import com.yuyuko.paxoskv.core.storage.DataNotFoundException;
+import com.yuyuko.paxoskv.core.storage.Storage;
+import com.yuyuko.paxoskv.core.utils.Tuple;
+import com.yuyuko.paxoskv.core.utils.Utils;
+import com.yuyuko.paxoskv.server.statemachine.StateMachine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * 落后太多的节点通过快照追赶
+ * 1. 被询问的实例已经被compact时，Learner回复SnapshotOffer
+ * 2. 落后的节点向对方拉取快照，每个AskForSnapshot换回一个SnapshotChunk
+ * 3. 收到全部分块之后交给PaxosNode的事件循环安装，paxos从快照的下一个实例继续
+ * 发送方直接从快照文件读取分块，接收方直接写入临时文件，都在单独的线程中进行，不占用netty的io线程
+ */
+class SnapshotTransfer {
+    private static final Logger log = LoggerFactory.getLogger(SnapshotTransfer.class);
+
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * 超过这个时间没有收到分块，放弃这次传输，接受新的SnapshotOffer
+     */
+    static final long TRANSFER_TIMEOUT_MILLIS = 10000;
+
+    static final String RECEIVE_SUFFIX = ".recv";
+
+    private final long id;
+
+    private final int groupId;
+
+    private final StateMachine stateMachine;
+
+    private final Storage storage;
+
+    private final Consumer<Tuple<File, ChosenValue>> installer;
+
+    /**
+     * 所有的快照消息都在这个线程中按顺序处理
+     */
+    private final ExecutorService executor;
+
+    /**
+     * 发送方正在读取的快照文件
+     */
+    private long sendingInstanceId = -1;
+
+    private FileChannel sending;
+
+    private long sendingSize;
+
+    /**
+     * 接收方正在拉取的快照
+     */
+    private long fromNodeId;
+
+    private long receivingInstanceId = -1;
+
+    private File receivedFile;
+
+    private FileChannel receiving;
+
+    private long receivedSize;
+
+    private long lastReceiveTime;
+
+    SnapshotTransfer(long id, int groupId, StateMachine stateMachine, Storage storage,
+                     Consumer<Tuple<File, ChosenValue>> installer) {
+        this.id = id;
+        this.groupId = groupId;
+        this.stateMachine = stateMachine;
+        this.storage = storage;
+        this.installer = installer;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "SnapshotTransfer-" + groupId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        //上次宕机前没有接收完的快照
+        File[] stale = stateMachine.getSnapshotDir().listFiles((d, name) ->
+                name.endsWith(RECEIVE_SUFFIX));
+        if (stale != null)
+            for (File file : stale)
+                if (!file.delete())
+                    log.warn("[Delete Stale Snapshot Failed] {}", file);
+    }
+
+    static boolean isSnapshotMessage(PaxosMessage m) {
+        switch (m.getType()) {
+            case SnapshotOffer:
+            case AskForSnapshot:
+            case SnapshotChunk:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    void process(PaxosMessage m, long nowInstanceId) {
+        executor.execute(() -> {
+            try {
+                switch (m.getType()) {
+                    case SnapshotOffer:
+                        onSnapshotOffer(m, nowInstanceId);
+                        break;
+                    case AskForSnapshot:
+                        onAskForSnapshot(m);
+                        break;
+                    case SnapshotChunk:
+                        onSnapshotChunk(m);
+                        break;
+                }
+            } catch (IOException ex) {
+                log.error("[Snapshot Transfer Failed] message type " + m.getType(), ex);
+                if (m.getType() == PaxosMessage.PaxosMessageType.AskForSnapshot)
+                    closeSending();
+                else
+                    abortReceiving();
+            }
+        });
+    }
+
+    private void onSnapshotOffer(PaxosMessage m, long nowInstanceId) throws IOException {
+        if (m.getMinChosenInstanceId() <= nowInstanceId)
+            return;
+        if (receiving != null
+                && System.currentTimeMillis() - lastReceiveTime < TRANSFER_TIMEOUT_MILLIS)
+            return;
+        log.info("[Start Snapshot Transfer] from node {}, now instanceId {}, " +
+                "minChosenInstanceId {}", m.getNodeId(), nowInstanceId, m.getMinChosenInstanceId());
+        abortReceiving();
+        fromNodeId = m.getNodeId();
+        receivingInstanceId = -1;
+        receivedFile = File.createTempFile(StateMachine.SNAPSHOT_FILE + "-", RECEIVE_SUFFIX,
+                stateMachine.getSnapshotDir());
+        receiving = FileChannel.open(receivedFile.toPath(), StandardOpenOption.WRITE);
+        receivedSize = 0;
+        lastReceiveTime = System.currentTimeMillis();
+        askForSnapshot(0);
+    }
+
+    private void askForSnapshot(long offset) {
+        send(PaxosMessage.builder()
+                .type(PaxosMessage.PaxosMessageType.AskForSnapshot)
+                .instanceId(receivingInstanceId)
+                .nodeId(id)
+                .groupId(groupId)
+                .toNodeId(fromNodeId)
+                .snapshotOffset(offset)
+                .build());
+    }
+
+    private void onAskForSnapshot(PaxosMessage m) throws IOException {
+        long snapshotInstanceId = stateMachine.getSnapshotInstanceId();
+        if (snapshotInstanceId == -1)
+            return;
+        if (sending == null || sendingInstanceId != snapshotInstanceId) {
+            closeSending();
+            Tuple<Long, FileChannel> opened = stateMachine.openSnapshot();
+            if (opened == null)
+                return;
+            sendingInstanceId = opened.getFirst();
+            sending = opened.getSecond();
+            sendingSize = sending.size();
+        }
+        //对方拉取的快照已经被新的快照替换，从头开始
+        long offset = m.getInstanceId() == sendingInstanceId ? m.getSnapshotOffset() : 0;
+        if (offset > sendingSize)
+            return;
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, sendingSize - offset));
+        while (chunk.hasRemaining())
+            if (sending.read(chunk, offset + chunk.position()) < 0)
+                throw new IOException("unexpected end of snapshot " + sendingInstanceId);
+        long end = offset + chunk.capacity();
+        PaxosMessage.Builder builder = PaxosMessage.builder()
+                .type(PaxosMessage.PaxosMessageType.SnapshotChunk)
+                .instanceId(sendingInstanceId)
+                .nodeId(id)
+                .groupId(groupId)
+                .toNodeId(m.getNodeId())
+                .snapshotOffset(offset)
+                .snapshotSize(sendingSize)
+                .value(chunk.array());
+        //最后一个分块带上快照的最后一个实例，接收方用来重置storage
+        if (end == sendingSize) {
+            try {
+                builder.learnedValues(List.of(storage.get(sendingInstanceId)));
+            } catch (DataNotFoundException ex) {
+                log.warn("[Snapshot Instance Not Found] instanceId {}", sendingInstanceId);
+                return;
+            }
+        }
+        send(builder.build());
+    }
+
+    private void onSnapshotChunk(PaxosMessage m) throws IOException {
+        if (receiving == null || m.getNodeId() != fromNodeId)
+            return;
+        if (m.getSnapshotOffset() == 0 && m.getInstanceId() != receivingInstanceId) {
+            receivingInstanceId = m.getInstanceId();
+            receiving.truncate(0);
+            receivedSize = 0;
+        }
+        if (m.getInstanceId() != receivingInstanceId || m.getSnapshotOffset() != receivedSize)
+            return;
+        ByteBuffer chunk = ByteBuffer.wrap(m.getValue());
+        while (chunk.hasRemaining())
+            receivedSize += receiving.write(chunk, receivedSize);
+        lastReceiveTime = System.currentTimeMillis();
+        if (receivedSize < m.getSnapshotSize()) {
+            askForSnapshot(receivedSize);
+            return;
+        }
+        if (Utils.isEmpty(m.getLearnedValues()))
+            return;
+        receiving.force(true);
+        receiving.close();
+        File received = receivedFile;
+        receiving = null;
+        receivedFile = null;
+        log.info("[Snapshot Received] from node {}, instanceId {}, size {}", fromNodeId,
+                receivingInstanceId, receivedSize);
+        installer.accept(new Tuple<>(received, m.getLearnedValues().get(0)));
+    }
+
+    private void closeSending() {
+        if (sending == null)
+            return;
+        try {
+            sending.close();
+        } catch (IOException ex) {
+            log.warn("[Close Snapshot Failed] instanceId " + sendingInstanceId, ex);
+        }
+        sending = null;
+        sendingInstanceId = -1;
+    }
+
+    private void abortReceiving() {
+        if (receiving == null)
+            return;
+        try {
+            receiving.close();
+        } catch (IOException ex) {
+            log.warn("[Close Received Snapshot Failed] " + receivedFile, ex);
+        }
+        if (!receivedFile.delete())
+            log.warn("[Delete Received Snapshot Failed] {}", receivedFile);
+        receiving = null;
+        receivedFile = null;
+    }
+
+    private void send(PaxosMessage m) {
+        Server.sendMessageToPeer(List.of(m));
+    }
+}
@@ -0,0 +1,26 @@
+package com.yuyuko.paxoskv.server.statemachine;
+
+/**
+ * 状态机apply一个写请求的结果，所有节点上都相同，普通的写总是成功
+ */
+public class ApplyResult {
+    private final boolean succeeded;
+
+    private final long version;
+
+    public ApplyResult(boolean succeeded, long version) {
+        this.succeeded = succeeded;
+        this.version = version;
+    }
+
+    public boolean isSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * 成功时为写入之后的版本，失败时为key当前的版本，key不存在时为0
+     */
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,491 @@
+package com.yuyuko.paxoskv.server.statemachine;
+
+import com.yuyuko.paxoskv.core.PaxosException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 紧凑的开放寻址哈希表，key和value按utf-8字节追加到连续的页中，不为每个条目创建对象
+ * 页中的记录：[int key字节数][int value字节数][long 版本][key][value]
+ * 索引是线性探测的long[]记录地址和int[]记录hash，删除时把后面的条目前移，不留墓碑
+ * 覆盖和删除的记录留在页中，垃圾超过存活的数据时整理
+ * 写只在apply线程中，读写之间用读写锁互斥
+ * copy只复制索引，和原来的表共享页，之后原来的表不再原地修改copy时已经存在的记录(写时复制)
+ */
+public class CompactKvStore implements KvStore {
+    static final int PAGE_SIZE = 1 << 20;
+
+    private static final int RECORD_HEADER = 16;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private static final float LOAD_FACTOR = 0.7f;
+
+    /**
+     * 页是否分配在堆外
+     */
+    private final boolean offHeap;
+
+    /**
+     * copy得到的表是只读的
+     */
+    private final boolean readOnly;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private List<ByteBuffer> pages;
+
+    /**
+     * 最后一页的写入位置
+     */
+    private int pagePosition;
+
+    /**
+     * 记录的地址，(页号+1)<<32|页内偏移，0代表空槽
+     */
+    private long[] addresses;
+
+    private int[] hashes;
+
+    private int size;
+
+    private int threshold;
+
+    /**
+     * 存活的记录和被覆盖、删除的记录占用的字节数
+     */
+    private long liveBytes;
+
+    private long garbageBytes;
+
+    /**
+     * 最后一次copy时的页数和最后一页的写入位置，在这之前的记录被copy共享，不能原地覆盖
+     */
+    private int frozenPages;
+
+    private int frozenPosition;
+
+    public CompactKvStore(boolean offHeap) {
+        this(offHeap, false);
+        reset(MIN_CAPACITY);
+    }
+
+    private CompactKvStore(boolean offHeap, boolean readOnly) {
+        this.offHeap = offHeap;
+        this.readOnly = readOnly;
+    }
+
+    private void reset(int capacity) {
+        pages = new ArrayList<>();
+        pagePosition = 0;
+        addresses = new long[capacity];
+        hashes = new int[capacity];
+        threshold = (int) (capacity * LOAD_FACTOR);
+        size = 0;
+        liveBytes = 0;
+        garbageBytes = 0;
+        frozenPages = 0;
+        frozenPosition = 0;
+    }
+
+    /**
+     * Arrays.hashCode与平台无关，再打散高位，线性探测对聚集敏感
+     */
+    static int hash(byte[] key) {
+        int h = Arrays.hashCode(key);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int recordSize(int keyLength, int valueLength) {
+        return RECORD_HEADER + keyLength + valueLength;
+    }
+
+    /**
+     * @return key所在的槽，不存在时为-(插入位置)-1
+     */
+    private int find(byte[] key, int hash) {
+        int mask = addresses.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            long address = addresses[i];
+            if (address == 0)
+                return -i - 1;
+            if (hashes[i] == hash && keyEquals(address, key))
+                return i;
+        }
+    }
+
+    private static ByteBuffer page(List<ByteBuffer> pages, long address) {
+        return pages.get((int) (address >>> 32) - 1);
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private boolean keyEquals(long address, byte[] key) {
+        ByteBuffer page = page(pages, address);
+        int offset = offset(address);
+        if (page.getInt(offset) != key.length)
+            return false;
+        int keyOffset = offset + RECORD_HEADER;
+        for (int i = 0; i < key.length; i++) {
+            if (page.get(keyOffset + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * JDK 11的ByteBuffer没有绝对位置的批量读写，堆内直接复制数组
+     */
+    private static void read(ByteBuffer page, int offset, byte[] dst) {
+        if (page.hasArray()) {
+            System.arraycopy(page.array(), page.arrayOffset() + offset, dst, 0, dst.length);
+            return;
+        }
+        ByteBuffer duplicate = page.duplicate();
+        duplicate.position(offset);
+        duplicate.get(dst);
+    }
+
+    private static void write(ByteBuffer page, int offset, byte[] src) {
+        if (page.hasArray()) {
+            System.arraycopy(src, 0, page.array(), page.arrayOffset() + offset, src.length);
+            return;
+        }
+        ByteBuffer duplicate = page.duplicate();
+        duplicate.position(offset);
+        duplicate.put(src);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * 追加到最后一页，放不下时新开一页，超过页大小的记录单独占一页
+     */
+    private long append(byte[] key, byte[] value, long version) {
+        int length = recordSize(key.length, value.length);
+        ByteBuffer page = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+        if (page == null || page.capacity() - pagePosition < length) {
+            page = allocate(Math.max(PAGE_SIZE, length));
+            pages.add(page);
+            pagePosition = 0;
+        }
+        int offset = pagePosition;
+        page.putInt(offset, key.length);
+        page.putInt(offset + 4, value.length);
+        page.putLong(offset + 8, version);
+        write(page, offset + RECORD_HEADER, key);
+        write(page, offset + RECORD_HEADER + key.length, value);
+        pagePosition += length;
+        liveBytes += length;
+        return ((long) pages.size() << 32) | offset;
+    }
+
+    private String readKey(List<ByteBuffer> pages, long address) {
+        ByteBuffer page = page(pages, address);
+        byte[] key = new byte[page.getInt(offset(address))];
+        read(page, offset(address) + RECORD_HEADER, key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private byte[] readValue(List<ByteBuffer> pages, long address) {
+        ByteBuffer page = page(pages, address);
+        int offset = offset(address);
+        byte[] value = new byte[page.getInt(offset + 4)];
+        read(page, offset + RECORD_HEADER + page.getInt(offset), value);
+        return value;
+    }
+
+    private long readVersion(List<ByteBuffer> pages, long address) {
+        return page(pages, address).getLong(offset(address) + 8);
+    }
+
+    @Override
+    public String get(String key) {
+        byte[] keyBytes = bytes(key);
+        lock.readLock().lock();
+        try {
+            int slot = find(keyBytes, hash(keyBytes));
+            return slot < 0 ? null :
+                    new String(readValue(pages, addresses[slot]), StandardCharsets.UTF_8);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getVersion(String key) {
+        byte[] keyBytes = bytes(key);
+        lock.readLock().lock();
+        try {
+            int slot = find(keyBytes, hash(keyBytes));
+            return slot < 0 ? 0 : readVersion(pages, addresses[slot]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public VersionedValue getVersioned(String key) {
+        byte[] keyBytes = bytes(key);
+        lock.readLock().lock();
+        try {
+            int slot = find(keyBytes, hash(keyBytes));
+            if (slot < 0)
+                return null;
+            long address = addresses[slot];
+            return new VersionedValue(
+                    new String(readValue(pages, address), StandardCharsets.UTF_8),
+                    readVersion(pages, address));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void checkWritable() {
+        if (readOnly)
+            throw new UnsupportedOperationException("copy of compact kv store is read only");
+    }
+
+    @Override
+    public void put(String key, String value, long version) {
+        checkWritable();
+        byte[] keyBytes = bytes(key);
+        byte[] valueBytes = bytes(value);
+        int hash = hash(keyBytes);
+        lock.writeLock().lock();
+        try {
+            int slot = find(keyBytes, hash);
+            if (slot >= 0) {
+                overwrite(slot, keyBytes, valueBytes, version);
+                return;
+            }
+            if (size >= threshold) {
+                resize();
+                slot = find(keyBytes, hash);
+            }
+            slot = -slot - 1;
+            addresses[slot] = append(keyBytes, valueBytes, version);
+            hashes[slot] = hash;
+            size++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 长度相同并且没有被copy共享时原地覆盖，比如计数器，否则追加新的记录
+     */
+    private void overwrite(int slot, byte[] key, byte[] value, long version) {
+        long address = addresses[slot];
+        ByteBuffer page = page(pages, address);
+        int offset = offset(address);
+        int oldValueLength = page.getInt(offset + 4);
+        if (oldValueLength == value.length && !isFrozen(address)) {
+            page.putLong(offset + 8, version);
+            write(page, offset + RECORD_HEADER + key.length, value);
+            return;
+        }
+        discard(recordSize(key.length, oldValueLength));
+        addresses[slot] = append(key, value, version);
+        maybeCompact();
+    }
+
+    private boolean isFrozen(long address) {
+        int pageNumber = (int) (address >>> 32);
+        return pageNumber < frozenPages
+                || (pageNumber == frozenPages && offset(address) < frozenPosition);
+    }
+
+    private void discard(int recordSize) {
+        liveBytes -= recordSize;
+        garbageBytes += recordSize;
+    }
+
+    @Override
+    public boolean remove(String key) {
+        checkWritable();
+        byte[] keyBytes = bytes(key);
+        lock.writeLock().lock();
+        try {
+            int slot = find(keyBytes, hash(keyBytes));
+            if (slot < 0)
+                return false;
+            ByteBuffer page = page(pages, addresses[slot]);
+            int offset = offset(addresses[slot]);
+            discard(recordSize(page.getInt(offset), page.getInt(offset + 4)));
+            deleteSlot(slot);
+            size--;
+            maybeCompact();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 线性探测的删除，后面理想位置不在(hole,i]之间的条目前移填补空槽
+     */
+    private void deleteSlot(int slot) {
+        int mask = addresses.length - 1;
+        int hole = slot;
+        for (int i = (hole + 1) & mask; addresses[i] != 0; i = (i + 1) & mask) {
+            int ideal = hashes[i] & mask;
+            if (((i - ideal) & mask) >= ((i - hole) & mask)) {
+                addresses[hole] = addresses[i];
+                hashes[hole] = hashes[i];
+                hole = i;
+            }
+        }
+        addresses[hole] = 0;
+        hashes[hole] = 0;
+    }
+
+    private void resize() {
+        if (addresses.length >= MAX_CAPACITY)
+            throw new PaxosException("compact kv store is full, size " + size);
+        long[] oldAddresses = addresses;
+        int[] oldHashes = hashes;
+        int capacity = oldAddresses.length * 2;
+        int mask = capacity - 1;
+        addresses = new long[capacity];
+        hashes = new int[capacity];
+        threshold = (int) (capacity * LOAD_FACTOR);
+        for (int j = 0; j < oldAddresses.length; j++) {
+            if (oldAddresses[j] == 0)
+                continue;
+            int i = oldHashes[j] & mask;
+            while (addresses[i] != 0)
+                i = (i + 1) & mask;
+            addresses[i] = oldAddresses[j];
+            hashes[i] = oldHashes[j];
+        }
+    }
+
+    /**
+     * 垃圾超过存活的数据并且至少有一页时，把存活的记录复制到新的页中
+     * 旧的页不再修改，copy仍然可以读取
+     */
+    private void maybeCompact() {
+        if (garbageBytes < PAGE_SIZE || garbageBytes < liveBytes)
+            return;
+        List<ByteBuffer> oldPages = pages;
+        pages = new ArrayList<>();
+        pagePosition = 0;
+        liveBytes = 0;
+        garbageBytes = 0;
+        frozenPages = 0;
+        frozenPosition = 0;
+        for (int i = 0; i < addresses.length; i++) {
+            long address = addresses[i];
+            if (address == 0)
+                continue;
+            ByteBuffer page = page(oldPages, address);
+            byte[] key = new byte[page.getInt(offset(address))];
+            read(page, offset(address) + RECORD_HEADER, key);
+            addresses[i] = append(key, readValue(oldPages, address),
+                    readVersion(oldPages, address));
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        checkWritable();
+        lock.writeLock().lock();
+        try {
+            reset(MIN_CAPACITY);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 只复制索引数组，页和原来的表共享，不复制数据
+     * 原来的表之后只在页的末尾追加，copy时已经存在的记录不再原地覆盖，整理时换成新的页
+     */
+    @Override
+    public KvStore copy() {
+        lock.readLock().lock();
+        try {
+            CompactKvStore copy = new CompactKvStore(offHeap, true);
+            copy.pages = new ArrayList<>(pages);
+            copy.pagePosition = pagePosition;
+            copy.addresses = addresses.clone();
+            copy.hashes = hashes.clone();
+            copy.size = size;
+            copy.threshold = threshold;
+            copy.liveBytes = liveBytes;
+            copy.garbageBytes = garbageBytes;
+            //copy和写都在apply线程中，读不会用到这两个字段
+            frozenPages = pages.size();
+            frozenPosition = pagePosition;
+            return copy;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long garbageBytes() {
+        lock.readLock().lock();
+        try {
+            return garbageBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int pageCount() {
+        lock.readLock().lock();
+        try {
+            return pages.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        lock.readLock().lock();
+        try {
+            for (long address : addresses) {
+                if (address == 0)
+                    continue;
+                visitor.visit(readKey(pages, address),
+                        new String(readValue(pages, address), StandardCharsets.UTF_8),
+                        readVersion(pages, address));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
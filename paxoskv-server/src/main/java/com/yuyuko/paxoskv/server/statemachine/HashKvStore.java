@@ -0,0 +1,196 @@
+package com.yuyuko.paxoskv.server.statemachine;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 基于ConcurrentHashMap，每个条目除了两个String还有一个节点和一个VersionedValue
+ * copy不复制数据(写时复制)：之后第一次修改一个key之前，先把修改前的值记到copy中，
+ * copy在第一次被读取时(一般是快照的后台线程)再遍历当前的表补齐没有修改过的key
+ */
+public class HashKvStore implements KvStore {
+    /**
+     * copy时不存在的key
+     */
+    private static final VersionedValue ABSENT = new VersionedValue(null, 0);
+
+    private final Map<String, VersionedValue> map = new ConcurrentHashMap<>();
+
+    /**
+     * 还没有补齐的copy，写之前要把修改前的值记到其中
+     */
+    private final List<Frozen> frozen = new CopyOnWriteArrayList<>();
+
+    @Override
+    public String get(String key) {
+        VersionedValue value = map.get(key);
+        return value == null ? null : value.getValue();
+    }
+
+    @Override
+    public long getVersion(String key) {
+        VersionedValue value = map.get(key);
+        return value == null ? 0 : value.getVersion();
+    }
+
+    @Override
+    public VersionedValue getVersioned(String key) {
+        return map.get(key);
+    }
+
+    @Override
+    public void put(String key, String value, long version) {
+        preserve(key);
+        map.put(key, new VersionedValue(value, version));
+    }
+
+    @Override
+    public boolean remove(String key) {
+        preserve(key);
+        return map.remove(key) != null;
+    }
+
+    /**
+     * 只有第一次修改时记录，记录的就是copy时的值
+     */
+    private void preserve(String key) {
+        if (frozen.isEmpty())
+            return;
+        VersionedValue current = map.get(key);
+        for (Frozen copy : frozen)
+            copy.values.putIfAbsent(key, current == null ? ABSENT : current);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * 先补齐所有的copy，清空之后copy不再依赖当前的表
+     */
+    @Override
+    public void clear() {
+        for (Frozen copy : frozen)
+            copy.complete();
+        map.clear();
+    }
+
+    /**
+     * 不复制数据，只登记一个copy，不阻塞apply
+     * 返回的copy需要被读取一次，否则之后的写会一直为它记录修改前的值
+     */
+    @Override
+    public KvStore copy() {
+        Frozen copy = new Frozen(this);
+        frozen.add(copy);
+        return copy;
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        map.forEach((key, value) -> visitor.visit(key, value.getValue(), value.getVersion()));
+    }
+
+    /**
+     * copy时的数据，只读
+     */
+    private static class Frozen implements KvStore {
+        private final HashKvStore source;
+
+        /**
+         * copy时的值，ABSENT代表copy时不存在，补齐之后包含copy时所有的key
+         */
+        private final Map<String, VersionedValue> values = new ConcurrentHashMap<>();
+
+        private volatile boolean complete;
+
+        private int size;
+
+        Frozen(HashKvStore source) {
+            this.source = source;
+        }
+
+        /**
+         * 先读当前值再登记，登记成功说明在这之前这个key没有被修改过，读到的就是copy时的值
+         * 登记失败时已经有写入记录的copy时的值
+         */
+        private void complete() {
+            if (complete)
+                return;
+            synchronized (this) {
+                if (complete)
+                    return;
+                for (Map.Entry<String, VersionedValue> entry : source.map.entrySet())
+                    values.putIfAbsent(entry.getKey(), entry.getValue());
+                source.frozen.remove(this);
+                int count = 0;
+                for (VersionedValue value : values.values()) {
+                    if (value != ABSENT)
+                        count++;
+                }
+                size = count;
+                complete = true;
+            }
+        }
+
+        @Override
+        public String get(String key) {
+            VersionedValue value = getVersioned(key);
+            return value == null ? null : value.getValue();
+        }
+
+        @Override
+        public long getVersion(String key) {
+            VersionedValue value = getVersioned(key);
+            return value == null ? 0 : value.getVersion();
+        }
+
+        @Override
+        public VersionedValue getVersioned(String key) {
+            complete();
+            VersionedValue value = values.get(key);
+            return value == ABSENT ? null : value;
+        }
+
+        @Override
+        public void put(String key, String value, long version) {
+            throw new UnsupportedOperationException("copy of hash kv store is read only");
+        }
+
+        @Override
+        public boolean remove(String key) {
+            throw new UnsupportedOperationException("copy of hash kv store is read only");
+        }
+
+        @Override
+        public int size() {
+            complete();
+            return size;
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException("copy of hash kv store is read only");
+        }
+
+        @Override
+        public KvStore copy() {
+            return this;
+        }
+
+        /**
+         * 补齐之后写入的只有ABSENT，跳过即可
+         */
+        @Override
+        public void forEach(Visitor visitor) {
+            complete();
+            values.forEach((key, value) -> {
+                if (value != ABSENT)
+                    visitor.visit(key, value.getValue(), value.getVersion());
+            });
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.yuyuko.paxoskv.server.statemachine;
+
+/**
+ * 可选的状态机存储引擎，所有节点可以使用不同的引擎，快照的格式相同
+ */
+public enum KvEngine {
+    /**
+     * ConcurrentHashMap，每个条目有多个对象
+     */
+    HASH {
+        @Override
+        public KvStore newStore() {
+            return new HashKvStore();
+        }
+    },
+    /**
+     * 紧凑的开放寻址哈希表，数据在堆内的页中
+     */
+    COMPACT {
+        @Override
+        public KvStore newStore() {
+            return new CompactKvStore(false);
+        }
+    },
+    /**
+     * 和COMPACT相同，数据在堆外的DirectByteBuffer中，不占用堆也不被GC扫描
+     */
+    OFF_HEAP {
+        @Override
+        public KvStore newStore() {
+            return new CompactKvStore(true);
+        }
+    };
+
+    public abstract KvStore newStore();
+
+    /**
+     * @param name hash、compact或者off-heap
+     */
+    public static KvEngine parse(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,48 @@
+package com.yuyuko.paxoskv.server.statemachine;
+
+/**
+ * 状态机的存储引擎，保存key、value和版本
+ * 写只在apply线程中调用，读可以在处理请求的线程中和写并发
+ */
+public interface KvStore {
+    /**
+     * @return 不存在时为null
+     */
+    String get(String key);
+
+    /**
+     * @return key的版本，不存在时为0
+     */
+    long getVersion(String key);
+
+    /**
+     * 一次查找同时得到值和版本
+     *
+     * @return 不存在时为null
+     */
+    VersionedValue getVersioned(String key);
+
+    void put(String key, String value, long version);
+
+    /**
+     * @return key是否存在
+     */
+    boolean remove(String key);
+
+    int size();
+
+    void clear();
+
+    /**
+     * 得到一份之后不再变化的只读数据，快照在后台线程中遍历，不阻塞apply
+     * 在apply线程中调用，实现应该共享数据或者写时复制，不能在这里复制整个表
+     * 返回的数据至少要被读取一次(size或者forEach)
+     */
+    KvStore copy();
+
+    void forEach(Visitor visitor);
+
+    interface Visitor {
+        void visit(String key, String value, long version);
+    }
+}
@@ -0,0 +1,138 @@
+package com.yuyuko.paxoskv.server.statemachine;
+
+import com.yuyuko.paxoskv.core.PaxosException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 状态机在applyInstanceId处的快照文件，读写都是流式的，不在内存中构造整个快照
+ * 格式为 [int magic][long instanceId][long lastVersion]，之后每个key一条记录
+ * [int key字节数][key][int value字节数][value][long 版本]，最后是[int -1][int 记录数][int crc]，
+ * crc覆盖crc之前的所有内容
+ */
+public class Snapshot {
+    private static final int MAGIC = 0x504b5653;
+
+    private static final int END = -1;
+
+    private final long instanceId;
+
+    /**
+     * 最后分配的版本
+     */
+    private final long lastVersion;
+
+    private final int size;
+
+    private Snapshot(long instanceId, long lastVersion, int size) {
+        this.instanceId = instanceId;
+        this.lastVersion = lastVersion;
+        this.size = size;
+    }
+
+    /**
+     * 遍历entries写入快照，结束时flush
+     */
+    public static Snapshot write(OutputStream out, long instanceId, long lastVersion,
+                                 KvStore entries) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(out, new CRC32());
+        DataOutputStream data = new DataOutputStream(checked);
+        data.writeInt(MAGIC);
+        data.writeLong(instanceId);
+        data.writeLong(lastVersion);
+        int[] size = new int[1];
+        IOException[] error = new IOException[1];
+        entries.forEach((key, value, version) -> {
+            if (error[0] != null)
+                return;
+            try {
+                writeBytes(data, key.getBytes(StandardCharsets.UTF_8));
+                writeBytes(data, value.getBytes(StandardCharsets.UTF_8));
+                data.writeLong(version);
+                size[0]++;
+            } catch (IOException ex) {
+                error[0] = ex;
+            }
+        });
+        if (error[0] != null)
+            throw error[0];
+        data.writeInt(END);
+        data.writeInt(size[0]);
+        data.flush();
+        data.writeInt((int) checked.getChecksum().getValue());
+        data.flush();
+        return new Snapshot(instanceId, lastVersion, size[0]);
+    }
+
+    private static void writeBytes(DataOutputStream data, byte[] bytes) throws IOException {
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    /**
+     * 按顺序读出每条记录交给visitor，读完之后才校验crc，校验失败时visitor已经收到了部分记录
+     *
+     * @param visitor 为null时只校验
+     * @throws PaxosException 格式错误或者crc不匹配时
+     */
+    public static Snapshot read(InputStream in, KvStore.Visitor visitor) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+        DataInputStream data = new DataInputStream(checked);
+        try {
+            if (data.readInt() != MAGIC)
+                throw new PaxosException("not a snapshot");
+            long instanceId = data.readLong();
+            long lastVersion = data.readLong();
+            int size = 0;
+            int keyLength;
+            while ((keyLength = data.readInt()) != END) {
+                String key = readString(data, keyLength);
+                String value = readString(data, data.readInt());
+                long version = data.readLong();
+                if (visitor != null)
+                    visitor.visit(key, value, version);
+                size++;
+            }
+            if (data.readInt() != size)
+                throw new PaxosException("snapshot size mismatch");
+            int crc = (int) checked.getChecksum().getValue();
+            if (data.readInt() != crc)
+                throw new PaxosException("snapshot crc mismatch");
+            return new Snapshot(instanceId, lastVersion, size);
+        } catch (EOFException ex) {
+            throw new PaxosException("truncated snapshot");
+        }
+    }
+
+    private static String readString(DataInputStream data, int length) throws IOException {
+        if (length < 0)
+            throw new PaxosException("corrupted snapshot");
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public long getInstanceId() {
+        return instanceId;
+    }
+
+    public long getLastVersion() {
+        return lastVersion;
+    }
+
+    /**
+     * @return key的个数
+     */
+    public int getSize() {
+        return size;
+    }
+}
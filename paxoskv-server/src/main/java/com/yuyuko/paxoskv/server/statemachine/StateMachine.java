@@ -1,40 +1,435 @@
 package com.yuyuko.paxoskv.server.statemachine;
 
+import com.yuyuko.paxoskv.core.BatchValue;
+import com.yuyuko.paxoskv.core.ChosenValue;
+import com.yuyuko.paxoskv.core.PaxosException;
+import com.yuyuko.paxoskv.core.utils.Tuple;
+import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
+import com.yuyuko.paxoskv.remoting.protocol.body.ConditionalProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.MultiProposeMessage;
 import com.yuyuko.paxoskv.remoting.protocol.body.ProposeMessage;
 import com.yuyuko.paxoskv.remoting.protocol.codec.ProtostuffCodec;
 import com.yuyuko.paxoskv.remoting.server.ClientRequest;
-import com.yuyuko.paxoskv.remoting.server.ClientRequestProcessor;
 import com.yuyuko.selector.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class StateMachine {
-    private final Map<String, String> map = new ConcurrentHashMap<>();
+    private static final Logger log = LoggerFactory.getLogger(StateMachine.class);
 
-    public StateMachine(Channel<byte[]> applyChan) {
+    /**
+     * 每apply多少个实例做一次快照
+     */
+    public static final long SNAPSHOT_INTERVAL = 10000;
+
+    public static final String SNAPSHOT_FILE = "snapshot";
+
+    private final KvEngine engine;
+
+    /**
+     * 安装快照时在新的store中恢复，完成后整体替换，读不会看到清空或者只恢复了一部分的数据
+     */
+    private volatile KvStore store;
+
+    /**
+     * 一个实例中的所有写在写锁中apply，get和getAll持有读锁，
+     * 不会看到一个实例只apply了一部分的结果，比如MULTI_PROPOSE只写入了部分key
+     */
+    private final ReadWriteLock applyLock = new ReentrantReadWriteLock();
+
+    /**
+     * 最后分配的版本，每次写入加1，所有节点按相同的顺序apply，分配的版本也相同
+     */
+    private long lastVersion;
+
+    /**
+     * 本节点提议的请求的applyToken -> 等待的结果
+     */
+    private final Map<Long, CompletableFuture<ApplyResult>> resultWaiters =
+            new ConcurrentHashMap<>();
+
+    /**
+     * 快照文件的目录，没有数据目录时使用临时目录，重启后不会加载
+     */
+    private final File snapshotDir;
+
+    private long appliedInstanceId = -1;
+
+    /**
+     * 最近一次完成的快照的instanceId，没有快照时为-1
+     */
+    private volatile long snapshotInstanceId = -1;
+
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+
+    /**
+     * 后台快照和安装快照都会写快照文件
+     */
+    private final Object snapshotLock = new Object();
+
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "StateMachineSnapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public StateMachine(Channel<ChosenValue> applyChan, String dataDir, KvEngine engine) {
+        this.engine = engine;
+        this.store = engine.newStore();
+        this.snapshotDir = dataDir == null ? createTempDir() : new File(dataDir);
+        loadSnapshot();
         Thread thread = new Thread(() -> readApply(applyChan));
         thread.setName("StateMachineApplied");
         thread.start();
     }
 
-    private void readApply(Channel<byte[]> applyChan) {
+    private static File createTempDir() {
+        try {
+            File dir = Files.createTempDirectory("paxoskv-snapshot").toFile();
+            //退出时按注册的相反顺序删除，先删除快照文件再删除目录
+            dir.deleteOnExit();
+            new File(dir, SNAPSHOT_FILE).deleteOnExit();
+            return dir;
+        } catch (IOException ex) {
+            throw new PaxosException(ex);
+        }
+    }
+
+    private void loadSnapshot() {
+        Path path = new File(snapshotDir, SNAPSHOT_FILE).toPath();
+        if (!Files.exists(path))
+            return;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            Snapshot loaded = restore(in, store);
+            appliedInstanceId = loaded.getInstanceId();
+            snapshotInstanceId = loaded.getInstanceId();
+            log.info("[Load Snapshot] instanceId {}, keys {}", appliedInstanceId,
+                    loaded.getSize());
+        } catch (IOException ex) {
+            throw new PaxosException(ex);
+        }
+    }
+
+    private void readApply(Channel<ChosenValue> applyChan) {
         while (true) {
-            byte[] data = applyChan.read();
-            if(data == null)
+            ChosenValue chosenValue = applyChan.read();
+            if (chosenValue == null)
                 throw new NullPointerException();
-            ClientRequest request = ProtostuffCodec.getInstance().decode(data,
-                    ClientRequest.class);
+            synchronized (this) {
+                //安装快照之前读出来的旧值
+                if (chosenValue.getInstanceId() <= appliedInstanceId)
+                    continue;
+                //一个实例的值是打包后的多个请求
+                applyLock.writeLock().lock();
+                try {
+                    for (byte[] value : BatchValue.decode(chosenValue.getAcceptedValue()))
+                        apply(value);
+                } finally {
+                    applyLock.writeLock().unlock();
+                }
+                appliedInstanceId = chosenValue.getInstanceId();
+                notifyAll();
+                if (appliedInstanceId - getSnapshotInstanceId() >= SNAPSHOT_INTERVAL)
+                    takeSnapshot();
+            }
+        }
+    }
+
+    private void apply(byte[] value) {
+        ClientRequest request = ProtostuffCodec.getInstance().decode(value,
+                ClientRequest.class);
+        ApplyResult result;
+        if (RequestCode.isConditional(request.getCode())) {
+            result = applyConditional(request.getCode(),
+                    ProtostuffCodec.getInstance().decode(request.getBody(),
+                            ConditionalProposeMessage.class));
+        } else if (request.getCode() == RequestCode.MULTI_PROPOSE) {
+            MultiProposeMessage multiProposeMessage =
+                    ProtostuffCodec.getInstance().decode(request.getBody(),
+                            MultiProposeMessage.class);
+            List<String> keys = multiProposeMessage.getKeys();
+            List<String> values = multiProposeMessage.getValues();
+            for (int i = 0; i < keys.size(); i++)
+                put(keys.get(i), values.get(i));
+            result = new ApplyResult(true, lastVersion);
+        } else {
             ProposeMessage proposeMessage =
                     ProtostuffCodec.getInstance().decode(request.getBody()
                             , ProposeMessage.class);
-            map.put(proposeMessage.getKey(), proposeMessage.getValue());
+            result = new ApplyResult(true, put(proposeMessage.getKey(),
+                    proposeMessage.getValue()));
+        }
+        //其他节点提议的请求没有等待者
+        if (request.getApplyToken() != 0) {
+            CompletableFuture<ApplyResult> waiter = resultWaiters.remove(request.getApplyToken());
+            if (waiter != null)
+                waiter.complete(result);
+        }
+    }
+
+    /**
+     * @return 写入之后的版本
+     */
+    private long put(String key, String value) {
+        store.put(key, value, ++lastVersion);
+        return lastVersion;
+    }
+
+    /**
+     * 只依赖当前的数据判断条件，所有节点得到相同的结果
+     */
+    private ApplyResult applyConditional(int code, ConditionalProposeMessage message) {
+        VersionedValue current = store.getVersioned(message.getKey());
+        String currentValue = current == null ? null : current.getValue();
+        long currentVersion = current == null ? 0 : current.getVersion();
+        boolean matched;
+        switch (code) {
+            case RequestCode.PUT_IF_ABSENT:
+                matched = currentValue == null;
+                break;
+            case RequestCode.COMPARE_AND_SET:
+                matched = Objects.equals(currentValue, message.getExpectedValue());
+                break;
+            case RequestCode.PUT_IF_VERSION:
+                matched = currentVersion == message.getExpectedVersion();
+                break;
+            default:
+                matched = currentValue != null
+                        && (message.getExpectedVersion() == ConditionalProposeMessage.ANY_VERSION
+                        || currentVersion == message.getExpectedVersion());
+        }
+        if (!matched)
+            return new ApplyResult(false, currentVersion);
+        if (code == RequestCode.DELETE) {
+            store.remove(message.getKey());
+            return new ApplyResult(true, 0);
+        }
+        return new ApplyResult(true, put(message.getKey(), message.getValue()));
+    }
+
+    /**
+     * 在提议之前登记，apply到带有这个applyToken的请求时完成
+     */
+    public CompletableFuture<ApplyResult> expectResult(long applyToken) {
+        CompletableFuture<ApplyResult> result = new CompletableFuture<>();
+        resultWaiters.put(applyToken, result);
+        return result;
+    }
+
+    /**
+     * 提议失败或者不再等待结果时取消登记
+     */
+    public void cancelResult(long applyToken) {
+        resultWaiters.remove(applyToken);
+    }
+
+    /**
+     * @return 还在等待apply结果的请求数
+     */
+    public int waitingResults() {
+        return resultWaiters.size();
+    }
+
+    /**
+     * 在apply线程得到只读的数据保证一致，编码和写文件放到后台线程，不阻塞apply
+     */
+    private void takeSnapshot() {
+        if (!snapshotting.compareAndSet(false, true))
+            return;
+        long instanceId = appliedInstanceId;
+        long snapshotLastVersion = lastVersion;
+        KvStore copy = store.copy();
+        snapshotExecutor.execute(() -> {
+            try {
+                writeSnapshot(instanceId, snapshotLastVersion, copy);
+            } catch (IOException ex) {
+                log.error("[Take Snapshot Failed] instanceId " + instanceId, ex);
+            } finally {
+                //写文件失败时copy可能没有被读取过，HashKvStore会一直为它记录修改前的值
+                copy.size();
+                snapshotting.set(false);
+            }
+        });
+    }
+
+    /**
+     * 在锁外把记录流式写入临时文件，在锁内替换快照文件
+     */
+    private void writeSnapshot(long instanceId, long snapshotLastVersion, KvStore entries)
+            throws IOException {
+        Path tmp = new File(snapshotDir, SNAPSHOT_FILE + ".tmp").toPath();
+        Snapshot newSnapshot;
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+            newSnapshot = Snapshot.write(new BufferedOutputStream(out), instanceId,
+                    snapshotLastVersion, entries);
+            out.getChannel().force(true);
+        }
+        synchronized (snapshotLock) {
+            //期间安装了更新的快照
+            if (instanceId <= getSnapshotInstanceId()) {
+                Files.deleteIfExists(tmp);
+                return;
+            }
+            Files.move(tmp, new File(snapshotDir, SNAPSHOT_FILE).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            snapshotInstanceId = instanceId;
+        }
+        log.info("[Take Snapshot] instanceId {}, keys {}", instanceId, newSnapshot.getSize());
+    }
+
+    /**
+     * 把快照中的记录逐条写入target
+     */
+    private Snapshot restore(InputStream in, KvStore target) throws IOException {
+        Snapshot loaded = Snapshot.read(in, target::put);
+        lastVersion = loaded.getLastVersion();
+        return loaded;
+    }
+
+    /**
+     * 用其他节点传过来的快照文件替换当前的数据，先完整校验一遍再移动到快照文件的位置，
+     * 然后从快照文件逐条读入新的store，读入完成前get仍然读旧的store
+     *
+     * @param received   接收完并且已经落盘的快照文件
+     * @param instanceId 快照的instanceId
+     */
+    public synchronized void installSnapshot(File received, long instanceId) {
+        Snapshot installed;
+        try {
+            Snapshot verified;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(received))) {
+                verified = Snapshot.read(in, null);
+            }
+            if (verified.getInstanceId() != instanceId)
+                throw new PaxosException("snapshot instanceId " + verified.getInstanceId()
+                        + " != " + instanceId);
+            InputStream in;
+            synchronized (snapshotLock) {
+                File snapshotFile = new File(snapshotDir, SNAPSHOT_FILE);
+                Files.move(received.toPath(), snapshotFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                snapshotInstanceId = instanceId;
+                //之后的快照通过rename替换文件，已经打开的不受影响
+                in = new BufferedInputStream(new FileInputStream(snapshotFile));
+            }
+            KvStore restored = engine.newStore();
+            try (InputStream snapshotIn = in) {
+                installed = restore(snapshotIn, restored);
+            }
+            store = restored;
+        } catch (IOException ex) {
+            throw new PaxosException(ex);
+        }
+        appliedInstanceId = instanceId;
+        notifyAll();
+        log.info("[Install Snapshot] instanceId {}, keys {}", appliedInstanceId,
+                installed.getSize());
+    }
+
+    /**
+     * 打开最近一次快照的文件，之后的快照通过rename替换文件，已经打开的不受影响
+     *
+     * @return instanceId, 只读的文件，没有快照时为null
+     */
+    public Tuple<Long, FileChannel> openSnapshot() throws IOException {
+        synchronized (snapshotLock) {
+            if (snapshotInstanceId == -1)
+                return null;
+            return new Tuple<>(snapshotInstanceId,
+                    FileChannel.open(new File(snapshotDir, SNAPSHOT_FILE).toPath(),
+                            StandardOpenOption.READ));
         }
     }
 
+    /**
+     * 接收快照时临时文件放在同一个目录，安装时rename
+     */
+    public File getSnapshotDir() {
+        return snapshotDir;
+    }
+
+    /**
+     * 等待状态机apply到instanceId，线性一致读在读之前调用
+     *
+     * @return 超时时返回false
+     */
+    public synchronized boolean waitApplied(long instanceId, long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (appliedInstanceId < instanceId) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return false;
+            try {
+                wait(remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 最近一次快照的instanceId，没有快照时为-1
+     */
+    public long getSnapshotInstanceId() {
+        return snapshotInstanceId;
+    }
+
+    /**
+     * 和apply互斥，读到一个实例中的写时，这个实例中的其他写也都已经可见
+     */
     public String get(String key) {
-        return map.get(key);
+        applyLock.readLock().lock();
+        try {
+            return store.get(key);
+        } finally {
+            applyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 和apply互斥，不会看到一个实例只apply了一部分的结果
+     *
+     * @return 不存在的key不在结果中
+     */
+    public Map<String, String> getAll(List<String> keys) {
+        applyLock.readLock().lock();
+        try {
+            KvStore current = store;
+            Map<String, String> values = new LinkedHashMap<>();
+            for (String key : keys) {
+                String value = current.get(key);
+                if (value != null)
+                    values.put(key, value);
+            }
+            return values;
+        } finally {
+            applyLock.readLock().unlock();
+        }
     }
 }
@@ -0,0 +1,23 @@
+package com.yuyuko.paxoskv.server.statemachine;
+
+/**
+ * 值和最后一次写入时分配的版本，不可变
+ */
+public class VersionedValue {
+    private final String value;
+
+    private final long version;
+
+    public VersionedValue(String value, long version) {
+        this.value = value;
+        this.version = version;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,158 @@
+package com.yuyuko.paxoskv.server.core;
+
+import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
+import com.yuyuko.paxoskv.remoting.protocol.ResponseCode;
+import com.yuyuko.paxoskv.remoting.protocol.body.MultiProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.MultiReadMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.ReadMessage;
+import com.yuyuko.paxoskv.remoting.server.ClientRequest;
+import com.yuyuko.paxoskv.remoting.server.ClientRequestDecoder;
+import com.yuyuko.paxoskv.remoting.server.ClientRequestProcessor;
+import com.yuyuko.paxoskv.remoting.server.ClientResponse;
+import com.yuyuko.paxoskv.server.statemachine.KvEngine;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 单节点的集群，每个group自己就是多数派，请求在进程内处理，回复直接交给测试
+ */
+class PaxosGroupsTest {
+    private static final int GROUP_COUNT = 4;
+
+    private static final Map<ClientRequest, CompletableFuture<ClientResponse>> responses =
+            new ConcurrentHashMap<>();
+
+    private static ClientRequestProcessor groups;
+
+    @BeforeAll
+    static void start() {
+        Server.setResponseSender((request, response) -> responses.get(request).complete(response));
+        groups = PaxosGroups.newPaxosGroups(1, List.of(1L), GROUP_COUNT, null,
+                KvEngine.HASH).getSecond();
+    }
+
+    @AfterAll
+    static void stop() {
+        Server.setResponseSender(null);
+    }
+
+    static ClientResponse call(ClientRequestProcessor processor, ClientRequest request)
+            throws Exception {
+        CompletableFuture<ClientResponse> response = new CompletableFuture<>();
+        responses.put(request, response);
+        processor.processRequest(request);
+        return response.get(10, TimeUnit.SECONDS);
+    }
+
+    private static ClientResponse multiPut(List<String> keys, List<String> values)
+            throws Exception {
+        return call(groups, ClientRequestDecoder.newRequest(RequestCode.MULTI_PROPOSE,
+                new MultiProposeMessage(keys, values)));
+    }
+
+    private static ClientResponse multiGet(ClientRequestProcessor processor, List<String> keys)
+            throws Exception {
+        return call(processor, ClientRequestDecoder.newRequest(RequestCode.MULTI_READ,
+                new MultiReadMessage(keys)));
+    }
+
+    /**
+     * @return 分到groupId的第一个prefix+数字
+     */
+    private static String keyInGroup(String prefix, int groupId) {
+        for (int i = 0; ; i++) {
+            if (PaxosGroups.groupOf(prefix + i, GROUP_COUNT) == groupId)
+                return prefix + i;
+        }
+    }
+
+    @Test
+    void groupOfTag() {
+        int group = PaxosGroups.groupOf("user42", GROUP_COUNT);
+        assertEquals(group, PaxosGroups.groupOf("{user42}.name", GROUP_COUNT));
+        assertEquals(group, PaxosGroups.groupOf("order:{user42}:1", GROUP_COUNT));
+        //只按第一个tag计算
+        assertEquals(group, PaxosGroups.groupOf("{user42}{other}", GROUP_COUNT));
+        //空的tag和没有闭合的{按整个key计算
+        assertEquals(Math.floorMod("{}x".hashCode(), GROUP_COUNT),
+                PaxosGroups.groupOf("{}x", GROUP_COUNT));
+        assertEquals(Math.floorMod("a{b".hashCode(), GROUP_COUNT),
+                PaxosGroups.groupOf("a{b", GROUP_COUNT));
+        //hash为负数时也在[0, groupCount)中
+        for (int i = 0; i < 1000; i++) {
+            int g = PaxosGroups.groupOf("k" + i, GROUP_COUNT);
+            assertTrue(g >= 0 && g < GROUP_COUNT);
+        }
+    }
+
+    @Test
+    void crossGroupMultiProposeRejected() throws Exception {
+        String k0 = keyInGroup("cross", 0);
+        String k1 = keyInGroup("cross", 1);
+        ClientResponse response = multiPut(List.of(k0, k1), List.of("0", "1"));
+        assertEquals(ResponseCode.CROSS_GROUP, response.getCode());
+        //没有写入任何一个key
+        assertEquals(Map.of(), multiGet(groups, List.of(k0, k1)).getValues());
+    }
+
+    @Test
+    void taggedMultiProposeInOneGroup() throws Exception {
+        List<String> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            keys.add("{cart7}.item" + i);
+            values.add("v" + i);
+        }
+        assertEquals(ResponseCode.PROPOSE, multiPut(keys, values).getCode());
+        Map<String, String> read = multiGet(groups, keys).getValues();
+        assertEquals(keys, new ArrayList<>(read.keySet()));
+        assertEquals(values, new ArrayList<>(read.values()));
+    }
+
+    /**
+     * 跨group的MGET按请求中key的顺序合并，不存在的key不在结果中
+     */
+    @Test
+    void crossGroupMultiReadInRequestOrder() throws Exception {
+        List<String> keys = new ArrayList<>();
+        for (int groupId = GROUP_COUNT - 1; groupId >= 0; groupId--) {
+            String key = keyInGroup("merge" + groupId + "-", groupId);
+            assertEquals(ResponseCode.PROPOSE,
+                    multiPut(List.of(key), List.of("v" + groupId)).getCode());
+            keys.add(key);
+        }
+        keys.add(2, keyInGroup("missing", 1));
+        ClientResponse response = multiGet(groups, keys);
+        assertEquals(ResponseCode.READ, response.getCode());
+        List<String> expected = new ArrayList<>(keys);
+        expected.remove(2);
+        assertEquals(expected, new ArrayList<>(response.getValues().keySet()));
+        assertEquals(List.of("v3", "v2", "v1", "v0"),
+                new ArrayList<>(response.getValues().values()));
+    }
+
+    /**
+     * 另外两个节点不存在，ReadIndex得不到多数派的回复
+     */
+    @Test
+    void readTimeoutWithoutQuorum() throws Exception {
+        ClientRequestProcessor isolated = PaxosGroups.newPaxosGroups(1, List.of(1L, 2L, 3L),
+                2, null, KvEngine.HASH).getSecond();
+        String k0 = keyInGroup("timeout", 0);
+        String k1 = keyInGroup("timeout", 1);
+        assertEquals(ResponseCode.READ_TIMEOUT, multiGet(isolated, List.of(k0, k1)).getCode());
+        assertEquals(ResponseCode.READ_TIMEOUT, multiGet(isolated, List.of(k0)).getCode());
+        assertEquals(ResponseCode.READ_TIMEOUT, call(isolated,
+                ClientRequestDecoder.newRequest(RequestCode.READ, new ReadMessage(k0))).getCode());
+    }
+}
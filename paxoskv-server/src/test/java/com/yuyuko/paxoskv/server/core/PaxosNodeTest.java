@@ -0,0 +1,115 @@
+package com.yuyuko.paxoskv.server.core;
+
+import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
+import com.yuyuko.paxoskv.remoting.protocol.ResponseCode;
+import com.yuyuko.paxoskv.remoting.protocol.body.ProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.ReadMessage;
+import com.yuyuko.paxoskv.remoting.server.ClientRequest;
+import com.yuyuko.paxoskv.remoting.server.ClientRequestDecoder;
+import com.yuyuko.paxoskv.remoting.server.ClientResponse;
+import com.yuyuko.paxoskv.server.statemachine.KvEngine;
+import com.yuyuko.paxoskv.server.statemachine.StateMachine;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 单节点的group，提议之后等本地状态机apply完再回复
+ * 测试持有状态机的锁时apply线程停在下一个实例之前
+ */
+class PaxosNodeTest {
+    private static final Map<ClientRequest, CompletableFuture<ClientResponse>> responses =
+            new ConcurrentHashMap<>();
+
+    @BeforeAll
+    static void start() {
+        Server.setResponseSender((request, response) -> responses.get(request).complete(response));
+    }
+
+    @AfterAll
+    static void stop() {
+        Server.setResponseSender(null);
+    }
+
+    private static PaxosNode newNode() {
+        return PaxosNode.newGroup(1, 0, List.of(1L), null, KvEngine.HASH);
+    }
+
+    private static CompletableFuture<ClientResponse> send(PaxosNode node, ClientRequest request) {
+        CompletableFuture<ClientResponse> response = new CompletableFuture<>();
+        responses.put(request, response);
+        node.processRequest(request);
+        return response;
+    }
+
+    private static CompletableFuture<ClientResponse> put(PaxosNode node, String key,
+                                                         String value) {
+        return send(node, ClientRequestDecoder.newRequest(RequestCode.PROPOSE,
+                new ProposeMessage(key, value)));
+    }
+
+    private static ClientResponse localRead(PaxosNode node, String key) throws Exception {
+        return send(node, ClientRequestDecoder.newRequest(RequestCode.LOCAL_READ,
+                new ReadMessage(key))).get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void replyWaitsForApply() throws Exception {
+        PaxosNode node = newNode();
+        StateMachine stateMachine = node.getStateMachine();
+        CompletableFuture<ClientResponse> response;
+        synchronized (stateMachine) {
+            response = put(node, "k", "v");
+            TimeUnit.MILLISECONDS.sleep(500);
+            assertFalse(response.isDone());
+            assertNull(stateMachine.get("k"));
+        }
+        ClientResponse reply = response.get(10, TimeUnit.SECONDS);
+        assertEquals(ResponseCode.PROPOSE, reply.getCode());
+        //回复中是写入之后的版本
+        assertEquals("1", new String(reply.getBody()));
+        assertEquals(0, stateMachine.waitingResults());
+    }
+
+    /**
+     * 超时之后回复PROPOSE_TIMEOUT并且取消登记，之后apply不再完成它
+     */
+    @Test
+    void applyTimeoutCancelsWaiter() throws Exception {
+        PaxosNode node = newNode();
+        node.setApplyTimeoutMillis(200);
+        StateMachine stateMachine = node.getStateMachine();
+        synchronized (stateMachine) {
+            ClientResponse reply = put(node, "k", "v").get(10, TimeUnit.SECONDS);
+            assertEquals(ResponseCode.PROPOSE_TIMEOUT, reply.getCode());
+            assertEquals(0, stateMachine.waitingResults());
+        }
+        //值已经被选中，之后仍然会apply
+        assertTrue(stateMachine.waitApplied(0, 5000));
+        assertEquals("v", stateMachine.get("k"));
+    }
+
+    /**
+     * 回复时本地已经apply，紧接着的本地读一定能读到
+     */
+    @Test
+    void localReadAfterPut() throws Exception {
+        PaxosNode node = newNode();
+        for (int i = 0; i < 200; i++) {
+            assertEquals(ResponseCode.PROPOSE,
+                    put(node, "k", String.valueOf(i)).get(10, TimeUnit.SECONDS).getCode());
+            ClientResponse read = localRead(node, "k");
+            assertEquals(ResponseCode.READ, read.getCode());
+            assertEquals(String.valueOf(i), new String(read.getBody()));
+        }
+        assertEquals(ResponseCode.READ_NOT_FOUND, localRead(node, "missing").getCode());
+    }
+}
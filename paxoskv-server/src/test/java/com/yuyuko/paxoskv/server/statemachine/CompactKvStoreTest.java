@@ -0,0 +1,193 @@
+package com.yuyuko.paxoskv.server.statemachine;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompactKvStoreTest {
+
+    static Stream<Boolean> offHeapGenerator() {
+        return Stream.of(false, true);
+    }
+
+    @ParameterizedTest
+    @MethodSource("offHeapGenerator")
+    void putGet(boolean offHeap) {
+        CompactKvStore store = new CompactKvStore(offHeap);
+        assertNull(store.get("a"));
+        assertNull(store.getVersioned("a"));
+        assertEquals(0, store.getVersion("a"));
+        store.put("a", "1", 1);
+        store.put("中文", "值", 2);
+        assertEquals("1", store.get("a"));
+        assertEquals("值", store.get("中文"));
+        VersionedValue versioned = store.getVersioned("中文");
+        assertEquals("值", versioned.getValue());
+        assertEquals(2, versioned.getVersion());
+        assertEquals(2, store.size());
+    }
+
+    /**
+     * 容量16时理想位置都是15的key依次放在15、0、1，删除后后面的条目要前移
+     */
+    @ParameterizedTest
+    @MethodSource("offHeapGenerator")
+    void removeWrapAround(boolean offHeap) {
+        CompactKvStore store = new CompactKvStore(offHeap);
+        List<String> keys = keysWithSlot(15, 3);
+        String other = keysWithSlot(0, 1).get(0);
+        for (String key : keys)
+            store.put(key, key, 1);
+        store.put(other, other, 1);
+
+        assertTrue(store.remove(keys.get(0)));
+        assertFalse(store.remove(keys.get(0)));
+        assertNull(store.get(keys.get(0)));
+        assertEquals(keys.get(1), store.get(keys.get(1)));
+        assertEquals(keys.get(2), store.get(keys.get(2)));
+        assertEquals(other, store.get(other));
+
+        assertTrue(store.remove(keys.get(1)));
+        assertEquals(keys.get(2), store.get(keys.get(2)));
+        assertEquals(other, store.get(other));
+        assertEquals(2, store.size());
+    }
+
+    private static List<String> keysWithSlot(int slot, int count) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; keys.size() < count; i++) {
+            String key = "key" + i;
+            if ((CompactKvStore.hash(key.getBytes(StandardCharsets.UTF_8)) & 15) == slot)
+                keys.add(key);
+        }
+        return keys;
+    }
+
+    @ParameterizedTest
+    @MethodSource("offHeapGenerator")
+    void resize(boolean offHeap) {
+        CompactKvStore store = new CompactKvStore(offHeap);
+        for (int i = 0; i < 10000; i++)
+            store.put("key" + i, "value" + i, i);
+        for (int i = 0; i < 10000; i += 2)
+            assertTrue(store.remove("key" + i));
+        assertEquals(5000, store.size());
+        for (int i = 0; i < 10000; i++)
+            assertEquals(i % 2 == 0 ? null : "value" + i, store.get("key" + i));
+    }
+
+    @ParameterizedTest
+    @MethodSource("offHeapGenerator")
+    void overwrite(boolean offHeap) {
+        CompactKvStore store = new CompactKvStore(offHeap);
+        store.put("counter", "0001", 1);
+        store.put("counter", "0002", 2);
+        //长度相同原地覆盖
+        assertEquals(0, store.garbageBytes());
+        assertEquals("0002", store.get("counter"));
+        assertEquals(2, store.getVersion("counter"));
+
+        store.put("counter", "00003", 3);
+        assertTrue(store.garbageBytes() > 0);
+        assertEquals("00003", store.get("counter"));
+        assertEquals(3, store.getVersion("counter"));
+    }
+
+    @ParameterizedTest
+    @MethodSource("offHeapGenerator")
+    void compactAfterChurn(boolean offHeap) {
+        CompactKvStore store = new CompactKvStore(offHeap);
+        Map<String, String> expected = new HashMap<>();
+        for (int round = 0; round < 50; round++) {
+            //长度交替变化，每次都追加新的记录
+            String value = "v".repeat(1000 + round % 2) + round;
+            for (int i = 0; i < 100; i++) {
+                store.put("key" + i, value, round);
+                expected.put("key" + i, value);
+            }
+        }
+        assertTrue(store.garbageBytes() < CompactKvStore.PAGE_SIZE);
+        assertTrue(store.pageCount() <= 2);
+        expected.forEach((key, value) -> assertEquals(value, store.get(key)));
+        assertEquals(49, store.getVersion("key0"));
+    }
+
+    @ParameterizedTest
+    @MethodSource("offHeapGenerator")
+    void largeRecord(boolean offHeap) {
+        CompactKvStore store = new CompactKvStore(offHeap);
+        String large = "x".repeat(CompactKvStore.PAGE_SIZE * 2);
+        store.put("small", "1", 1);
+        store.put("large", large, 2);
+        store.put("after", "2", 3);
+        assertEquals(large, store.get("large"));
+        assertEquals("1", store.get("small"));
+        assertEquals("2", store.get("after"));
+
+        store.put("large", "y", 4);
+        assertEquals("y", store.get("large"));
+        assertEquals(3, store.size());
+    }
+
+    @ParameterizedTest
+    @MethodSource("offHeapGenerator")
+    void copyIndependent(boolean offHeap) {
+        CompactKvStore store = new CompactKvStore(offHeap);
+        for (int i = 0; i < 100; i++)
+            store.put("key" + i, "000" + i % 10, i);
+        KvStore copy = store.copy();
+
+        //copy之前的记录不能原地覆盖
+        store.put("key0", "1110", 100);
+        store.put("new", "value", 101);
+        store.remove("key1");
+        //之后追加的记录可以原地覆盖
+        store.put("new", "VALUE", 102);
+        assertEquals("1110", store.get("key0"));
+        assertEquals("VALUE", store.get("new"));
+
+        assertEquals("0000", copy.get("key0"));
+        assertEquals(0, copy.getVersion("key0"));
+        assertEquals("0001", copy.get("key1"));
+        assertNull(copy.get("new"));
+        assertEquals(100, copy.size());
+
+        //原来的表整理之后copy仍然可以读取
+        String value = "v".repeat(10000);
+        for (int round = 0; round < 300; round++)
+            store.put("key2", value + round, round);
+        assertTrue(store.pageCount() <= 2);
+        assertEquals("0002", copy.get("key2"));
+
+        Map<String, String> visited = new HashMap<>();
+        copy.forEach((key, v, version) -> visited.put(key, v));
+        assertEquals(100, visited.size());
+        assertEquals("0009", visited.get("key99"));
+
+        assertThrows(UnsupportedOperationException.class, () -> copy.put("a", "b", 1));
+        assertThrows(UnsupportedOperationException.class, () -> copy.remove("key0"));
+        assertThrows(UnsupportedOperationException.class, copy::clear);
+    }
+
+    @ParameterizedTest
+    @MethodSource("offHeapGenerator")
+    void clear(boolean offHeap) {
+        CompactKvStore store = new CompactKvStore(offHeap);
+        store.put("a", "1", 1);
+        KvStore copy = store.copy();
+        store.clear();
+        assertEquals(0, store.size());
+        assertNull(store.get("a"));
+        store.put("a", "2", 2);
+        assertEquals("2", store.get("a"));
+        assertEquals("1", copy.get("a"));
+    }
+}
@@ -0,0 +1,97 @@
+package com.yuyuko.paxoskv.server.statemachine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashKvStoreTest {
+    private static Map<String, String> toMap(KvStore store) {
+        Map<String, String> map = new HashMap<>();
+        store.forEach((key, value, version) -> map.put(key, value + "@" + version));
+        return map;
+    }
+
+    /**
+     * copy之后的覆盖、删除、新增都不影响copy
+     */
+    @Test
+    void copyUnaffectedByLaterWrites() {
+        HashKvStore store = new HashKvStore();
+        store.put("a", "1", 1);
+        store.put("b", "2", 2);
+        store.put("c", "3", 3);
+        KvStore copy = store.copy();
+        store.put("a", "11", 4);
+        store.put("a", "111", 5);
+        store.remove("b");
+        store.put("d", "4", 6);
+        store.remove("d");
+        store.put("e", "5", 7);
+
+        assertEquals(Map.of("a", "1@1", "b", "2@2", "c", "3@3"), toMap(copy));
+        assertEquals(3, copy.size());
+        assertEquals("1", copy.get("a"));
+        assertEquals(2, copy.getVersion("b"));
+        assertNull(copy.getVersioned("d"));
+        assertNull(copy.get("e"));
+        assertEquals(0, copy.getVersion("e"));
+        assertEquals(Map.of("a", "111@5", "c", "3@3", "e", "5@7"), toMap(store));
+        //读取过的copy之后不再受影响
+        store.put("c", "33", 8);
+        assertEquals("3", copy.get("c"));
+    }
+
+    @Test
+    void copyUnaffectedByClear() {
+        HashKvStore store = new HashKvStore();
+        store.put("a", "1", 1);
+        KvStore first = store.copy();
+        store.put("a", "2", 2);
+        KvStore second = store.copy();
+        store.clear();
+        store.put("b", "3", 3);
+        assertEquals(Map.of("a", "1@1"), toMap(first));
+        assertEquals(Map.of("a", "2@2"), toMap(second));
+        assertEquals(Map.of("b", "3@3"), toMap(store));
+    }
+
+    @Test
+    void copyIsReadOnly() {
+        HashKvStore store = new HashKvStore();
+        KvStore copy = store.copy();
+        assertThrows(UnsupportedOperationException.class, () -> copy.put("a", "1", 1));
+        assertThrows(UnsupportedOperationException.class, () -> copy.remove("a"));
+        assertThrows(UnsupportedOperationException.class, copy::clear);
+        assertSame(copy, copy.copy());
+    }
+
+    /**
+     * 写线程一直修改时另一个线程遍历copy，得到的正好是copy时的数据
+     */
+    @Test
+    void concurrentReadOfCopy() throws Exception {
+        HashKvStore store = new HashKvStore();
+        for (int i = 0; i < 100000; i++)
+            store.put("key" + i, "v" + i, i + 1);
+        Map<String, String> expected = toMap(store);
+        KvStore copy = store.copy();
+        AtomicReference<Map<String, String>> read = new AtomicReference<>();
+        Thread reader = new Thread(() -> read.set(toMap(copy)));
+        reader.start();
+        long version = 100000;
+        for (int i = 0; reader.isAlive() || i < 100000; i++) {
+            int k = i % 150000;
+            if (i % 3 == 0)
+                store.remove("key" + k);
+            else
+                store.put("key" + k, "w" + i, ++version);
+        }
+        reader.join();
+        assertEquals(expected, read.get());
+        assertEquals(expected.size(), copy.size());
+    }
+}
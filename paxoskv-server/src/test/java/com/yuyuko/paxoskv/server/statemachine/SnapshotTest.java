@@ -0,0 +1,55 @@
+package com.yuyuko.paxoskv.server.statemachine;
+
+import com.yuyuko.paxoskv.core.PaxosException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotTest {
+
+    @Test
+    void writeRead() throws IOException {
+        KvStore store = new CompactKvStore(false);
+        for (int i = 0; i < 1000; i++)
+            store.put("key" + i, "值" + i, i + 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Snapshot written = Snapshot.write(out, 99, 1000, store.copy());
+        assertEquals(1000, written.getSize());
+
+        KvStore restored = new HashKvStore();
+        Snapshot read = Snapshot.read(new ByteArrayInputStream(out.toByteArray()),
+                restored::put);
+        assertEquals(99, read.getInstanceId());
+        assertEquals(1000, read.getLastVersion());
+        assertEquals(1000, read.getSize());
+        assertEquals(1000, restored.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("值" + i, restored.get("key" + i));
+            assertEquals(i + 1, restored.getVersion("key" + i));
+        }
+    }
+
+    @Test
+    void corrupted() throws IOException {
+        KvStore store = new HashKvStore();
+        store.put("a", "1", 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Snapshot.write(out, 1, 1, store);
+        byte[] bytes = out.toByteArray();
+
+        byte[] flipped = bytes.clone();
+        //最后一条记录的版本
+        flipped[flipped.length - 13] ^= 1;
+        assertThrows(PaxosException.class,
+                () -> Snapshot.read(new ByteArrayInputStream(flipped), null));
+
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 1);
+        assertThrows(PaxosException.class,
+                () -> Snapshot.read(new ByteArrayInputStream(truncated), null));
+    }
+}
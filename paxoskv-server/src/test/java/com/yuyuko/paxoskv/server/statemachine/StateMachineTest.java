@@ -0,0 +1,277 @@
+package com.yuyuko.paxoskv.server.statemachine;
+
+import com.yuyuko.paxoskv.core.BatchValue;
+import com.yuyuko.paxoskv.core.ChosenValue;
+import com.yuyuko.paxoskv.remoting.protocol.RequestCode;
+import com.yuyuko.paxoskv.remoting.protocol.body.ConditionalProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.MultiProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.body.ProposeMessage;
+import com.yuyuko.paxoskv.remoting.protocol.codec.ProtostuffCodec;
+import com.yuyuko.paxoskv.remoting.server.ClientRequest;
+import com.yuyuko.paxoskv.remoting.server.ClientRequestDecoder;
+import com.yuyuko.selector.Channel;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StateMachineTest {
+    @TempDir
+    Path dir;
+
+    private final Channel<ChosenValue> applyChan = new Channel<>();
+
+    private StateMachine newStateMachine() {
+        return new StateMachine(applyChan, dir.toString(), KvEngine.HASH);
+    }
+
+    static ClientRequest put(String key, String value) {
+        return ClientRequestDecoder.newRequest(RequestCode.PROPOSE, new ProposeMessage(key, value));
+    }
+
+    static ClientRequest multiPut(List<String> keys, List<String> values) {
+        return ClientRequestDecoder.newRequest(RequestCode.MULTI_PROPOSE,
+                new MultiProposeMessage(keys, values));
+    }
+
+    static ClientRequest conditional(int code, String key, String value, String expectedValue,
+                                     long expectedVersion) {
+        return ClientRequestDecoder.newRequest(code,
+                new ConditionalProposeMessage(key, value, expectedValue, expectedVersion));
+    }
+
+    /**
+     * 像本节点提议的请求一样带上applyToken，apply之后取回结果
+     */
+    ApplyResult applyWithResult(StateMachine stateMachine, long instanceId,
+                                ClientRequest request) throws Exception {
+        request.setApplyToken(instanceId + 1);
+        CompletableFuture<ApplyResult> result = stateMachine.expectResult(instanceId + 1);
+        apply(stateMachine, instanceId, request);
+        return result.get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 把多个请求打包成一个实例交给状态机，等待apply完成
+     */
+    void apply(StateMachine stateMachine, long instanceId, ClientRequest... requests) {
+        List<byte[]> values = new ArrayList<>();
+        for (ClientRequest request : requests)
+            values.add(ProtostuffCodec.getInstance().encode(request));
+        applyChan.write(new ChosenValue(instanceId, 0, 0, 0, 0, BatchValue.encode(values)));
+        assertTrue(stateMachine.waitApplied(instanceId, 5000));
+    }
+
+    /**
+     * 安装快照期间get一直读旧的数据，完成后读新的数据，不会读到清空或者只恢复了一部分的store
+     */
+    @Test
+    void readDuringInstallSnapshot() throws Exception {
+        StateMachine stateMachine = newStateMachine();
+        apply(stateMachine, 0, put("k", "old"));
+
+        KvStore source = new HashKvStore();
+        for (int i = 0; i < 200000; i++)
+            source.put("key" + i, "value" + i, i + 1);
+        source.put("k", "new", 200001);
+        File received = new File(dir.toFile(), "received");
+        try (FileOutputStream out = new FileOutputStream(received)) {
+            Snapshot.write(out, 100, 200001, source);
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger missing = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (running.get()) {
+                if (stateMachine.get("k") == null)
+                    missing.incrementAndGet();
+            }
+        });
+        reader.start();
+        stateMachine.installSnapshot(received, 100);
+        running.set(false);
+        reader.join();
+
+        assertEquals(0, missing.get());
+        assertEquals("new", stateMachine.get("k"));
+        assertEquals("value7", stateMachine.get("key7"));
+        assertEquals(100, stateMachine.getSnapshotInstanceId());
+        //之后的实例接着apply，版本从快照的lastVersion继续
+        apply(stateMachine, 101, put("k", "after"));
+        assertEquals("after", stateMachine.get("k"));
+    }
+
+    /**
+     * MULTI_PROPOSE按顺序写入key0到key99，读到key0的新值之后再读key99，key99不会比key0旧
+     */
+    @Test
+    void multiKeyWriteIsAtomicForReads() throws Exception {
+        StateMachine stateMachine = newStateMachine();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            keys.add("key" + i);
+        apply(stateMachine, 0, multiPut(keys, Collections.nCopies(keys.size(), "0")));
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger torn = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (running.get()) {
+                int first = Integer.parseInt(stateMachine.get("key0"));
+                int last = Integer.parseInt(stateMachine.get("key99"));
+                Map<String, String> all = stateMachine.getAll(keys);
+                if (last < first || new HashSet<>(all.values()).size() != 1)
+                    torn.incrementAndGet();
+            }
+        });
+        reader.start();
+        for (int i = 1; i <= 2000; i++)
+            apply(stateMachine, i, multiPut(keys,
+                    Collections.nCopies(keys.size(), String.valueOf(i))));
+        running.set(false);
+        reader.join();
+        assertEquals(0, torn.get());
+        assertEquals(Map.of("key0", "2000", "key99", "2000"),
+                stateMachine.getAll(List.of("key0", "key99", "key100")));
+    }
+
+    @Test
+    void putIfAbsent() throws Exception {
+        StateMachine stateMachine = newStateMachine();
+        ApplyResult result = applyWithResult(stateMachine, 0,
+                conditional(RequestCode.PUT_IF_ABSENT, "k", "1", null, 0));
+        assertTrue(result.isSucceeded());
+        assertEquals(1, result.getVersion());
+        //失败时返回当前的版本，不修改数据
+        result = applyWithResult(stateMachine, 1,
+                conditional(RequestCode.PUT_IF_ABSENT, "k", "2", null, 0));
+        assertFalse(result.isSucceeded());
+        assertEquals(1, result.getVersion());
+        assertEquals("1", stateMachine.get("k"));
+    }
+
+    @Test
+    void compareAndSet() throws Exception {
+        StateMachine stateMachine = newStateMachine();
+        apply(stateMachine, 0, put("k", "a"));
+        ApplyResult result = applyWithResult(stateMachine, 1,
+                conditional(RequestCode.COMPARE_AND_SET, "k", "b", "x", 0));
+        assertFalse(result.isSucceeded());
+        assertEquals(1, result.getVersion());
+        assertEquals("a", stateMachine.get("k"));
+        result = applyWithResult(stateMachine, 2,
+                conditional(RequestCode.COMPARE_AND_SET, "k", "b", "a", 0));
+        assertTrue(result.isSucceeded());
+        assertEquals(2, result.getVersion());
+        assertEquals("b", stateMachine.get("k"));
+        //期望的值为null时要求key不存在
+        assertFalse(applyWithResult(stateMachine, 3,
+                conditional(RequestCode.COMPARE_AND_SET, "k", "c", null, 0)).isSucceeded());
+        result = applyWithResult(stateMachine, 4,
+                conditional(RequestCode.COMPARE_AND_SET, "other", "c", null, 0));
+        assertTrue(result.isSucceeded());
+        assertEquals("c", stateMachine.get("other"));
+    }
+
+    /**
+     * 版本0代表key不存在
+     */
+    @Test
+    void putIfVersion() throws Exception {
+        StateMachine stateMachine = newStateMachine();
+        ApplyResult result = applyWithResult(stateMachine, 0,
+                conditional(RequestCode.PUT_IF_VERSION, "k", "1", null, 0));
+        assertTrue(result.isSucceeded());
+        assertEquals(1, result.getVersion());
+        result = applyWithResult(stateMachine, 1,
+                conditional(RequestCode.PUT_IF_VERSION, "k", "2", null, 0));
+        assertFalse(result.isSucceeded());
+        assertEquals(1, result.getVersion());
+        result = applyWithResult(stateMachine, 2,
+                conditional(RequestCode.PUT_IF_VERSION, "k", "2", null, 1));
+        assertTrue(result.isSucceeded());
+        assertEquals(2, result.getVersion());
+        //版本是全局递增的，不是每个key从1开始
+        apply(stateMachine, 3, put("other", "x"));
+        result = applyWithResult(stateMachine, 4,
+                conditional(RequestCode.PUT_IF_VERSION, "other", "y", null, 1));
+        assertFalse(result.isSucceeded());
+        assertEquals(3, result.getVersion());
+        assertEquals("2", stateMachine.get("k"));
+        assertEquals("x", stateMachine.get("other"));
+    }
+
+    @Test
+    void delete() throws Exception {
+        StateMachine stateMachine = newStateMachine();
+        //不存在的key删除失败，版本为0
+        ApplyResult result = applyWithResult(stateMachine, 0, conditional(RequestCode.DELETE,
+                "k", null, null, ConditionalProposeMessage.ANY_VERSION));
+        assertFalse(result.isSucceeded());
+        assertEquals(0, result.getVersion());
+
+        apply(stateMachine, 1, put("k", "a"));
+        result = applyWithResult(stateMachine, 2,
+                conditional(RequestCode.DELETE, "k", null, null, 5));
+        assertFalse(result.isSucceeded());
+        assertEquals(1, result.getVersion());
+        assertEquals("a", stateMachine.get("k"));
+        result = applyWithResult(stateMachine, 3,
+                conditional(RequestCode.DELETE, "k", null, null, 1));
+        assertTrue(result.isSucceeded());
+        assertNull(stateMachine.get("k"));
+
+        apply(stateMachine, 4, put("k", "b"));
+        assertTrue(applyWithResult(stateMachine, 5, conditional(RequestCode.DELETE,
+                "k", null, null, ConditionalProposeMessage.ANY_VERSION)).isSucceeded());
+        assertNull(stateMachine.get("k"));
+        //删除之后PUT_IF_VERSION 0可以重新写入
+        assertTrue(applyWithResult(stateMachine, 6,
+                conditional(RequestCode.PUT_IF_VERSION, "k", "c", null, 0)).isSucceeded());
+    }
+
+    /**
+     * 取消登记之后apply不再完成结果
+     */
+    @Test
+    void cancelResult() throws Exception {
+        StateMachine stateMachine = newStateMachine();
+        ClientRequest request = put("k", "v");
+        request.setApplyToken(42);
+        CompletableFuture<ApplyResult> result = stateMachine.expectResult(42);
+        stateMachine.cancelResult(42);
+        apply(stateMachine, 0, request);
+        assertFalse(result.isDone());
+        assertEquals("v", stateMachine.get("k"));
+    }
+
+    /**
+     * 重启时从快照文件加载
+     */
+    @Test
+    void loadSnapshot() throws IOException {
+        KvStore source = new HashKvStore();
+        source.put("a", "1", 1);
+        File received = new File(dir.toFile(), "received");
+        try (FileOutputStream out = new FileOutputStream(received)) {
+            Snapshot.write(out, 5, 1, source);
+        }
+        newStateMachine().installSnapshot(received, 5);
+
+        StateMachine restarted = newStateMachine();
+        assertEquals(5, restarted.getSnapshotInstanceId());
+        assertEquals("1", restarted.get("a"));
+    }
+}